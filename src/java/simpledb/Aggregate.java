@@ -1,22 +1,82 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * min). Any number of aggregates can be computed together, grouped by any
+ * number of columns, in a single pass over the child.
+ * <p>
+ * Aggregation is hash based. If a budget on the number of in-memory groups is
+ * given, tuples of groups that do not fit are partitioned by the hash of their
+ * group value into temporary {@link SpillFile}s; once the input is consumed,
+ * each partition is aggregated in turn (re-partitioning with a different hash
+ * if it is still too large). Memory therefore stays bounded for arbitrary
+ * group counts.
+ * <p>
+ * With a parallelism greater than one (and no group budget), aggregation is
+ * done in two phases: the child is read in batches that are handed to worker
+ * threads, each of which folds them into its own partial {@link Aggregator};
+ * the partials are then merged into the final result with
+ * {@link Aggregator#merge}.
+ * <p>
+ * If the child delivers each group contiguously, e.g. because it is sorted on
+ * the group by field, the operator can instead run in streaming mode: no hash
+ * table is built, and each group is returned as soon as its key changes.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
     private Aggregator aggregator;
     private OpIterator child;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
     private OpIterator iter;
     private TupleDesc desc;
+    private int maxGroups;
+    private transient ArrayDeque<Partition> pending;
+    private transient boolean spilled;
+    private int parallelism = 1;
+    private boolean streaming = false;
+    private transient Tuple lookahead;
+
+    /** Use no budget: every group is kept in memory. */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    /** Number of child tuples handed to a worker at once in parallel mode. */
+    static final int BATCH_SIZE = 1024;
+
+    /**
+     * Worker threads of parallel aggregations, shared by all operators so
+     * that reopening one (e.g. under a nested loops join) reuses idle threads
+     * instead of starting new ones. The threads are daemons, so an operator
+     * that is never closed does not keep the JVM alive.
+     */
+    private static final ExecutorService WORKERS =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "aggregate-worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** Number of partitions the overflow input is split into when spilling. */
+    static final int NUM_SPILL_PARTITIONS = 16;
+
+    /** A spilled partition, with the recursion level used to hash it. */
+    private static class Partition {
+        final SpillFile file;
+        final int level;
+
+        Partition(SpillFile file, int level) {
+            this.file = file;
+            this.level = level;
+        }
+    }
     /**
      * Constructor.
      * 
@@ -36,33 +96,165 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, afield, gfield, aop, UNBOUNDED);
+    }
+
+    /**
+     * Constructor for a spilling aggregate.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     * @param maxGroups
+     *            The maximum number of groups held in memory at once, or
+     *            {@link #UNBOUNDED}
+     */
+    public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop,
+            int maxGroups) {
 	// some code goes here
+        this(child, new int[] { afield },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+                new Aggregator.Op[] { aop }, maxGroups);
+    }
+
+    /**
+     * Constructor for an aggregate computing several aggregates over a
+     * composite group key in a single pass. Output tuples hold the group-by
+     * fields, in order, followed by one field per aggregate.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator of each column in afields
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields,
+            Aggregator.Op[] aops) {
+        this(child, afields, gfields, aops, UNBOUNDED);
+    }
+
+    /**
+     * Constructor for a spilling aggregate over several aggregates and a
+     * composite group key.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator of each column in afields
+     * @param maxGroups
+     *            The maximum number of groups held in memory at once, or
+     *            {@link #UNBOUNDED}
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields,
+            Aggregator.Op[] aops, int maxGroups) {
+        if (maxGroups < 1)
+            throw new IllegalArgumentException("maxGroups must be positive");
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        this.maxGroups = maxGroups;
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.aops = aops.clone();
+        aggregator = newAggregator();
+        TupleDesc childTd = child.getTupleDesc();
+        Type[] types = new Type[gfields.length + afields.length];
+        String[] names = new String[types.length];
+        for (int i = 0; i < gfields.length; i++) {
+            types[i] = childTd.getFieldType(gfields[i]);
+            names[i] = groupFieldName(i);
+        }
+        for (int i = 0; i < afields.length; i++) {
+            types[gfields.length + i] = Type.INT_TYPE;
+            names[gfields.length + i] = "aggName(" + aops[i] + ") ("
+                    + aggregateFieldName(i) + ")";
+        }
+        this.desc = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return a fresh, empty aggregator for this operator's child schema
+     * @throws IllegalArgumentException if the aggregate field type or operator
+     *         is not supported
+     */
+    private Aggregator newAggregator() {
         TupleDesc desc = child.getTupleDesc();
+        if (afields.length > 1 || gfields.length > 1 || aops[0].isApproximate())
+            return new MultiAggregator(gfields, desc, afields, aops);
+        int gfield = groupField();
         Type gbType = null;
         if (gfield != -1) {
             gbType = desc.getFieldType(gfield);
         }
-        if (desc.getFieldType(afield) == Type.INT_TYPE) {
-            aggregator = new IntegerAggregator(gfield,gbType,afield,aop);
-        }else if (desc.getFieldType(afield) == Type.STRING_TYPE) {
-            aggregator = new StringAggregator(gfield,gbType,afield,aop);
-        } else {
-            throw new IllegalArgumentException();
-        }
-        if (gfield == -1) {
-            this.desc = new TupleDesc(new Type[]{Type.INT_TYPE},
-                    new String[]{"aggName("+aop+") ("+aggregateFieldName()+")"});
-        } else {
-            this.desc = new TupleDesc(new Type[]{child.getTupleDesc().getFieldType(gfield),Type.INT_TYPE},
-                    new String[]{
-                    groupFieldName(),
-                    "aggName("+aop+") ("+aggregateFieldName()+")"});
+        if (desc.getFieldType(afields[0]) == Type.INT_TYPE) {
+            return new IntegerAggregator(gfield,gbType,afields[0],aops[0]);
+        } else if (desc.getFieldType(afields[0]) == Type.STRING_TYPE) {
+            return new StringAggregator(gfield,gbType,afields[0],aops[0]);
         }
+        throw new IllegalArgumentException();
+    }
+
+    /**
+     * @return the maximum number of groups held in memory at once
+     */
+    public int maxGroups() {
+        return maxGroups;
+    }
+
+    /**
+     * Set the number of threads used to aggregate the child's tuples. Has no
+     * effect if a group budget is set, since partials could not be spilled.
+     *
+     * @param parallelism
+     *            the number of worker threads, 1 for serial aggregation
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Enable or disable streaming aggregation. In streaming mode the child
+     * must return the tuples of each group contiguously (for example, sorted
+     * on the group by fields); only the current group is kept in memory, and
+     * the group budget and parallelism are ignored.
+     *
+     * @param streaming
+     *            true to aggregate the child's groups one at a time
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
 
+    /**
+     * @return true if the last evaluation of this operator had to spill
+     */
+    public boolean hasSpilled() {
+        return spilled;
     }
 
     /**
@@ -72,7 +264,14 @@ public class Aggregate extends Operator {
      * */
     public int groupField() {
         // some code goes here
-        return gfield;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    }
+
+    /**
+     * @return the number of group-by fields, 0 if there is no grouping
+     */
+    public int numGroupFields() {
+        return gfields.length;
     }
 
     /**
@@ -82,18 +281,32 @@ public class Aggregate extends Operator {
      * */
     public String groupFieldName() {
         // some code goes here
-        if (gfield != -1) {
-            return child.getTupleDesc().getFieldName(gfield);
+        if (gfields.length > 0) {
+            return groupFieldName(0);
         }
         return null;
     }
 
+    /**
+     * @return the name of the i-th group-by field
+     */
+    public String groupFieldName(int i) {
+        return child.getTupleDesc().getFieldName(gfields[i]);
+    }
+
     /**
      * @return the aggregate field
      * */
     public int aggregateField() {
         // some code goes here
-        return afield;
+        return afields[0];
+    }
+
+    /**
+     * @return the number of aggregates computed by this operator
+     */
+    public int numAggregates() {
+        return afields.length;
     }
 
     /**
@@ -102,7 +315,14 @@ public class Aggregate extends Operator {
      * */
     public String aggregateFieldName() {
         // some code goes here
-        return child.getTupleDesc().getFieldName(afield);
+        return aggregateFieldName(0);
+    }
+
+    /**
+     * @return the name of the field of the i-th aggregate
+     */
+    public String aggregateFieldName(int i) {
+        return child.getTupleDesc().getFieldName(afields[i]);
     }
 
     /**
@@ -110,7 +330,14 @@ public class Aggregate extends Operator {
      * */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return aop;
+        return aops[0];
+    }
+
+    /**
+     * @return the operator of the i-th aggregate
+     */
+    public Aggregator.Op aggregateOp(int i) {
+        return aops[i];
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -122,11 +349,198 @@ public class Aggregate extends Operator {
         // some code goes here
         super.open();
         child.open();
+        pending = new ArrayDeque<Partition>();
+        spilled = false;
+        lookahead = null;
+        if (!streaming) {
+            iter = aggregateChild();
+            iter.open();
+        }
+    }
+
+    /**
+     * Streaming aggregation: read the child up to the first tuple of the next
+     * group and return the aggregate of the current one.
+     *
+     * @return the next group, or null if the child is exhausted
+     */
+    private Tuple nextGroup() throws DbException, TransactionAbortedException {
+        if (lookahead == null) {
+            if (!child.hasNext())
+                return null;
+            lookahead = child.next();
+        }
+        aggregator = newAggregator();
+        aggregator.mergeTupleIntoGroup(lookahead);
+        lookahead = null;
         while (child.hasNext()) {
-            aggregator.mergeTupleIntoGroup(child.next());
+            Tuple t = child.next();
+            if (!aggregator.containsGroup(t)) {
+                lookahead = t;
+                break;
+            }
+            aggregator.mergeTupleIntoGroup(t);
+        }
+        OpIterator group = aggregator.iterator();
+        group.open();
+        Tuple result = group.next();
+        group.close();
+        return result;
+    }
+
+    /**
+     * @return an iterator over the aggregate of the (open) child, computed
+     *         serially or in parallel depending on the configuration
+     */
+    private OpIterator aggregateChild() throws DbException,
+            TransactionAbortedException {
+        if (parallelism > 1 && maxGroups == UNBOUNDED)
+            return aggregateParallel(child);
+        return aggregate(child, 0);
+    }
+
+    /**
+     * Two-phase aggregation: batches of input are aggregated into one partial
+     * aggregator per worker thread, and the partials are merged at the end.
+     * The input itself is read on the calling thread.
+     *
+     * @param input
+     *            the (open) tuples to aggregate
+     * @return an iterator over the merged groups
+     */
+    private OpIterator aggregateParallel(OpIterator input) throws DbException,
+            TransactionAbortedException {
+        final BlockingQueue<Tuple[]> batches =
+                new ArrayBlockingQueue<Tuple[]>(2 * parallelism);
+        final Tuple[] done = new Tuple[0];
+        List<Future<Aggregator>> partials = new ArrayList<Future<Aggregator>>();
+        for (int i = 0; i < parallelism; i++) {
+            partials.add(WORKERS.submit(new Callable<Aggregator>() {
+                public Aggregator call() throws InterruptedException {
+                    Aggregator partial = newAggregator();
+                    RuntimeException failure = null;
+                    // keep draining after a failure so the reader never
+                    // blocks on a full queue
+                    for (Tuple[] b = batches.take(); b != done; b = batches.take()) {
+                        if (failure != null)
+                            continue;
+                        try {
+                            for (Tuple t : b)
+                                partial.mergeTupleIntoGroup(t);
+                        } catch (RuntimeException e) {
+                            failure = e;
+                        }
+                    }
+                    if (failure != null)
+                        throw failure;
+                    return partial;
+                }
+            }));
+        }
+        try {
+            try {
+                Tuple[] batch = new Tuple[BATCH_SIZE];
+                int n = 0;
+                while (input.hasNext()) {
+                    batch[n++] = input.next();
+                    if (n == BATCH_SIZE) {
+                        batches.put(batch);
+                        batch = new Tuple[BATCH_SIZE];
+                        n = 0;
+                    }
+                }
+                if (n > 0)
+                    batches.put(Arrays.copyOf(batch, n));
+            } finally {
+                for (int i = 0; i < parallelism; i++)
+                    batches.put(done);
+            }
+            aggregator = newAggregator();
+            for (Future<Aggregator> f : partials)
+                aggregator.merge(f.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException(e.toString());
+        } catch (ExecutionException e) {
+            throw new DbException(e.getCause().toString());
+        } finally {
+            // stops workers still waiting for batches after a failure
+            for (Future<Aggregator> f : partials)
+                f.cancel(true);
+        }
+        return aggregator.iterator();
+    }
+
+    /**
+     * Aggregate input into a fresh hash table. Tuples of groups that do not
+     * fit into the table are spilled to partitions which are queued in
+     * pending for later processing.
+     *
+     * @param input
+     *            the (open) tuples to aggregate
+     * @param level
+     *            the recursion level, used to pick an independent partition
+     *            hash for every round of spilling
+     * @return an iterator over the groups that fit in memory
+     */
+    private OpIterator aggregate(OpIterator input, int level)
+            throws DbException, TransactionAbortedException {
+        aggregator = newAggregator();
+        SpillFile[] partitions = null;
+        try {
+            while (input.hasNext()) {
+                Tuple t = input.next();
+                if (aggregator.numGroups() < maxGroups
+                        || aggregator.containsGroup(t)) {
+                    aggregator.mergeTupleIntoGroup(t);
+                    continue;
+                }
+                if (partitions == null)
+                    partitions = new SpillFile[NUM_SPILL_PARTITIONS];
+                int p = partitionOf(t, level);
+                if (partitions[p] == null)
+                    partitions[p] = new SpillFile(input.getTupleDesc());
+                partitions[p].add(t);
+            }
+            if (partitions != null) {
+                spilled = true;
+                for (SpillFile f : partitions) {
+                    if (f != null) {
+                        f.finish();
+                        pending.add(new Partition(f, level + 1));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (partitions != null)
+                for (SpillFile f : partitions)
+                    if (f != null)
+                        f.delete();
+            throw new DbException(e.toString());
+        }
+        return aggregator.iterator();
+    }
+
+    /**
+     * @return the spill partition of t at the given recursion level
+     */
+    private int partitionOf(Tuple t, int level) {
+        int h = 0;
+        for (int f : gfields)
+            h = 31 * h + t.getField(f).hashCode();
+        h *= 0x9E3779B9;
+        h = Integer.rotateLeft(h, 7 * level + 16);
+        h ^= h >>> 15;
+        return (h & 0x7fffffff) % NUM_SPILL_PARTITIONS;
+    }
+
+    /** Delete any partitions that have not been aggregated yet. */
+    private void discardPending() {
+        if (pending != null) {
+            for (Partition p : pending)
+                p.file.delete();
+            pending.clear();
         }
-        iter = aggregator.iterator();
-        iter.open();
     }
 
     /**
@@ -138,22 +552,56 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (iter.hasNext()) {
-            return iter.next();
+        if (streaming) {
+            return nextGroup();
+        }
+        while (true) {
+            if (iter.hasNext()) {
+                return iter.next();
+            }
+            Partition p = pending.poll();
+            if (p == null) {
+                return null;
+            }
+            iter.close();
+            OpIterator in = p.file.iterator();
+            try {
+                in.open();
+                iter = aggregate(in, p.level);
+            } finally {
+                in.close();
+                p.file.delete();
+            }
+            iter.open();
         }
-        return null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        iter.rewind();
+        if (streaming) {
+            child.rewind();
+            lookahead = null;
+            return;
+        }
+        if (!spilled) {
+            iter.rewind();
+            return;
+        }
+        // spilled partitions are consumed as they are read, so start over
+        discardPending();
+        iter.close();
+        child.rewind();
+        spilled = false;
+        iter = aggregateChild();
+        iter.open();
     }
 
     /**
      * Returns the TupleDesc of this Aggregate. If there is no group by field,
      * this will have one field - the aggregate column. If there is a group by
      * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * the aggregate value column. With several group by fields or aggregates,
+     * all group by fields come first, followed by the aggregate columns.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -168,7 +616,11 @@ public class Aggregate extends Operator {
     public void close() {
         // some code goes here
         child.close();
-        iter.close();
+        if (iter != null)
+            iter.close();
+        iter = null;
+        lookahead = null;
+        discardPending();
         super.close();
     }
 
@@ -181,8 +633,8 @@ public class Aggregate extends Operator {
     @Override
     public void setChildren(OpIterator[] children) {
         // some code goes here
-        child.close();
-        iter.close();
+        close();
+        child = children[0];
     }
     
 }
@@ -5,6 +5,11 @@ import java.io.Serializable;
 /**
  * The common interface for any class that can compute an aggregate over a
  * list of Tuples.
+ * <p>
+ * Aggregation can be split into two phases: several aggregators with the
+ * same configuration each consume part of the input (the partial phase),
+ * and their states are then combined with {@link #merge} into one whose
+ * iterator yields the final result.
  */
 public interface Aggregator extends Serializable {
     static final int NO_GROUPING = -1;
@@ -25,7 +30,44 @@ public interface Aggregator extends Serializable {
          * SC_AVG: compute the avg of a set of SUM_COUNT tuples,
          * will be used to compute distributed avg in lab7.
          * */
-        SC_AVG;
+        SC_AVG,
+        /**
+         * APPROX_COUNT_DISTINCT: estimate the number of distinct values
+         * with a {@link HyperLogLog} sketch.
+         * */
+        APPROX_COUNT_DISTINCT,
+        /**
+         * APPROX_MEDIAN, APPROX_P90, APPROX_P95, APPROX_P99: estimate a
+         * percentile of an integer field with a {@link KllSketch}.
+         * */
+        APPROX_MEDIAN, APPROX_P90, APPROX_P95, APPROX_P99;
+
+        /**
+         * @return true if this operator is computed with a sketch, and so
+         *         is approximate
+         */
+        public boolean isApproximate() {
+            return this == APPROX_COUNT_DISTINCT || quantile() >= 0;
+        }
+
+        /**
+         * @return the quantile estimated by a percentile operator, or -1 if
+         *         this is not a percentile operator
+         */
+        public double quantile() {
+            switch (this) {
+            case APPROX_MEDIAN:
+                return 0.5;
+            case APPROX_P90:
+                return 0.9;
+            case APPROX_P95:
+                return 0.95;
+            case APPROX_P99:
+                return 0.99;
+            default:
+                return -1;
+            }
+        }
 
         /**
          * Interface to access operations by a string containing an integer
@@ -63,6 +105,16 @@ public interface Aggregator extends Serializable {
         		return "count";
         	if (this==SC_AVG)
     			return "sc_avg";
+        	if (this==APPROX_COUNT_DISTINCT)
+        		return "approx_count_distinct";
+        	if (this==APPROX_MEDIAN)
+        		return "approx_median";
+        	if (this==APPROX_P90)
+        		return "approx_p90";
+        	if (this==APPROX_P95)
+        		return "approx_p95";
+        	if (this==APPROX_P99)
+        		return "approx_p99";
         	throw new IllegalStateException("impossible to reach here");
         }
     }
@@ -76,6 +128,29 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the partial aggregation state of another aggregator into this
+     * one, as if every tuple merged into partial had been merged into this
+     * aggregator instead. partial must not be modified afterwards.
+     *
+     * @param partial an aggregator of the same class, built with the same
+     *            group-by field, aggregate field and operator
+     * @throws IllegalArgumentException if partial is not compatible
+     */
+    public void merge(Aggregator partial);
+
+    /**
+     * @return the number of distinct groups currently held in memory
+     */
+    public int numGroups();
+
+    /**
+     * @param tup a Tuple with the same schema as merged tuples
+     * @return true if tup belongs to a group that already exists, i.e.
+     *         merging it would not grow the aggregation table
+     */
+    public boolean containsGroup(Tuple tup);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
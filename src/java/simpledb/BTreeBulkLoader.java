@@ -0,0 +1,546 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * BTreeBulkLoader builds a BTreeFile from tuples in any order in bounded
+ * memory, unlike {@link BTreeFileEncoder}, which sorts all of them in the
+ * heap.
+ * <p>
+ * The input is cut into runs of a fixed number of tuples, which worker
+ * threads sort and write to {@link SpillFile}s while the next run is read.
+ * The runs are then merged, in several passes if there are more of them than
+ * the merge fan-in, and the merged tuples are packed into leaf pages.
+ * <p>
+ * The number of tuples is known once the runs are written, so the shape of
+ * the tree and the number of every page are fixed before the first page is
+ * written: the leaves come first in key order, each level of internal pages
+ * follows the level below it, and the root is the last page of the file.
+ * Every level is built bottom-up while the leaves are written, holding one
+ * page per level in memory. Pages are written straight to the file through
+ * a FileChannel, bypassing the BufferPool.
+ * <p>
+ * Pages are filled up to the fill factor, and the items of a level are then
+ * spread evenly over its pages, so no page but the root ends up below the
+ * minimum occupancy of the tree. A fill factor below 1 leaves room for later
+ * inserts, which then do not split pages right away. With compressed keys
+ * (see {@link BTreePage#compressesKeys}), pages are filled as if no key
+ * could be compressed, so they may hold fewer bytes than inserts leave them
+ * with.
+ */
+public class BTreeBulkLoader {
+
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+	/** Default number of tuples sorted in memory at once by each worker */
+	public static final int DEFAULT_RUN_SIZE = 1 << 18;
+
+	/** Default number of runs merged at once */
+	public static final int DEFAULT_MERGE_FAN_IN = 64;
+
+	/** Number of leaf pages written to the file at once */
+	static final int WRITE_BATCH = 64;
+
+	private final TupleDesc td;
+	private final int keyField;
+	private final Type[] types;
+	private final Comparator<Tuple> comparator;
+	private double fillFactor = DEFAULT_FILL_FACTOR;
+	private int runSize = DEFAULT_RUN_SIZE;
+	private int mergeFanIn = DEFAULT_MERGE_FAN_IN;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Create a bulk loader for B+ trees of tuples with the given schema
+	 *
+	 * @param td - the tuple descriptor of the tuples to load
+	 * @param keyField - the index of the field the B+ trees are keyed on
+	 */
+	public BTreeBulkLoader(TupleDesc td, int keyField) {
+		this.td = td;
+		this.keyField = keyField;
+		this.types = new Type[td.numFields()];
+		for(int i = 0; i < types.length; i++) {
+			types[i] = td.getFieldType(i);
+		}
+		this.comparator = new BTreeFileEncoder.TupleComparator(keyField);
+	}
+
+	/**
+	 * Set the fraction of each page to fill. Pages are never filled below
+	 * the minimum occupancy of the tree, whatever the fill factor.
+	 *
+	 * @param fillFactor - a fraction greater than 0 and at most 1
+	 */
+	public void setFillFactor(double fillFactor) {
+		if(!(fillFactor > 0 && fillFactor <= 1)) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+		}
+		this.fillFactor = fillFactor;
+	}
+
+	/**
+	 * Set the number of tuples in each sorted run. At most
+	 * parallelism + 1 runs are held in memory at once.
+	 *
+	 * @param runSize - the number of tuples in each run
+	 */
+	public void setRunSize(int runSize) {
+		if(runSize < 1) {
+			throw new IllegalArgumentException("run size must be positive: " + runSize);
+		}
+		this.runSize = runSize;
+	}
+
+	/**
+	 * Set the largest number of runs merged at once. More runs than this
+	 * are merged in several passes.
+	 *
+	 * @param mergeFanIn - the number of runs merged at once, at least 2
+	 */
+	public void setMergeFanIn(int mergeFanIn) {
+		if(mergeFanIn < 2) {
+			throw new IllegalArgumentException("merge fan-in must be at least 2: " + mergeFanIn);
+		}
+		this.mergeFanIn = mergeFanIn;
+	}
+
+	/**
+	 * Set the number of worker threads sorting and merging runs
+	 *
+	 * @param parallelism - the number of worker threads, at least 1
+	 */
+	public void setParallelism(int parallelism) {
+		if(parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Build a B+ tree file from the given tuples, replacing any contents of
+	 * bFile.
+	 *
+	 * @param input - the tuples to load, in any order. The iterator is opened
+	 *                and closed by this method.
+	 * @param bFile - the file on disk to back the resulting BTreeFile
+	 * @return the BTreeFile
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public BTreeFile load(DbFileIterator input, File bFile)
+			throws IOException, DbException, TransactionAbortedException {
+		BTreeFile bf = new BTreeFile(bFile, keyField, td);
+		ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+		ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+		try {
+			long numTuples = sortRuns(input, workers, runs);
+			while(runs.size() > mergeFanIn) {
+				mergeRuns(workers, runs);
+			}
+			writeTree(bf, new MergedRuns(runs), numTuples);
+		} finally {
+			workers.shutdownNow();
+			for(SpillFile run : runs) {
+				run.delete();
+			}
+		}
+		return bf;
+	}
+
+	/**
+	 * Read the input and sort it into runs. The input is read on the calling
+	 * thread while up to parallelism runs are sorted by the workers.
+	 *
+	 * @param input - the tuples to sort
+	 * @param workers - the threads which sort the runs
+	 * @param runs - the list to add the sorted runs to, in input order
+	 * @return the number of tuples read
+	 */
+	private long sortRuns(DbFileIterator input, ExecutorService workers, ArrayList<SpillFile> runs)
+			throws DbException, TransactionAbortedException {
+		LinkedList<Future<SpillFile>> sorting = new LinkedList<Future<SpillFile>>();
+		long numTuples = 0;
+		input.open();
+		try {
+			ArrayList<Tuple> run = new ArrayList<Tuple>();
+			while(input.hasNext()) {
+				run.add(input.next());
+				numTuples++;
+				if(run.size() == runSize) {
+					if(sorting.size() == parallelism) {
+						runs.add(get(sorting.removeFirst()));
+					}
+					sorting.add(workers.submit(sortRun(run)));
+					run = new ArrayList<Tuple>();
+				}
+			}
+			if(!run.isEmpty()) {
+				sorting.add(workers.submit(sortRun(run)));
+			}
+			while(!sorting.isEmpty()) {
+				runs.add(get(sorting.removeFirst()));
+			}
+		} finally {
+			input.close();
+		}
+		return numTuples;
+	}
+
+	private Callable<SpillFile> sortRun(final ArrayList<Tuple> run) {
+		return new Callable<SpillFile>() {
+			public SpillFile call() throws IOException {
+				Collections.sort(run, comparator);
+				SpillFile f = new SpillFile(td);
+				try {
+					for(Tuple t : run) {
+						f.add(t);
+					}
+					f.finish();
+				} catch(IOException e) {
+					f.delete();
+					throw e;
+				}
+				return f;
+			}
+		};
+	}
+
+	/**
+	 * One merge pass: merge every mergeFanIn consecutive runs into one,
+	 * in parallel.
+	 *
+	 * @param workers - the threads which merge the runs
+	 * @param runs - the runs to merge, replaced by the merged runs
+	 */
+	private void mergeRuns(ExecutorService workers, ArrayList<SpillFile> runs) throws DbException {
+		ArrayList<Future<SpillFile>> merging = new ArrayList<Future<SpillFile>>();
+		for(int i = 0; i < runs.size(); i += mergeFanIn) {
+			final List<SpillFile> group = new ArrayList<SpillFile>(
+					runs.subList(i, Math.min(i + mergeFanIn, runs.size())));
+			merging.add(workers.submit(new Callable<SpillFile>() {
+				public SpillFile call() throws IOException, DbException {
+					SpillFile f = new SpillFile(td);
+					MergedRuns merged = new MergedRuns(group);
+					try {
+						Tuple t;
+						while((t = merged.next()) != null) {
+							f.add(t);
+						}
+						f.finish();
+					} catch(IOException e) {
+						f.delete();
+						throw e;
+					} catch(DbException e) {
+						f.delete();
+						throw e;
+					} finally {
+						merged.close();
+					}
+					for(SpillFile run : group) {
+						run.delete();
+					}
+					return f;
+				}
+			}));
+		}
+		ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+		try {
+			for(Future<SpillFile> f : merging) {
+				merged.add(get(f));
+			}
+		} finally {
+			// on failure, leave both the inputs and the outputs to be deleted
+			runs.addAll(merged);
+		}
+		runs.subList(0, runs.size() - merged.size()).clear();
+	}
+
+	private static SpillFile get(Future<SpillFile> f) throws DbException {
+		try {
+			return f.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException(e.toString());
+		} catch(ExecutionException e) {
+			throw new DbException(e.getCause().toString());
+		}
+	}
+
+	/**
+	 * The tuples of several sorted runs in key order. Tuples with equal keys
+	 * come in the order of their runs.
+	 */
+	private class MergedRuns {
+		private final PriorityQueue<Cursor> heads;
+		private final ArrayList<OpIterator> open = new ArrayList<OpIterator>();
+
+		private class Cursor {
+			final OpIterator it;
+			final int run;
+			Tuple head;
+
+			Cursor(OpIterator it, int run) {
+				this.it = it;
+				this.run = run;
+			}
+		}
+
+		MergedRuns(List<SpillFile> runs) throws DbException {
+			heads = new PriorityQueue<Cursor>(Math.max(1, runs.size()), new Comparator<Cursor>() {
+				public int compare(Cursor c1, Cursor c2) {
+					int cmp = comparator.compare(c1.head, c2.head);
+					return cmp != 0 ? cmp : Integer.compare(c1.run, c2.run);
+				}
+			});
+			try {
+				for(int i = 0; i < runs.size(); i++) {
+					OpIterator it = runs.get(i).iterator();
+					it.open();
+					open.add(it);
+					Cursor c = new Cursor(it, i);
+					if(it.hasNext()) {
+						c.head = it.next();
+						heads.add(c);
+					}
+				}
+			} catch(DbException e) {
+				close();
+				throw e;
+			} catch(TransactionAbortedException e) {
+				close();
+				throw new DbException(e.toString());
+			}
+		}
+
+		/**
+		 * @return the next tuple, or null once all runs are exhausted
+		 */
+		Tuple next() throws DbException {
+			Cursor c = heads.poll();
+			if(c == null) {
+				return null;
+			}
+			Tuple t = c.head;
+			try {
+				if(c.it.hasNext()) {
+					c.head = c.it.next();
+					heads.add(c);
+				}
+			} catch(TransactionAbortedException e) {
+				throw new DbException(e.toString());
+			}
+			return t;
+		}
+
+		void close() {
+			for(OpIterator it : open) {
+				it.close();
+			}
+			open.clear();
+			heads.clear();
+		}
+	}
+
+	/**
+	 * The shape of one level of the tree, and the page of it being built.
+	 * The items of a level are tuples for the leaves and child pages for
+	 * internal pages.
+	 */
+	private class Level {
+		/** the number of items in this level */
+		final long numItems;
+		/** the number of pages in this level */
+		final int numPages;
+		/** the page number of the first page of this level */
+		final int firstPage;
+
+		// the internal page being built
+		int page = 0;
+		long added = 0;
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		BTreePageId lastChild;
+		Field minKey;
+
+		/**
+		 * @param numItems - the number of items in this level
+		 * @param capacity - the largest number of items of a page
+		 * @param minimum - the smallest number of items of a page other than the root
+		 * @param firstPage - the page number of the first page of this level
+		 */
+		Level(long numItems, int capacity, int minimum, int firstPage) {
+			this.numItems = numItems;
+			this.firstPage = firstPage;
+			int target = Math.max(1, Math.max(minimum, (int) (capacity * fillFactor)));
+			long pages = (numItems + target - 1) / target;
+			// rather fewer, fuller pages than pages below the minimum occupancy
+			if(minimum > 0) {
+				pages = Math.min(pages, Math.max(1, numItems / minimum));
+			}
+			pages = Math.max(pages, (numItems + capacity - 1) / capacity);
+			if(pages > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("too many pages in B+ tree level: " + pages);
+			}
+			this.numPages = (int) pages;
+		}
+
+		/**
+		 * @return the number of items in pages 0 to i of this level
+		 */
+		long end(int i) {
+			return (i + 1) * numItems / numPages;
+		}
+
+		/**
+		 * @return the page number of the page holding the given item
+		 */
+		int pageOf(long item) {
+			return firstPage + (int) (((item + 1) * numPages - 1) / numItems);
+		}
+	}
+
+	/**
+	 * Write the B+ tree file holding the given tuples
+	 *
+	 * @param bf - the BTreeFile to write
+	 * @param tuples - the tuples in key order
+	 * @param numTuples - the number of tuples
+	 */
+	private void writeTree(BTreeFile bf, MergedRuns tuples, long numTuples)
+			throws IOException, DbException {
+		int pageSize = BufferPool.getPageSize();
+		int nrecords = BTreeLeafPage.getTuplesPerPage(td, keyField);
+		int nentries = BTreeInternalPage.getEntriesPerPage(types[keyField]);
+
+		ArrayList<Level> levels = new ArrayList<Level>();
+		if(numTuples > 0) {
+			levels.add(new Level(numTuples, nrecords, nrecords / 2, 1));
+			for(Level below = levels.get(0); below.numPages > 1; below = levels.get(levels.size() - 1)) {
+				levels.add(new Level(below.numPages, nentries + 1, nentries / 2 + 1,
+						below.firstPage + below.numPages));
+			}
+		}
+
+		FileChannel channel = new RandomAccessFile(bf.getFile(), "rw").getChannel();
+		try {
+			channel.truncate(0);
+			if(levels.isEmpty()) {
+				// an empty file is an empty tree
+				return;
+			}
+			Level top = levels.get(levels.size() - 1);
+			int rootCategory = (levels.size() > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
+			write(channel, ByteBuffer.wrap(BTreeFileEncoder.convertToRootPtrPage(
+					top.firstPage, rootCategory, 0)), 0);
+
+			Level leaves = levels.get(0);
+			ByteBuffer batch = ByteBuffer.allocate(WRITE_BATCH * pageSize);
+			long batchStart = BTreeRootPtrPage.getPageSize();
+			ArrayList<Tuple> page = new ArrayList<Tuple>();
+			Field lastKey = null;
+			long read = 0;
+			int i = 0;
+			Tuple t;
+			while((t = tuples.next()) != null) {
+				page.add(t);
+				if(++read < leaves.end(i)) {
+					continue;
+				}
+				int pgno = leaves.firstPage + i;
+				byte[] data = BTreeFileEncoder.convertToLeafPage(page, pageSize,
+						types.length, types, keyField);
+				ByteBuffer.wrap(data)
+						.putInt(0, levels.size() > 1 ? levels.get(1).pageOf(i) : 0)
+						.putInt(4, i > 0 ? pgno - 1 : 0)
+						.putInt(8, i < leaves.numPages - 1 ? pgno + 1 : 0);
+				if(!batch.hasRemaining()) {
+					batch.flip();
+					batchStart += write(channel, batch, batchStart);
+					batch.clear();
+				}
+				batch.put(data);
+				Field firstKey = page.get(0).getField(keyField);
+				addChild(bf, channel, levels, 1,
+						new BTreePageId(bf.getId(), pgno, BTreePageId.LEAF),
+						lastKey == null ? firstKey : BTreeInternalPage.separator(lastKey, firstKey));
+				lastKey = page.get(page.size() - 1).getField(keyField);
+				page = new ArrayList<Tuple>();
+				i++;
+			}
+			batch.flip();
+			write(channel, batch, batchStart);
+			if(read != numTuples) {
+				throw new DbException("read " + read + " sorted tuples, expected " + numTuples);
+			}
+		} finally {
+			tuples.close();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Add the next child page to a level of internal pages, writing out the
+	 * page being built at that level once it has all its children.
+	 *
+	 * @param bf - the BTreeFile being written
+	 * @param channel - the channel to write pages to
+	 * @param levels - the levels of the tree
+	 * @param level - the level to add the child to (1 is just above the leaves)
+	 * @param child - the child page
+	 * @param minKey - the key separating the subtree of the child page from
+	 *        the subtrees before it
+	 */
+	private void addChild(BTreeFile bf, FileChannel channel, ArrayList<Level> levels, int level,
+			BTreePageId child, Field minKey) throws IOException {
+		if(level == levels.size()) {
+			return;
+		}
+		Level l = levels.get(level);
+		if(l.lastChild == null) {
+			l.minKey = minKey;
+		}
+		else {
+			l.entries.add(new BTreeEntry(minKey, l.lastChild, child));
+		}
+		l.lastChild = child;
+		if(++l.added < l.end(l.page)) {
+			return;
+		}
+
+		int pgno = l.firstPage + l.page;
+		int childCategory = (level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+		byte[] data = BTreeFileEncoder.convertToInternalPage(l.entries, BufferPool.getPageSize(),
+				types[keyField], childCategory);
+		ByteBuffer.wrap(data).putInt(0, level + 1 < levels.size() ? levels.get(level + 1).pageOf(l.page) : 0);
+		write(channel, ByteBuffer.wrap(data), BTreeRootPtrPage.getPageSize()
+				+ (long) (pgno - 1) * BufferPool.getPageSize());
+		Field pageMinKey = l.minKey;
+		l.page++;
+		l.entries = new ArrayList<BTreeEntry>();
+		l.lastChild = null;
+		addChild(bf, channel, levels, level + 1,
+				new BTreePageId(bf.getId(), pgno, BTreePageId.INTERNAL), pageMinKey);
+	}
+
+	/**
+	 * Write all remaining bytes of a buffer at the given position of a file
+	 *
+	 * @return the number of bytes written
+	 */
+	private static int write(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		int written = 0;
+		while(buf.hasRemaining()) {
+			written += channel.write(buf, position + written);
+		}
+		return written;
+	}
+}
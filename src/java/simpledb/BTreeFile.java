@@ -2,6 +2,11 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
 
 import simpledb.Predicate.Op;
 
@@ -11,6 +16,16 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Threads using the tree at once latch its pages, apart from the locks transactions
+ * hold on them, and latch a child before letting go of its parent on the way down.
+ * An insert or delete that only changes its leaf latches just the leaf for long; one
+ * that splits, merges or redistributes pages keeps exclusive latches on the pages
+ * above its leaf that the change can spread to, and on every page it changes. Pages
+ * are fetched from the BufferPool, which may wait for a lock, while no latch is held,
+ * except for a page just taken from the free list (see TreeOperation#getEmptyPage).
+ * The iterators list the tuples of one leaf at a time, and find the next leaf again
+ * from the root if the leaf they read changed meanwhile.
  * 
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
@@ -25,6 +40,13 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private int keyField;
 
+	/** The latches of the pages of this file that threads hold or are about to take */
+	private final ConcurrentHashMap<BTreePageId, PageLatch> latches = new ConcurrentHashMap<BTreePageId, PageLatch>();
+	/** The last version given to a page latch */
+	private final AtomicLong versions = new AtomicLong();
+	/** Held while the header pages, which list the free pages, are read or changed */
+	private final ReentrantLock headerLatch = new ReentrantLock();
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -93,8 +115,7 @@ public class BTreeFile implements DbFile {
 							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
-				return p;
+				return pageOf(id, pageBuf);
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
@@ -112,18 +133,7 @@ public class BTreeFile implements DbFile {
 							+ BufferPool.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+				return pageOf(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -138,6 +148,27 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Construct a page of this file from its data.
+	 * 
+	 * @param id - the id of the page
+	 * @param data - the data of the page, as written to disk
+	 */
+	private Page pageOf(BTreePageId id, byte[] data) throws IOException {
+		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return new BTreeRootPtrPage(id, data);
+		}
+		else if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, data, keyField);
+		}
+		else if(id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, data, keyField);
+		}
+		else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, data);
+		}
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -195,7 +226,187 @@ public class BTreeFile implements DbFile {
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, childFor(page, f), perm, f);
+	}
+
+	/**
+	 * Returns the child of an internal page under which the left-most leaf page
+	 * possibly containing the key field f is, or the left-most child if f is null.
+	 */
+	private static BTreePageId childFor(BTreeInternalPage page, Field f) throws DbException {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			// keys equal to f may continue in the left child
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		if(e == null) {
+			throw new DbException("empty internal page " + page.getId());
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Returns true if pid is a child of an internal page.
+	 */
+	private static boolean isChild(BTreeInternalPage page, BTreePageId pid) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(e.getLeftChild().equals(pid)) {
+				return true;
+			}
+		}
+		return e != null && e.getRightChild().equals(pid);
+	}
+
+	/**
+	 * Find and latch the left-most leaf page possibly containing the key field f, crabbing
+	 * down from the root pointer with shared latches: the latch of a child is taken before
+	 * that of its parent is let go. The child is fetched while no latch is held, so its
+	 * parent is latched again afterwards and the search starts over from the root if the
+	 * parent may have changed meanwhile.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @param perm - the permissions with which to lock the leaf page, which is latched
+	 * exclusively if they are READ_WRITE and shared otherwise
+	 * @param path - if not null, set to the ids of the pages from the root down to the leaf
+	 * @return the leaf page, latched until {@link #unlatch(BTreePageId, Permissions)} is
+	 * called, or null if the tree has no root yet
+	 */
+	private BTreeLeafPage latchLeaf(TransactionId tid, HashMap<PageId, Page> dirtypages, Field f,
+			Permissions perm, ArrayList<BTreePageId> path) throws DbException, TransactionAbortedException {
+		while(true) {
+			BTreeRootPtrPage rootPtr;
+			try {
+				rootPtr = getRootPtrPage(tid, dirtypages);
+			} catch (IOException e) {
+				throw new DbException(e.toString());
+			}
+			// the parent latch is kept while the child is fetched, so that its version
+			// still tells whether the parent changed meanwhile
+			BTreePageId parentId = rootPtr.getId();
+			PageLatch parentLatch = latch(parentId);
+			try {
+				parentLatch.readLock().lock();
+				long parentVersion = parentLatch.version;
+				BTreePageId childId = rootPtr.getRootId();
+				if(path != null) {
+					path.clear();
+				}
+				while(true) {
+					if(childId == null) {
+						parentLatch.readLock().unlock();
+						return null;
+					}
+					Permissions childPerm = childId.pgcateg() == BTreePageId.LEAF ? perm : Permissions.READ_ONLY;
+					parentLatch.readLock().unlock();
+					Page child = getPage(tid, dirtypages, childId, childPerm);
+					parentLatch.readLock().lock();
+					if(parentLatch.version != parentVersion) {
+						parentLatch.readLock().unlock();
+						break;
+					}
+					PageLatch childLatch = latch(childId);
+					childLatch.lock(childPerm);
+					parentLatch.readLock().unlock();
+					if(path != null) {
+						path.add(childId);
+					}
+					if(childId.pgcateg() == BTreePageId.LEAF) {
+						return (BTreeLeafPage) child;
+					}
+					release(parentId);
+					parentId = childId;
+					parentLatch = childLatch;
+					parentVersion = childLatch.version;
+					try {
+						childId = childFor((BTreeInternalPage) child, f);
+					} catch (DbException e) {
+						parentLatch.readLock().unlock();
+						throw e;
+					}
+				}
+			} finally {
+				release(parentId);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of levels of this B+ tree, counting the leaves: 1 if
+	 * the root is a leaf, 0 if the tree is empty. Every leaf is at the same
+	 * depth, so only the left-most path is read.
+	 * 
+	 * @param tid - the transaction id
+	 */
+	public int height(TransactionId tid) throws DbException, TransactionAbortedException {
+		ArrayList<BTreePageId> path = new ArrayList<BTreePageId>();
+		BTreeLeafPage leaf = latchLeaf(tid, new HashMap<PageId, Page>(), null, Permissions.READ_ONLY, path);
+		if(leaf == null) {
+			return 0;
+		}
+		unlatch(leaf.getId(), Permissions.READ_ONLY);
+		return path.size();
+	}
+
+	/**
+	 * Returns the average number of children of the internal pages of this B+
+	 * tree, 0 if the root is a leaf or the tree is empty. Every internal page
+	 * is read, each under its own latch, so the average is only approximate
+	 * while the tree changes.
+	 *
+	 * @param tid - the transaction id
+	 */
+	public double fanout(TransactionId tid) throws DbException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, rootPtrId, Permissions.READ_ONLY);
+		LinkedList<BTreePageId> pending = new LinkedList<BTreePageId>();
+		PageLatch latch = latch(rootPtrId);
+		latch.readLock().lock();
+		BTreePageId rootId = rootPtr.getRootId();
+		unlatch(rootPtrId, Permissions.READ_ONLY);
+		if(rootId != null && rootId.pgcateg() == BTreePageId.INTERNAL) {
+			pending.add(rootId);
+		}
+		int pages = 0;
+		int children = 0;
+		while(!pending.isEmpty()) {
+			BTreePageId pid = pending.removeFirst();
+			BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			latch = latch(pid);
+			latch.readLock().lock();
+			try {
+				// the page may have been freed since its parent was read
+				if(page.getNumEntries() == 0) {
+					continue;
+				}
+				pages++;
+				children += page.getNumEntries() + 1;
+				if(page.getChildId(0).pgcateg() == BTreePageId.INTERNAL) {
+					Iterator<BTreeEntry> it = page.iterator();
+					pending.add(page.getChildId(0));
+					while(it.hasNext()) {
+						pending.add(it.next().getRightChild());
+					}
+				}
+			} finally {
+				unlatch(pid, Permissions.READ_ONLY);
+			}
+		}
+		return pages == 0 ? 0 : (double) children / pages;
 	}
 	
 	/**
@@ -230,7 +441,7 @@ public class BTreeFile implements DbFile {
 	 * @param page - the leaf page to split
 	 * @param field - the key field of the tuple to be inserted after the split is complete. Necessary to know
 	 * which of the two pages to return.
-	 * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePageId, Field)
+	 * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePage, Field)
 	 * 
 	 * @return the leaf page into which the new tuple should be inserted
 	 * @throws DbException
@@ -239,16 +450,43 @@ public class BTreeFile implements DbFile {
 	 */
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		int numMove = page.getNumTuplesToSplit();
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.reverseIterator();
+		while(moving.size() < numMove && it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page in to the right of the page
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the first key of the new page up into the parent, as much of it
+		// as tells it apart from the last key of the page
+		Field midKey = BTreeInternalPage.separator(page.reverseIterator().next().getField(keyField),
+				newPage.iterator().next().getField(keyField));
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page, midKey);
+		parent.insertEntry(new BTreeEntry(midKey, page.getId(), newPage.getId()));
+		updateParentPointer(tid, dirtypages, parent.getId(), page.getId());
+		updateParentPointer(tid, dirtypages, parent.getId(), newPage.getId());
+
+		if(field.compare(Op.GREATER_THAN_OR_EQ, midKey)) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -265,7 +503,7 @@ public class BTreeFile implements DbFile {
 	 * @param page - the internal page to split
 	 * @param field - the key field of the entry to be inserted after the split is complete. Necessary to know
 	 * which of the two pages to return.
-	 * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePageId, Field)
+	 * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePage, Field)
 	 * @see #updateParentPointers(TransactionId, HashMap, BTreeInternalPage)
 	 * 
 	 * @return the internal page into which the new entry should be inserted
@@ -276,16 +514,35 @@ public class BTreeFile implements DbFile {
 	protected BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, and take the
+		// entry before them out to push its key up
+		int numMove = page.getNumEntriesToSplit();
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		while(moving.size() <= numMove && it.hasNext()) {
+			moving.add(it.next());
+		}
+		BTreeEntry mid = moving.remove(moving.size() - 1);
+		for(BTreeEntry e : moving) {
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+		page.deleteKeyAndRightChild(mid);
+		updateParentPointers(tid, dirtypages, newPage);
+
+		// push the middle key up into the parent
+		Field midKey = mid.getKey();
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page, midKey);
+		parent.insertEntry(new BTreeEntry(midKey, page.getId(), newPage.getId()));
+		updateParentPointer(tid, dirtypages, parent.getId(), page.getId());
+		updateParentPointer(tid, dirtypages, parent.getId(), newPage.getId());
+
+		if(field.compare(Op.GREATER_THAN, midKey)) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -295,10 +552,12 @@ public class BTreeFile implements DbFile {
 	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param parentId - the id of the parent. May be an internal page or the RootPtr page
+	 * @param page - the page whose parent is wanted. Its parent may be an internal page or the RootPtr page
 	 * @param field - the key of the entry which will be inserted. Needed in case the parent must be split
 	 * to accommodate the new entry
-	 * @return the parent page, guaranteed to have at least one empty slot
+	 * @return the parent page, guaranteed to have at least one empty slot. If the parent was split,
+	 * this is the half holding the page, which need not be the half field belongs in when keys
+	 * equal to field are on both sides of the key pushed up
 	 * @see #splitInternalPage(TransactionId, HashMap, BTreeInternalPage, Field)
 	 * 
 	 * @throws DbException
@@ -306,7 +565,8 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	private BTreeInternalPage getParentWithEmptySlots(TransactionId tid, HashMap<PageId, Page> dirtypages, 
-			BTreePageId parentId, Field field) throws DbException, IOException, TransactionAbortedException {
+			BTreePage page, Field field) throws DbException, IOException, TransactionAbortedException {
+		BTreePageId parentId = page.getParentId();
 		
 		BTreeInternalPage parent = null;
 		
@@ -331,9 +591,12 @@ public class BTreeFile implements DbFile {
 					Permissions.READ_WRITE);
 		}
 
-		// split the parent if needed
-		if(parent.getNumEmptySlots() == 0) {
-			parent = splitInternalPage(tid, dirtypages, parent, field);
+		// split the parent if needed. The split updates the parent pointer of the page if
+		// it moves the page to the new half
+		if(parent.isFull()) {
+			splitInternalPage(tid, dirtypages, parent, field);
+			parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(),
+					Permissions.READ_WRITE);
 		}
 
 		return parent;
@@ -398,6 +661,10 @@ public class BTreeFile implements DbFile {
 	 * 
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
+	 * <p>
+	 * The pages of an insert or delete that latches pages are fetched through its
+	 * TreeOperation instead, which only fetches them from the buffer pool while it
+	 * holds no latch.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -411,6 +678,9 @@ public class BTreeFile implements DbFile {
 	 */
 	Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
 			throws DbException, TransactionAbortedException {
+		if(dirtypages instanceof PageAccess) {
+			return ((PageAccess) dirtypages).getPage(pid, perm);
+		}
 		if(dirtypages.containsKey(pid)) {
 			return dirtypages.get(pid);
 		}
@@ -426,40 +696,78 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
+	 * <p>
+	 * Only the leaf is latched if it has room for the tuple. Otherwise the path to it
+	 * is latched from the root pointer down, keeping the pages a split can spread to.
 	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to insert
-	 * @return a list of all pages that were dirtied by this operation. Could include
-	 * many pages since parent pointers will need to be updated when an internal node splits.
+	 * @return a list of the pages dirtied by this operation that the buffer pool no longer
+	 * holds. The others are marked dirty while they are latched, and are not returned since
+	 * another thread may have freed and reused them by the time the buffer pool caches them.
 	 * @see #splitLeafPage(TransactionId, HashMap, BTreeLeafPage, Field)
 	 */
-	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+	public ArrayList<Page> insertTuple(final TransactionId tid, final Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		final TreeOperation op = new TreeOperation(tid);
+		Field key = t.getField(keyField);
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		BTreeLeafPage leafPage = latchLeaf(tid, op, key, Permissions.READ_WRITE, null);
+		if(leafPage != null) {
+			try {
+				if(!leafPage.isFull()) {
+					leafPage.insertTuple(t);
+					op.markDirty(leafPage);
+					return op.dirtyPages();
+				}
+			} finally {
+				unlatch(leafPage.getId(), Permissions.READ_WRITE);
+			}
+		}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		// the leaf page has to be split, or the root has just been created
+		Change insert = new Change() {
+			public boolean make(HashMap<PageId, Page> dirtypages)
+					throws DbException, IOException, TransactionAbortedException {
+				insertIntoLeaf(tid, dirtypages, op.leafId, t);
+				return true;
+			}
+		};
+		try {
+			while(!(op.latchPath(key, null, null) && op.apply(insert))) {
+				// pages had to be fetched or another thread had to be waited for
+			}
+		} finally {
+			op.releaseAll();
+		}
+		return op.dirtyPages();
+	}
+
+	/**
+	 * Insert a tuple into a leaf page, splitting the page first if it is full.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param leafId - the left-most leaf page possibly containing the key field of t, or null
+	 * if the root has just been created
+	 * @param t - the tuple to insert
+	 */
+	private void insertIntoLeaf(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId leafId, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if(leafId == null) { // the root has just been created, so set the root pointer to point to it		
+			leafId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr.setRootId(leafId);
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
+		// split the leaf page if there are no more slots available
+		BTreeLeafPage leafPage = (BTreeLeafPage) getPage(tid, dirtypages, leafId, Permissions.READ_WRITE);
+		if(leafPage.isFull()) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
-
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
 	}
 	
 	/**
@@ -500,8 +808,17 @@ public class BTreeFile implements DbFile {
 					leftEntry = e;
 				}
 			}
+
+			// redistributing may lengthen the key in the parent, so split the
+			// parent first if it has no room for a longer key
+			if(!parent.hasRoomToUpdateKey()) {
+				BTreeEntry entry = (leftEntry != null ? leftEntry : rightEntry);
+				splitInternalPage(tid, dirtypages, parent, entry.getKey());
+				handleMinOccupancyPage(tid, dirtypages, page);
+				return;
+			}
 		}
-		
+
 		if(page.getId().pgcateg() == BTreePageId.LEAF) {
 			handleMinOccupancyLeafPage(tid, dirtypages, (BTreeLeafPage) page, parent, leftEntry, rightEntry);
 		}
@@ -536,12 +853,11 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some tuples from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(page.canMergeWith(leftSibling)) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
@@ -552,7 +868,7 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some tuples from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(page.canMergeWith(rightSibling)) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
@@ -576,11 +892,24 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		int numMove = page.getNumTuplesToSteal(sibling, isRightSibling);
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		while(moving.size() < numMove && it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the key in the parent separates the last key of the left-hand page
+		// from the first key of the right-hand page
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(BTreeInternalPage.separator(left.reverseIterator().next().getField(keyField),
+				right.iterator().next().getField(keyField)));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -610,12 +939,11 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
-		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(page.canMergeWith(leftSibling)) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
@@ -626,7 +954,7 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(page.canMergeWith(rightSibling)) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
@@ -656,11 +984,25 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int numMove = page.getNumEntriesToSteal(leftSibling, false);
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		while(moving.size() < numMove && it.hasNext()) {
+			moving.add(it.next());
+		}
+
+		// rotate the keys through the parent entry, right to left
+		Field key = parentEntry.getKey();
+		BTreePageId firstChild = page.iterator().next().getLeftChild();
+		for(BTreeEntry e : moving) {
+			leftSibling.deleteKeyAndRightChild(e);
+			page.insertEntry(new BTreeEntry(key, e.getRightChild(), firstChild));
+			key = e.getKey();
+			firstChild = e.getRightChild();
+		}
+		parentEntry.setKey(key);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -684,11 +1026,25 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int numMove = page.getNumEntriesToSteal(rightSibling, true);
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		while(moving.size() < numMove && it.hasNext()) {
+			moving.add(it.next());
+		}
+
+		// rotate the keys through the parent entry, left to right
+		Field key = parentEntry.getKey();
+		BTreePageId lastChild = page.reverseIterator().next().getRightChild();
+		for(BTreeEntry e : moving) {
+			rightSibling.deleteKeyAndLeftChild(e);
+			page.insertEntry(new BTreeEntry(key, lastChild, e.getLeftChild()));
+			key = e.getKey();
+			lastChild = e.getLeftChild();
+		}
+		parentEntry.setKey(key);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -713,12 +1069,26 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(leftPage.getId());
+		}
+		leftPage.setRightSiblingId(rightId);
+
+		freePage(tid, dirtypages, rightPage.getId());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -745,13 +1115,47 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		// pull the key down from the parent between the last child of the left
+		// page and the first child of the right page
+		BTreePageId lastChild = leftPage.reverseIterator().next().getRightChild();
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), lastChild, moving.get(0).getLeftChild()));
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		freePage(tid, dirtypages, rightPage.getId());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
+	}
+
+	/**
+	 * Make a page that is no longer part of the tree available for reuse, and drop
+	 * any cached copy of it so it is not written back over its next use.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the page to free
+	 * @see #setEmptyPage(TransactionId, HashMap, int)
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void freePage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, IOException, TransactionAbortedException {
+		if(dirtypages instanceof PageAccess) {
+			((PageAccess) dirtypages).freePage(pid);
+			return;
+		}
+		setEmptyPage(tid, dirtypages, pid.getPageNumber());
+		dirtypages.remove(pid);
+		Database.getBufferPool().discardPage(pid);
 	}
 	
 	/**
@@ -780,7 +1184,6 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
 		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
@@ -794,9 +1197,9 @@ public class BTreeFile implements DbFile {
 			rootPtr.setRootId(leftPage.getId());
 
 			// release the parent page for reuse
-			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
+			freePage(tid, dirtypages, parent.getId());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
+		else if(parent.isUnderfull()) { 
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -805,32 +1208,176 @@ public class BTreeFile implements DbFile {
 	 * Delete a tuple from this BTreeFile. 
 	 * May cause pages to merge or redistribute entries/tuples if the pages 
 	 * become less than half full.
+	 * <p>
+	 * The tuple is looked up by its key, since it may have moved to another page
+	 * since it was read. Its record id only chooses between equal tuples.
+	 * <p>
+	 * Only the leaf is latched if it stays at least half full. Otherwise the path to it
+	 * is latched from the root pointer down, keeping the pages a merge or redistribution
+	 * can spread to.
 	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to delete
-	 * @return a list of all pages that were dirtied by this operation. Could include
-	 * many pages since parent pointers will need to be updated when an internal node merges.
+	 * @return a list of the pages dirtied by this operation that the buffer pool no longer
+	 * holds, as for {@link #insertTuple(TransactionId, Tuple)}
 	 * @see #handleMinOccupancyPage(TransactionId, HashMap, BTreePage)
 	 */
-	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
+	public ArrayList<Page> deleteTuple(final TransactionId tid, final Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		RecordId rid = t.getRecordId();
+		if(rid == null)
+			throw new DbException("tried to delete tuple with null rid");
+		if(rid.getPageId().getTableId() != tableid)
+			throw new DbException("tried to delete tuple on invalid page or table");
+
+		final TreeOperation op = new TreeOperation(tid);
+		Change delete = new Change() {
+			public boolean make(HashMap<PageId, Page> dirtypages)
+					throws DbException, IOException, TransactionAbortedException {
+				return deleteFromLeaf(tid, dirtypages, op.leafId, t);
+			}
+		};
+		while(true) {
+			BTreeLeafPage page = latchLeafHolding(tid, op, t);
+			try {
+				Tuple stored = findTuple(page, t);
+				if(!page.isUnderfullWithout(stored) || page.getParentId().pgcateg() == BTreePageId.ROOT_PTR) {
+					page.deleteTuple(stored);
+					t.setRecordId(null);
+					op.markDirty(page);
+					return op.dirtyPages();
+				}
+			} finally {
+				unlatch(page.getId(), Permissions.READ_WRITE);
+			}
 
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
-				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
+			// pages have to be merged or redistributed. If the tuple moved meanwhile,
+			// look for it again
+			try {
+				if(op.latchPath(null, op.pathTo(page.getId()), t) && op.apply(delete)) {
+					break;
+				}
+			} finally {
+				op.releaseAll();
+			}
+		}
+		t.setRecordId(null);
+		op.releaseFreedPages();
+		return op.dirtyPages();
+	}
 
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
+	/**
+	 * Delete a tuple from a leaf page. If the page is below minimum occupancy
+	 * afterwards, get some tuples from its siblings or merge with one of them.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param leafId - the leaf page to delete the tuple from
+	 * @param t - the tuple to delete
+	 * @return false if the leaf page does not hold the tuple
+	 */
+	private boolean deleteFromLeaf(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId leafId, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, leafId, Permissions.READ_WRITE);
+		Tuple stored = findTuple(page, t);
+		if(stored == null) {
+			return false;
+		}
+		page.deleteTuple(stored);
+		if(page.isUnderfull()) { 
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
+		return true;
+	}
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+	/**
+	 * Find and latch exclusively the leaf page holding a tuple with the same fields as t.
+	 * Equal keys may span several leaves, so the leaves to the right of the left-most
+	 * one the key may be on are searched too, latching each before letting go of the
+	 * one to its left.
+	 * 
+	 * @param tid - the transaction id
+	 * @param op - the insert or delete the leaf page is fetched for
+	 * @param t - the tuple to look for
+	 * @return the leaf page, latched exclusively
+	 * @throws DbException if no leaf page holds the tuple
+	 */
+	private BTreeLeafPage latchLeafHolding(TransactionId tid, TreeOperation op, Tuple t)
+			throws DbException, TransactionAbortedException {
+		Field key = t.getField(keyField);
+		BTreeLeafPage page = latchLeaf(tid, op, key, Permissions.READ_WRITE, null);
+		while(page != null && findTuple(page, t) == null) {
+			Iterator<Tuple> it = page.reverseIterator();
+			BTreePageId nextId = page.getRightSiblingId();
+			boolean last = nextId == null || (it.hasNext() && it.next().getField(keyField).compare(Op.GREATER_THAN, key));
+			BTreePageId pid = page.getId();
+			PageLatch latch = latches.get(pid);
+			long version = latch.version;
+			latch.unlockExclusive();
+			try {
+				if(last) {
+					page = null;
+				}
+				else {
+					// fetch the right sibling while no latch is held, and move to it
+					// unless the page changed meanwhile
+					BTreeLeafPage next = (BTreeLeafPage) getPage(tid, op, nextId, Permissions.READ_WRITE);
+					latch.readLock().lock();
+					boolean unchanged = latch.version == version;
+					if(unchanged) {
+						latch(nextId).lockExclusive();
+					}
+					latch.readLock().unlock();
+					page = unchanged ? next : latchLeaf(tid, op, key, Permissions.READ_WRITE, null);
+				}
+			} finally {
+				release(pid);
+			}
+		}
+		if(page == null)
+			throw new DbException("tried to delete tuple that is not in this file");
+		return page;
+	}
+
+	/**
+	 * Find a tuple of a leaf page with the same fields as t, preferring the one at the
+	 * record id of t.
+	 * 
+	 * @param page - the leaf page to search
+	 * @param t - the tuple to look for
+	 * @return the matching tuple stored on the page, or null if there is none
+	 */
+	private static Tuple findTuple(BTreeLeafPage page, Tuple t) {
+		Tuple match = null;
+		Iterator<Tuple> it = page.iterator();
+		while(it.hasNext()) {
+			Tuple stored = it.next();
+			if(sameFields(stored, t)) {
+				if(stored.getRecordId().equals(t.getRecordId())) {
+					return stored;
+				}
+				if(match == null) {
+					match = stored;
+				}
+			}
+		}
+		return match;
+	}
+
+	/**
+	 * @return true if the two tuples have the same number of fields and equal fields
+	 */
+	static boolean sameFields(Tuple a, Tuple b) {
+		int n = a.getTupleDesc().numFields();
+		if(b.getTupleDesc().numFields() != n) {
+			return false;
+		}
+		for(int i = 0; i < n; i++) {
+			if(!a.getField(i).equals(b.getField(i))) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -908,19 +1455,26 @@ public class BTreeFile implements DbFile {
 		// at this point if headerId is null, either there are no header pages 
 		// or there are no free slots
 		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
-			}
+			emptyPageNo = appendEmptyPage();
 		}
 
 		return emptyPageNo; 
 	}
+
+	/**
+	 * Add an empty page to the end of this BTreeFile.
+	 * 
+	 * @return the page number of the new page
+	 */
+	private synchronized int appendEmptyPage() throws IOException {
+		// create the new page
+		BufferedOutputStream bw = new BufferedOutputStream(
+				new FileOutputStream(f, true));
+		byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+		bw.write(emptyData);
+		bw.close();
+		return numPages();
+	}
 	
 	/**
 	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
@@ -940,21 +1494,34 @@ public class BTreeFile implements DbFile {
 	 */
 	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
 			throws DbException, IOException, TransactionAbortedException {
+		if(dirtypages instanceof PageAccess) {
+			return ((PageAccess) dirtypages).getEmptyPage(pgcateg);
+		}
+
 		// create the new page
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
-		
+		wipePage(dirtypages, newPageId);
+		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Write an empty page to disk in place of a page about to be reused, and drop any
+	 * cached copy of it.
+	 * 
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the page
+	 */
+	private void wipePage(HashMap<PageId, Page> dirtypages, BTreePageId pid) throws IOException {
 		// write empty page to disk
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
+		rf.seek(BTreeRootPtrPage.getPageSize() + (pid.getPageNumber()-1) * BufferPool.getPageSize());
 		rf.write(BTreePage.createEmptyPageData());
 		rf.close();
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
-		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
-		
-		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+		Database.getBufferPool().discardPage(pid);
+		dirtypages.remove(pid);
 	}
 
 	/**
@@ -1013,7 +1580,7 @@ public class BTreeFile implements DbFile {
 
 		// iterate through all the existing header pages to find the one containing the slot
 		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() <= emptyPageNo) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
 			prevId = headerId;
 			headerId = headerPage.getNextPageId();
@@ -1023,17 +1590,21 @@ public class BTreeFile implements DbFile {
 		// at this point headerId should either be null or set with 
 		// the headerPage containing the slot corresponding to emptyPageNo.
 		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while(headerId == null) {
 			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
 			
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
 			headerPage.init();
 			headerPage.setPrevPageId(prevId);
-			prevPage.setNextPageId(headerId);
+			prevPage.setNextPageId(headerPage.getId());
 			
-			headerPageCount++;
-			prevId = headerId;
+			if((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() > emptyPageNo) {
+				headerId = headerPage.getId();
+			}
+			else {
+				headerPageCount++;
+				prevId = headerPage.getId();
+			}
 		}
 
 		// now headerId should be set with the headerPage containing the slot corresponding to 
@@ -1043,6 +1614,115 @@ public class BTreeFile implements DbFile {
 		headerPage.markSlotUsed(emptySlot, false);
 	}
 
+	/**
+	 * The tuples of a leaf page, and the right sibling the leaf had when they were
+	 * listed.
+	 * @see #readLeaf(TransactionId, Field)
+	 */
+	static class LeafSnapshot {
+		final ArrayList<Tuple> tuples;
+		final BTreePageId leafId;
+		final BTreePageId rightSiblingId;
+		/** the version of the latch of the leaf when it was read */
+		final long version;
+		/** true if the leaf was found again from the root instead of through its left sibling */
+		final boolean repositioned;
+
+		LeafSnapshot(ArrayList<Tuple> tuples, BTreePageId leafId, BTreePageId rightSiblingId,
+				long version, boolean repositioned) {
+			this.tuples = tuples;
+			this.leafId = leafId;
+			this.rightSiblingId = rightSiblingId;
+			this.version = version;
+			this.repositioned = repositioned;
+		}
+	}
+
+	/**
+	 * Read the tuples of the left-most leaf page possibly containing the key field f.
+	 * 
+	 * @param tid - the transaction id
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the tuples of the leaf page
+	 */
+	LeafSnapshot readLeaf(TransactionId tid, Field f) 
+			throws DbException, TransactionAbortedException {
+		return findLeaf(tid, f, false);
+	}
+
+	/**
+	 * Read the tuples of the leaf page after the one a snapshot was taken of. If that
+	 * leaf changed since, the right sibling it had then may have been merged away or
+	 * may no longer be next, so the left-most leaf page possibly containing f is read
+	 * instead and the caller has to skip the tuples it has seen.
+	 * 
+	 * @param tid - the transaction id
+	 * @param prev - the snapshot of the previous leaf page
+	 * @param f - the key field of the last tuple read from prev (or before it)
+	 * @return the tuples of the next leaf page, or null if prev was the last one
+	 */
+	LeafSnapshot readNextLeaf(TransactionId tid, LeafSnapshot prev, Field f) 
+			throws DbException, TransactionAbortedException {
+		if(prev.leafId == null) {
+			return null;
+		}
+		// fetch the right sibling while no latch is held
+		BTreeLeafPage next = null;
+		if(prev.rightSiblingId != null) {
+			next = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+					prev.rightSiblingId, Permissions.READ_ONLY);
+		}
+		// the latch of prev may have been dropped and made again since, with a later
+		// version, in which case prev is taken to have changed
+		PageLatch prevLatch = latch(prev.leafId);
+		prevLatch.readLock().lock();
+		try {
+			if(prevLatch.version == prev.version) {
+				if(next == null) {
+					return null;
+				}
+				latch(next.getId()).readLock().lock();
+				try {
+					return snapshot(next, false);
+				} finally {
+					unlatch(next.getId(), Permissions.READ_ONLY);
+				}
+			}
+		} finally {
+			unlatch(prev.leafId, Permissions.READ_ONLY);
+		}
+		return findLeaf(tid, f, true);
+	}
+
+	/**
+	 * Find and read a leaf page.
+	 */
+	private LeafSnapshot findLeaf(TransactionId tid, Field f, boolean repositioned) 
+			throws DbException, TransactionAbortedException {
+		BTreeLeafPage leaf = latchLeaf(tid, new HashMap<PageId, Page>(), f, Permissions.READ_ONLY, null);
+		if(leaf == null) {
+			return new LeafSnapshot(new ArrayList<Tuple>(), null, null, 0, repositioned);
+		}
+		try {
+			return snapshot(leaf, repositioned);
+		} finally {
+			unlatch(leaf.getId(), Permissions.READ_ONLY);
+		}
+	}
+
+	/**
+	 * List the tuples of a leaf page, which the caller has latched.
+	 */
+	private LeafSnapshot snapshot(BTreeLeafPage leaf, boolean repositioned) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>(leaf.getNumTuples());
+		Iterator<Tuple> it = leaf.iterator();
+		while(it.hasNext()) {
+			tuples.add(it.next());
+		}
+		return new LeafSnapshot(tuples, leaf.getId(), leaf.getRightSiblingId(),
+				latches.get(leaf.getId()).version, repositioned);
+	}
+
 	/**
 	 * get the specified tuples from the file based on its IndexPredicate value on
 	 * behalf of the specified transaction. This method will acquire a read lock on
@@ -1069,19 +1749,740 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	// see DbFile.java for javadocs
+	public DbFileIterator iterator(TransactionId tid, int[] fields, Predicate[] predicates) {
+		return new FilteredDbFileIterator(iterator(tid), td, fields, predicates);
+	}
+
+	/**
+	 * A latch on one page of this file, held only while the page is used. Its version
+	 * is advanced whenever it is taken exclusively, so a thread that read the page and
+	 * let go of the latch can tell later whether the page may have changed since. The
+	 * latch is dropped once no thread uses it, and versions are drawn from one counter
+	 * for the whole file, so a latch made again for the page starts at a version at
+	 * least as late as any the page had before.
+	 */
+	private class PageLatch extends ReentrantReadWriteLock {
+		private static final long serialVersionUID = 1L;
+
+		/** only changed by the thread holding the latch exclusively */
+		private volatile long version = versions.get();
+		/** the threads that took the latch through latch(BTreePageId) and have not
+		 * released it yet, only changed while the map entry of the page is computed */
+		private int users = 0;
+
+		void lockExclusive() {
+			writeLock().lock();
+			version = versions.incrementAndGet();
+		}
+
+		boolean tryLockExclusive() {
+			if(!writeLock().tryLock()) {
+				return false;
+			}
+			version = versions.incrementAndGet();
+			return true;
+		}
+
+		void unlockExclusive() {
+			writeLock().unlock();
+		}
+
+		/**
+		 * Take the latch exclusively if perm is READ_WRITE, and shared otherwise.
+		 */
+		void lock(Permissions perm) {
+			if(perm == Permissions.READ_WRITE) {
+				lockExclusive();
+			}
+			else {
+				readLock().lock();
+			}
+		}
+	}
+
+	/** Adds a user to the latch of a page, making the latch if there is none */
+	private final BiFunction<BTreePageId, PageLatch, PageLatch> addUser =
+			new BiFunction<BTreePageId, PageLatch, PageLatch>() {
+		public PageLatch apply(BTreePageId pid, PageLatch latch) {
+			if(latch == null) {
+				latch = new PageLatch();
+			}
+			latch.users++;
+			return latch;
+		}
+	};
+
+	/** Removes a user from the latch of a page, dropping the latch if it was the last */
+	private final BiFunction<BTreePageId, PageLatch, PageLatch> removeUser =
+			new BiFunction<BTreePageId, PageLatch, PageLatch>() {
+		public PageLatch apply(BTreePageId pid, PageLatch latch) {
+			latch.users--;
+			return latch.users == 0 ? null : latch;
+		}
+	};
+
+	/**
+	 * Returns the latch of a page of this file, which is kept for the caller until it
+	 * calls {@link #release(BTreePageId)}, whether it holds the latch meanwhile or not.
+	 */
+	private PageLatch latch(BTreePageId pid) {
+		return latches.compute(pid, addUser);
+	}
+
+	/**
+	 * Let the latch of a page be dropped once no other thread uses it. The caller must
+	 * not hold it any more.
+	 */
+	private void release(BTreePageId pid) {
+		latches.compute(pid, removeUser);
+	}
+
+	/**
+	 * Let go of and release the latch of a page, taken with the given permissions.
+	 */
+	private void unlatch(BTreePageId pid, Permissions perm) {
+		PageLatch latch = latches.get(pid);
+		if(perm == Permissions.READ_WRITE) {
+			latch.unlockExclusive();
+		}
+		else {
+			latch.readLock().unlock();
+		}
+		release(pid);
+	}
+
+	/**
+	 * Wait until no other thread holds the latch of a page.
+	 */
+	private void waitFor(BTreePageId pid) {
+		PageLatch latch = latch(pid);
+		latch.writeLock().lock();
+		latch.writeLock().unlock();
+		release(pid);
+	}
+
+	/**
+	 * Returns true if inserting a tuple below a page cannot change the pages above it:
+	 * if the page has room for another tuple or entry.
+	 */
+	private static boolean insertStaysWithin(BTreePage page) {
+		if(page instanceof BTreeLeafPage) {
+			return !((BTreeLeafPage) page).isFull();
+		}
+		return !((BTreeInternalPage) page).isFull();
+	}
+
+	/**
+	 * Returns true if deleting t from or below a page cannot change the pages above it:
+	 * if the page stays at least half full whichever tuple or entry it loses, and has
+	 * room for a longer key. The root only has to keep one entry.
+	 */
+	private static boolean deleteStaysWithin(BTreePage page, Tuple t) {
+		boolean root = page.getParentId().pgcateg() == BTreePageId.ROOT_PTR;
+		if(page instanceof BTreeLeafPage) {
+			Tuple stored = findTuple((BTreeLeafPage) page, t);
+			return root || stored == null || !((BTreeLeafPage) page).isUnderfullWithout(stored);
+		}
+		BTreeInternalPage internal = (BTreeInternalPage) page;
+		if(!internal.hasRoomToUpdateKey()) {
+			return false;
+		}
+		return root ? internal.getNumEntries() > 1 : !internal.isUnderfullWithoutAnEntry();
+	}
+
+	/**
+	 * A change to this B+ tree made by {@link TreeOperation#apply(Change)}.
+	 */
+	private interface Change {
+		/**
+		 * Make the change, fetching its pages through dirtypages.
+		 * @return false if the change cannot be made on the pages latched
+		 */
+		boolean make(HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException;
+	}
+
+	/**
+	 * The pages used by an insert or delete that latches pages, passed as the dirtypages
+	 * of the methods above. They fetch, create and free pages through it.
+	 */
+	private abstract class PageAccess extends HashMap<PageId, Page> {
+		private static final long serialVersionUID = 1L;
+
+		abstract Page getPage(BTreePageId pid, Permissions perm) throws DbException, TransactionAbortedException;
+
+		abstract Page getEmptyPage(int pgcateg) throws DbException, IOException, TransactionAbortedException;
+
+		abstract void freePage(BTreePageId pid);
+	}
+
+	/**
+	 * The pages of one insert or delete. While it holds no latch, pages are fetched from
+	 * the BufferPool as they are asked for. While it does, they are only taken from those
+	 * fetched before, so no latch is held while the BufferPool waits for a lock; a change
+	 * is rehearsed first to find the pages it needs (see {@link #apply(Change)}).
+	 */
+	private class TreeOperation extends PageAccess {
+		private static final long serialVersionUID = 1L;
+
+		private final TransactionId tid;
+		/** The pages fetched so far */
+		private final HashMap<PageId, Page> fetched = new HashMap<PageId, Page>();
+		/** The ids of those fetched with READ_WRITE permission */
+		private final HashSet<PageId> writable = new HashSet<PageId>();
+		/** The pages latched exclusively, from the top down */
+		private final ArrayList<BTreePageId> held = new ArrayList<BTreePageId>();
+		/** The pages freed, made available for reuse once the tree is no longer latched */
+		private final ArrayList<BTreePageId> freed = new ArrayList<BTreePageId>();
+		/** The pages changed under the latches held, not marked dirty yet */
+		private final HashMap<PageId, Page> changed = new HashMap<PageId, Page>();
+		/** The pages changed that the BufferPool no longer held when they were marked dirty */
+		private final HashMap<PageId, Page> uncached = new HashMap<PageId, Page>();
+		/** True while pages may only be taken from those fetched */
+		private boolean latched = false;
+		/** The leaf page the latched path ends at, or null if the root has just been created */
+		private BTreePageId leafId;
+
+		TreeOperation(TransactionId tid) {
+			this.tid = tid;
+		}
+
+		/**
+		 * Returns the page fetched as pid, replaced by the copy in the BufferPool if it
+		 * has read the page again since, or null if it has not been fetched.
+		 */
+		private Page current(PageId pid) {
+			Page p = fetched.get(pid);
+			Page cached = Database.getBufferPool().getCachedPage(pid);
+			if(p != null && cached != null && cached != p) {
+				p = cached;
+				fetched.put(pid, p);
+				if(containsKey(pid)) {
+					put(pid, p);
+				}
+			}
+			return p;
+		}
+
+		Page getPage(BTreePageId pid, Permissions perm) throws DbException, TransactionAbortedException {
+			Page p = current(pid);
+			if(p == null || (perm == Permissions.READ_WRITE && !writable.contains(pid))) {
+				if(latched) {
+					throw new DbException("page " + pid + " was not fetched before latching");
+				}
+				p = Database.getBufferPool().getPage(tid, pid, perm);
+				fetched.put(pid, p);
+				if(perm == Permissions.READ_WRITE) {
+					writable.add(pid);
+				}
+			}
+			if(perm == Permissions.READ_WRITE) {
+				put(pid, p);
+				if(latched) {
+					changed.put(pid, p);
+				}
+			}
+			return p;
+		}
+
+		/**
+		 * Take a page from the free list, or add one to the end of the file if the header
+		 * pages have not all been fetched. This is the one page fetched while latches are
+		 * held: it is not part of the tree, so only a transaction that read it before it
+		 * was freed may still hold a lock on it.
+		 */
+		Page getEmptyPage(int pgcateg) throws DbException, IOException, TransactionAbortedException {
+			int emptyPageNo;
+			headerLatch.lock();
+			try {
+				emptyPageNo = headersFetched(false) ? getEmptyPageNo(tid, this) : appendEmptyPage();
+			} finally {
+				headerLatch.unlock();
+			}
+			BTreePageId pid = new BTreePageId(tableid, emptyPageNo, pgcateg);
+			wipePage(this, pid);
+			Page p = Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+			fetched.put(pid, p);
+			writable.add(pid);
+			put(pid, p);
+			changed.put(pid, p);
+			return p;
+		}
+
+		/**
+		 * The page is made available for reuse by {@link #releaseFreedPages()}, once the
+		 * tree is no longer latched.
+		 */
+		void freePage(BTreePageId pid) {
+			freed.add(pid);
+			fetched.remove(pid);
+			writable.remove(pid);
+			changed.remove(pid);
+			remove(pid);
+			Database.getBufferPool().discardPage(pid);
+		}
+
+		/**
+		 * Latch exclusively the pages an insert or delete may change on the way down from
+		 * the root pointer to its leaf, letting go of those above a page the change cannot
+		 * spread past. An insert follows the key of its tuple, a delete a path found before.
+		 * 
+		 * @param key - the key field of the tuple to insert
+		 * @param path - the pages from the root down to the leaf holding the tuple to delete,
+		 * or null for an insert
+		 * @param deleting - the tuple to delete, or null for an insert
+		 * @return false if the latches were let go because a page had to be fetched first,
+		 * or if the path is no longer one of the tree
+		 */
+		boolean latchPath(Field key, ArrayList<BTreePageId> path, Tuple deleting)
+				throws DbException, IOException, TransactionAbortedException {
+			BTreePageId rootPtrId = getRootPtrPage(tid, this).getId();
+			hold(rootPtrId);
+			BTreePageId pid = ((BTreeRootPtrPage) current(rootPtrId)).getRootId();
+			if(path != null && (pid == null || !pid.equals(path.get(0)))) {
+				releaseAll();
+				return false;
+			}
+			for(int depth = 0; pid != null; depth++) {
+				if(current(pid) == null) {
+					// fetch the page while no latch is held, and start over
+					releaseAll();
+					getPage(pid, pid.pgcateg() == BTreePageId.LEAF ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+					return false;
+				}
+				hold(pid);
+				BTreePage page = (BTreePage) current(pid);
+				if(deleting == null ? insertStaysWithin(page) : deleteStaysWithin(page, deleting)) {
+					releaseAbove();
+				}
+				if(pid.pgcateg() == BTreePageId.LEAF) {
+					break;
+				}
+				BTreeInternalPage internal = (BTreeInternalPage) page;
+				if(path == null) {
+					pid = childFor(internal, key);
+				}
+				else if(depth + 1 < path.size() && isChild(internal, path.get(depth + 1))) {
+					pid = path.get(depth + 1);
+				}
+				else {
+					releaseAll();
+					return false;
+				}
+			}
+			leafId = pid;
+			return true;
+		}
+
+		/**
+		 * Returns the ids of the pages from the root down to a page, following parent
+		 * pointers up from it. They may be out of date, since no latch is held.
+		 */
+		ArrayList<BTreePageId> pathTo(BTreePageId pid) throws DbException, TransactionAbortedException {
+			ArrayList<BTreePageId> path = new ArrayList<BTreePageId>();
+			while(pid.pgcateg() != BTreePageId.ROOT_PTR && !path.contains(pid)) {
+				path.add(0, pid);
+				pid = ((BTreePage) getPage(pid, Permissions.READ_ONLY)).getParentId();
+			}
+			return path;
+		}
+
+		/**
+		 * Make a change with the path to its leaf latched. It is rehearsed first on copies
+		 * of the pages it uses, to latch the other pages it changes and to find those not
+		 * fetched yet, which are fetched after letting go of the latches.
+		 * 
+		 * @return false if the latches were let go before the change was made
+		 */
+		boolean apply(Change change) throws DbException, IOException, TransactionAbortedException {
+			while(true) {
+				Rehearsal rehearsal = new Rehearsal(this);
+				boolean possible;
+				try {
+					possible = change.make(rehearsal);
+				} catch (DbException e) {
+					if(!rehearsal.interrupted()) {
+						throw e;
+					}
+					possible = true;
+				} catch (RuntimeException e) {
+					if(!rehearsal.interrupted()) {
+						throw e;
+					}
+					possible = true;
+				}
+				if(rehearsal.busy != null) {
+					releaseAll();
+					waitFor(rehearsal.busy);
+					return false;
+				}
+				if(!rehearsal.missing.isEmpty()) {
+					releaseAll();
+					for(Map.Entry<BTreePageId, Permissions> e : rehearsal.missing.entrySet()) {
+						getPage(e.getKey(), e.getValue());
+					}
+					return false;
+				}
+				if(!possible) {
+					releaseAll();
+					return false;
+				}
+
+				// latch the other pages the change writes. They may be above or beside the
+				// path, so the latches are only tried for, and the change is rehearsed again
+				// since the pages may have changed before they were latched
+				boolean latchedMore = false;
+				for(BTreePageId pid : rehearsal.written) {
+					if(!held.contains(pid)) {
+						if(!latch(pid).tryLockExclusive()) {
+							release(pid);
+							releaseAll();
+							waitFor(pid);
+							return false;
+						}
+						held.add(pid);
+						latchedMore = true;
+					}
+				}
+				if(latchedMore) {
+					continue;
+				}
+				if(rehearsal.allocated > 0 && !headersFetched(false)) {
+					releaseAll();
+					fetchHeaders(false);
+					return false;
+				}
+				change.make(this);
+				markDirty();
+				return true;
+			}
+		}
+
+		private void hold(BTreePageId pid) {
+			latch(pid).lockExclusive();
+			held.add(pid);
+			latched = true;
+		}
+
+		/**
+		 * Let go of the pages latched before the last one.
+		 */
+		private void releaseAbove() {
+			BTreePageId last = held.remove(held.size() - 1);
+			for(BTreePageId pid : held) {
+				unlatch(pid, Permissions.READ_WRITE);
+			}
+			held.clear();
+			held.add(last);
+		}
+
+		void releaseAll() {
+			for(BTreePageId pid : held) {
+				unlatch(pid, Permissions.READ_WRITE);
+			}
+			held.clear();
+			latched = false;
+		}
+
+		/**
+		 * Returns true if the header pages have all been fetched with READ_WRITE permission,
+		 * and the root pointer page too if there are none and rootPtrWritable is set, so
+		 * that pages can be taken from or returned to the free list.
+		 */
+		private boolean headersFetched(boolean rootPtrWritable) {
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) current(rootPtrId);
+			if(rootPtr == null) {
+				return false;
+			}
+			BTreePageId headerId = rootPtr.getHeaderId();
+			if(headerId == null) {
+				return !rootPtrWritable || writable.contains(rootPtrId);
+			}
+			while(headerId != null) {
+				BTreeHeaderPage header = (BTreeHeaderPage) current(headerId);
+				if(header == null || !writable.contains(headerId)) {
+					return false;
+				}
+				headerId = header.getNextPageId();
+			}
+			return true;
+		}
+
+		/**
+		 * Fetch the header pages with READ_WRITE permission, and the root pointer page too
+		 * if there are none and rootPtrWritable is set.
+		 */
+		private void fetchHeaders(boolean rootPtrWritable)
+				throws DbException, IOException, TransactionAbortedException {
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, this);
+			BTreePageId headerId = rootPtr.getHeaderId();
+			if(headerId == null && rootPtrWritable) {
+				getPage(rootPtr.getId(), Permissions.READ_WRITE);
+			}
+			while(headerId != null) {
+				headerId = ((BTreeHeaderPage) getPage(headerId, Permissions.READ_WRITE)).getNextPageId();
+			}
+		}
+
+		/**
+		 * Make the pages freed available for reuse. The tree is no longer latched, so the
+		 * header pages are fetched as needed before the header latch is taken.
+		 */
+		void releaseFreedPages() throws DbException, IOException, TransactionAbortedException {
+			while(!freed.isEmpty()) {
+				headerLatch.lock();
+				latched = true;
+				try {
+					if(headersFetched(true)) {
+						for(BTreePageId pid : freed) {
+							setEmptyPage(tid, this, pid.getPageNumber());
+						}
+						freed.clear();
+						markDirty();
+					}
+				} finally {
+					latched = false;
+					headerLatch.unlock();
+				}
+				if(!freed.isEmpty()) {
+					fetchHeaders(true);
+				}
+			}
+		}
+
+		/**
+		 * Mark the pages changed dirty, before the latches they were changed under are let
+		 * go, and keep those the BufferPool no longer holds to be returned to it.
+		 * @param pages - pages changed that were fetched before they were latched
+		 */
+		void markDirty(Page... pages) {
+			for(Page p : pages) {
+				changed.put(p.getId(), p);
+			}
+			for(Page p : changed.values()) {
+				p.markDirty(true, tid);
+				if(Database.getBufferPool().getCachedPage(p.getId()) != p) {
+					uncached.put(p.getId(), p);
+				}
+			}
+			changed.clear();
+		}
+
+		/**
+		 * Returns the pages changed that the BufferPool no longer held when they were marked
+		 * dirty.
+		 */
+		ArrayList<Page> dirtyPages() {
+			return new ArrayList<Page>(uncached.values());
+		}
+	}
+
+	/**
+	 * A rehearsal of a change on copies of the pages of a TreeOperation, which finds the
+	 * pages the change reads and writes before any of them is changed. New pages are
+	 * numbered below zero and not written to disk, and freed pages are kept.
+	 */
+	private class Rehearsal extends PageAccess {
+		private static final long serialVersionUID = 1L;
+
+		private final TreeOperation op;
+		/** Copies of the pages used */
+		private final HashMap<PageId, Page> copies = new HashMap<PageId, Page>();
+		/** The pages written, other than new ones */
+		private final HashSet<BTreePageId> written = new HashSet<BTreePageId>();
+		/** The pages used that the operation has not fetched with the permissions needed */
+		private final HashMap<BTreePageId, Permissions> missing = new HashMap<BTreePageId, Permissions>();
+		/** A page that could not be copied because another thread had it latched */
+		private BTreePageId busy = null;
+		/** The number of new pages */
+		private int allocated = 0;
+
+		Rehearsal(TreeOperation op) {
+			this.op = op;
+		}
+
+		/**
+		 * Returns true if the change may have failed because it read pages that were not
+		 * fetched or latched.
+		 */
+		boolean interrupted() {
+			if(busy != null || !missing.isEmpty()) {
+				return true;
+			}
+			for(BTreePageId pid : written) {
+				if(!op.held.contains(pid)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		Page getPage(BTreePageId pid, Permissions perm) throws DbException {
+			Page p = copies.get(pid);
+			if(p == null) {
+				p = copy(pid);
+				copies.put(pid, p);
+			}
+			if(pid.getPageNumber() >= 0) {
+				if(op.current(pid) == null || (perm == Permissions.READ_WRITE && !op.writable.contains(pid))) {
+					if(missing.get(pid) != Permissions.READ_WRITE) {
+						missing.put(pid, perm);
+					}
+				}
+				if(perm == Permissions.READ_WRITE) {
+					written.add(pid);
+				}
+			}
+			if(perm == Permissions.READ_WRITE) {
+				put(pid, p);
+			}
+			return p;
+		}
+
+		/**
+		 * Copy a page as the operation fetched it, or else as the BufferPool or the disk
+		 * has it, under its latch.
+		 */
+		private Page copy(BTreePageId pid) throws DbException {
+			Page source = op.current(pid);
+			if(source == null) {
+				source = Database.getBufferPool().getCachedPage(pid);
+			}
+			if(source == null) {
+				source = readPage(pid);
+			}
+			PageLatch latch = latch(pid);
+			if(!latch.readLock().tryLock()) {
+				release(pid);
+				busy = pid;
+				throw new DbException("page " + pid + " is latched by another thread");
+			}
+			try {
+				return pageOf(pid, source.getPageData());
+			} catch (IOException e) {
+				throw new DbException(e.toString());
+			} finally {
+				unlatch(pid, Permissions.READ_ONLY);
+			}
+		}
+
+		Page getEmptyPage(int pgcateg) throws DbException, IOException {
+			BTreePageId pid = new BTreePageId(tableid, -(++allocated), pgcateg);
+			Page p = pageOf(pid, BTreePage.createEmptyPageData());
+			copies.put(pid, p);
+			put(pid, p);
+			return p;
+		}
+
+		void freePage(BTreePageId pid) {
+			remove(pid);
+		}
+	}
+
 }
 
 /**
- * Helper class that implements the Java Iterator for tuples on a BTreeFile
+ * Helper class for iterating over the tuples of a BTreeFile in key order, one
+ * leaf page at a time.
+ * @see BTreeFile#readLeaf(TransactionId, Field)
+ * @see BTreeFile#readNextLeaf(TransactionId, BTreeFile.LeafSnapshot, Field)
  */
-class BTreeFileIterator extends AbstractDbFileIterator {
-
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+abstract class BTreeLeafIterator extends AbstractDbFileIterator {
 
 	TransactionId tid;
 	BTreeFile f;
 
+	private BTreeFile.LeafSnapshot leaf = null;
+	private Iterator<Tuple> it = null;
+	private Field startKey = null;
+	// the key of the last tuple read, and the tuples read with that key
+	private Field lastKey = null;
+	private final ArrayList<Tuple> lastKeyTuples = new ArrayList<Tuple>();
+	// after the next leaf was found again from the root, the tuples read with
+	// lastKey which are still to be skipped, or null if not skipping
+	private ArrayList<Tuple> skipping = null;
+
+	/**
+	 * Start reading at the left-most leaf page possibly containing key, or at the
+	 * left-most leaf page if key is null
+	 */
+	void openAt(Field key) throws DbException, TransactionAbortedException {
+		startKey = key;
+		lastKey = null;
+		lastKeyTuples.clear();
+		skipping = null;
+		startLeaf(f.readLeaf(tid, key));
+	}
+
+	private void startLeaf(BTreeFile.LeafSnapshot next) {
+		leaf = next;
+		it = next == null ? null : next.tuples.iterator();
+		if(next != null && next.repositioned && lastKey != null) {
+			skipping = new ArrayList<Tuple>(lastKeyTuples);
+		}
+	}
+
+	/**
+	 * Read the next tuple in key order, following the right sibling pointers.
+	 * 
+	 * @return the next tuple, or null if none exists
+	 */
+	Tuple readNextInKeyOrder() throws DbException, TransactionAbortedException {
+		while(leaf != null) {
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				Field key = t.getField(f.keyField());
+				if(skipping != null) {
+					if(key.compare(Op.LESS_THAN, lastKey)) {
+						continue;
+					}
+					if(key.compare(Op.GREATER_THAN, lastKey)) {
+						skipping = null;
+					}
+					else if(removeSame(skipping, t)) {
+						continue;
+					}
+				}
+				if(lastKey == null || !key.compare(Op.EQUALS, lastKey)) {
+					lastKey = key;
+					lastKeyTuples.clear();
+				}
+				lastKeyTuples.add(t);
+				return t;
+			}
+			startLeaf(f.readNextLeaf(tid, leaf, lastKey != null ? lastKey : startKey));
+		}
+		return null;
+	}
+
+	private static boolean removeSame(ArrayList<Tuple> tuples, Tuple t) {
+		for(int i = 0; i < tuples.size(); i++) {
+			if(BTreeFile.sameFields(tuples.get(i), t)) {
+				tuples.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stop reading leaf pages
+	 */
+	void closeLeaves() {
+		leaf = null;
+		it = null;
+		lastKey = null;
+		lastKeyTuples.clear();
+		skipping = null;
+	}
+}
+
+/**
+ * Helper class that implements the Java Iterator for tuples on a BTreeFile
+ */
+class BTreeFileIterator extends BTreeLeafIterator {
+
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
@@ -1096,11 +2497,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		openAt(null);
 	}
 
 	/**
@@ -1111,26 +2508,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException {
-		if (it != null && !it.hasNext())
-			it = null;
-
-		while (it == null && curp != null) {
-			BTreePageId nextp = curp.getRightSiblingId();
-			if(nextp == null) {
-				curp = null;
-			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
-				if (!it.hasNext())
-					it = null;
-			}
-		}
-
-		if (it == null)
-			return null;
-		return it.next();
+		return readNextInKeyOrder();
 	}
 
 	/**
@@ -1146,8 +2524,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
-		it = null;
-		curp = null;
+		closeLeaves();
 	}
 }
 
@@ -1155,13 +2532,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
  * Helper class that implements the DbFileIterator for search tuples on a
  * B+ Tree File
  */
-class BTreeSearchIterator extends AbstractDbFileIterator {
+class BTreeSearchIterator extends BTreeLeafIterator {
 
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
-
-	TransactionId tid;
-	BTreeFile f;
 	IndexPredicate ipred;
 
 	/**
@@ -1181,17 +2553,13 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			openAt(ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			openAt(null);
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1203,35 +2571,23 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
-		while (it != null) {
-
-			while (it.hasNext()) {
-				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
-				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
-					return null;
-				}
+		Tuple t;
+		while ((t = readNextInKeyOrder()) != null) {
+			if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				return t;
 			}
-
-			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
-			if(nextp == null) {
+			else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+				// if the predicate was not satisfied and the operation is less than, we have
+				// hit the end
+				closeLeaves();
 				return null;
 			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+			else if(ipred.getOp() == Op.EQUALS && 
+					t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+				// if the tuple is now greater than the field passed in and the operation
+				// is equals, we have reached the end
+				closeLeaves();
+				return null;
 			}
 		}
 
@@ -1251,6 +2607,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
-		it = null;
+		closeLeaves();
 	}
 }
@@ -181,7 +181,8 @@ public class BTreeFileEncoder {
 	}
 
 	/** 
-	 * Faster method to encode the B+ tree file
+	 * Faster method to encode the B+ tree file. All tuples are sorted in
+	 * memory; see {@link BTreeBulkLoader} for inputs which do not fit.
 	 * 
 	 * @param inFile - the file containing the raw data
 	 * @param hFile - the data file for the HeapFile to be used as an intermediate conversion step
@@ -232,6 +233,11 @@ public class BTreeFileEncoder {
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		if(BTreePage.compressesKeys(keyType)) {
+			// as many as fit with keys of any length
+			nrecords = BTreeLeafPage.getTuplesPerPage(new TupleDesc(typeAr), keyField);
+			nentries = BTreeInternalPage.getEntriesPerPage(keyType);
+		}
 
 		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
 
@@ -493,7 +499,9 @@ public class BTreeFileEncoder {
 	}
 
 	/**
-	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage.
+	 * Pages with compressed keys (see {@link BTreePage#compressesKeys}) take the
+	 * page size of the BufferPool.
 	 * 
 	 * @param tuples - the set of tuples
 	 * @param npagebytes - number of bytes per page
@@ -506,6 +514,13 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
 			int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		if(BTreePage.compressesKeys(typeAr[keyField])) {
+			TupleDesc td = new TupleDesc(typeAr);
+			Collections.sort(tuples, new TupleComparator(keyField));
+			int recordcount = Math.min(tuples.size(), BTreeLeafPage.getTuplesPerPage(td, keyField));
+			return BTreeLeafPage.createCompressedPageData(td, keyField, tuples.subList(0, recordcount));
+		}
+
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
@@ -612,7 +627,9 @@ public class BTreeFileEncoder {
 	}
 
 	/**
-	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage.
+	 * Pages with compressed keys (see {@link BTreePage#compressesKeys}) take the
+	 * page size of the BufferPool.
 	 * 
 	 * @param entries - the set of entries
 	 * @param npagebytes - number of bytes per page
@@ -624,6 +641,19 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		if(BTreePage.compressesKeys(keyType)) {
+			Collections.sort(entries, new EntryComparator());
+			int entrycount = Math.min(entries.size(), BTreeInternalPage.getEntriesPerPage(keyType));
+			ArrayList<Field> keys = new ArrayList<Field>();
+			ArrayList<Integer> children = new ArrayList<Integer>();
+			children.add(entries.get(0).getLeftChild().getPageNumber());
+			for(int e = 0; e < entrycount; e++) {
+				keys.add(entries.get(e).getKey());
+				children.add(entries.get(e).getRightChild().getPageNumber());
+			}
+			return BTreeInternalPage.createCompressedPageData(keyType, childPageCategory, keys, children);
+		}
+
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
@@ -14,6 +14,10 @@ import simpledb.Predicate.Op;
  *
  */
 public class BTreeInternalPage extends BTreePage {
+	/** Bytes of a compressed entry besides the characters of its key: the child
+	 *  pointer and the length of the key */
+	private static final int COMPRESSED_ENTRY_OVERHEAD = INDEX_SIZE + 2;
+
 	private final byte header[];
 	private final Field keys[];
 	private final int children[];
@@ -37,7 +41,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			assert(!isUnderfull());
 		}
 	}
 	
@@ -57,6 +61,14 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * When keys are compressed (see {@link BTreePage#compressesKeys}), the header
+	 * is followed by the first child pointer, then the entries in use in slot
+	 * order, each as its right child pointer, the length of its key and the
+	 * characters of its key. Separator keys are truncated to the shortest prefix
+	 * that tells the pages on either side apart (see {@link #separator}). The
+	 * number of slots then assumes empty keys, and the page is full once its
+	 * entries take up its bytes.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -87,24 +99,29 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
-		try{
-			// allocate and read the keys of this page
-			// start from 1 because the first key slot is not used
-			// since a node with m keys has m+1 pointers
-			keys[0] = null;
-			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		children = new int[numSlots];
+		if(compressed) {
+			readCompressedEntries(dis);
 		}
+		else {
+			try{
+				// allocate and read the keys of this page
+				// start from 1 because the first key slot is not used
+				// since a node with m keys has m+1 pointers
+				keys[0] = null;
+				for (int i=1; i<keys.length; i++)
+					keys[i] = readNextKey(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 
-		children = new int[numSlots];
-		try{
-			// allocate and read the child pointers of this page
-			for (int i=0; i<children.length; i++)
-				children[i] = readNextChild(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+			try{
+				// allocate and read the child pointers of this page
+				for (int i=0; i<children.length; i++)
+					children[i] = readNextChild(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 		}
 		dis.close();
 
@@ -115,7 +132,21 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return getMaxEntries(td.getFieldType(keyField));
+	}
+
+	/** 
+	 * Retrieve the maximum number of entries an internal page can hold. With
+	 * compressed keys, this is the number of its slots but one, which assumes
+	 * empty keys.
+	 * 
+	 * @param keyType - the type of the keys
+ 	 */
+	static int getMaxEntries(Type keyType) {
+		int keySize = keyType.getLen();
+		if(compressesKeys(keyType)) {
+			keySize = COMPRESSED_ENTRY_OVERHEAD - INDEX_SIZE;
+		}
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -129,13 +160,69 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		return getHeaderSize(getMaxEntries() + 1);
+	}
+
+	private static int getHeaderSize(int slotsPerPage) {
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * Retrieve the number of entries an internal page always has room for,
+	 * whatever the lengths of their keys
+	 * 
+	 * @param keyType - the type of the keys
+	 */
+	static int getEntriesPerPage(Type keyType) {
+		int maxEntries = getMaxEntries(keyType);
+		if(!compressesKeys(keyType)) {
+			return maxEntries;
+		}
+		return Math.min(maxEntries, getCapacityBytes(keyType) / getMaxEntryBytes());
+	}
+
+	/**
+	 * The most bytes an entry with a compressed key can take
+	 */
+	private static int getMaxEntryBytes() {
+		return COMPRESSED_ENTRY_OVERHEAD + Type.STRING_LEN;
+	}
+
+	/**
+	 * The bytes of a page with compressed keys available to its entries
+	 */
+	private static int getCapacityBytes(Type keyType) {
+		// the parent pointer, the child page category and the first child pointer
+		return BufferPool.getPageSize() - 2 * INDEX_SIZE - 1 - getHeaderSize(getMaxEntries(keyType) + 1);
+	}
+
+	/**
+	 * Returns the key separating two adjacent pages, the last key of the left one
+	 * and the first key of the right one. String keys are truncated to the
+	 * shortest prefix of the right key which is greater than the left one, and
+	 * other keys are not changed.
+	 * 
+	 * @param left - the last key of the left-hand page
+	 * @param right - the first key of the right-hand page
+	 * @return a key greater than left, unless they are equal, and less than or
+	 *         equal to right
+	 */
+	public static Field separator(Field left, Field right) {
+		if(right.getType() != Type.STRING_TYPE) {
+			return right;
+		}
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int shared = BTreeLeafPage.sharedPrefix(l, r);
+		if(shared == r.length()) {
+			return right;
+		}
+		return new StringField(r.substring(0, shared + 1), Type.STRING_LEN);
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -236,6 +323,25 @@ public class BTreeInternalPage extends BTreePage {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		if(compressed) {
+			try {
+				dos.writeInt(parent);
+				dos.writeByte((byte) childCategory);
+				dos.write(header);
+				dos.writeInt(isSlotUsed(0) ? children[0] : 0);
+				for(int i = 1; i < numSlots; i++) {
+					if(isSlotUsed(i)) {
+						writeCompressedEntry(dos, keys[i], children[i]);
+					}
+				}
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// write out the parent pointer
 		try {
 			dos.writeInt(parent);
@@ -409,6 +515,9 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if (compressed && getUsedBytes() - keyLength(keys[rid.getTupleNumber()]) + keyLength(e.getKey())
+				> getCapacityBytes(td.getFieldType(keyField)))
+			throw new DbException("tried to update entry with a key the page has no room for.");
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -447,6 +556,10 @@ public class BTreeInternalPage extends BTreePage {
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
 			throw new DbException("table id mismatch in insertEntry");
 
+		if(compressed && getUsedBytes() + COMPRESSED_ENTRY_OVERHEAD + keyLength(e.getKey())
+				> getCapacityBytes(td.getFieldType(keyField)))
+			throw new DbException("called insertEntry on page with no room for the entry.");
+
 		if(childCategory == 0) {
 			if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
 				throw new DbException("child page category mismatch in insertEntry");
@@ -578,6 +691,205 @@ public class BTreeInternalPage extends BTreePage {
 		return cnt;
 	}
 
+	/**
+	 * Returns true if this page must be split before an entry with a key of any
+	 * length can be inserted into it.
+	 */
+	public boolean isFull() {
+		if(getNumEmptySlots() == 0) {
+			return true;
+		}
+		return compressed && getUsedBytes() + getMaxEntryBytes() > getCapacityBytes(td.getFieldType(keyField));
+	}
+
+	/**
+	 * Returns true if this page has fewer entries than half of those it can hold
+	 * or, with compressed keys, if its entries take too few of its bytes.
+	 */
+	public boolean isUnderfull() {
+		if(!compressed) {
+			return getNumEntries() < getMaxEntries()/2;
+		}
+		return getUsedBytes() < getMinUsedBytes();
+	}
+
+	/**
+	 * Returns true if this page would be underfull after losing any one of its
+	 * entries, as when two of its children are merged.
+	 */
+	public boolean isUnderfullWithoutAnEntry() {
+		if(!compressed) {
+			return getNumEntries() - 1 < getMaxEntries()/2;
+		}
+		int largest = 0;
+		for(int b : getEntryBytes()) {
+			largest = Math.max(largest, b);
+		}
+		return getUsedBytes() - largest < getMinUsedBytes();
+	}
+
+	/**
+	 * Returns true if the key of any entry on this page can be replaced by one of
+	 * any length, as when redistributing the children of two of its children.
+	 */
+	public boolean hasRoomToUpdateKey() {
+		return !compressed || getUsedBytes() + getMaxEntryBytes() <= getCapacityBytes(td.getFieldType(keyField));
+	}
+
+	/**
+	 * Returns true if this page, below minimum occupancy, should be merged with
+	 * the given sibling rather than steal entries from it: if the sibling is at
+	 * minimum occupancy itself or, with compressed keys, if the entries of both
+	 * pages and the key between them fit into one.
+	 * @param sibling - a sibling of this page
+	 */
+	public boolean canMergeWith(BTreeInternalPage sibling) {
+		if(!compressed) {
+			return sibling.getNumEntries() <= getMaxEntries()/2;
+		}
+		return getUsedBytes() + sibling.getUsedBytes() + getMaxEntryBytes()
+				<= getCapacityBytes(td.getFieldType(keyField));
+	}
+
+	/**
+	 * Returns the number of entries to move from the end of this page to a new
+	 * page when splitting it, not counting the one pushed up into the parent,
+	 * so that both end up about as full.
+	 */
+	public int getNumEntriesToSplit() {
+		if(!compressed) {
+			return getNumEntries() / 2;
+		}
+		int[] bytes = getEntryBytes();
+		int used = getUsedBytes();
+		int moved = 0;
+		int numMove = 0;
+		// leave at least one entry to push up
+		while(numMove < bytes.length - 1 && moved < used / 2) {
+			moved += bytes[bytes.length - 1 - numMove];
+			numMove++;
+		}
+		return numMove;
+	}
+
+	/**
+	 * Returns the number of entries this page, below minimum occupancy, should
+	 * steal from a sibling so that both end up about as full.
+	 * @param sibling - the sibling to steal entries from
+	 * @param isRightSibling - whether the sibling is a right sibling, which
+	 *        gives up its first entries rather than its last ones
+	 */
+	public int getNumEntriesToSteal(BTreeInternalPage sibling, boolean isRightSibling) {
+		if(!compressed) {
+			return (sibling.getNumEntries() - getNumEntries()) / 2;
+		}
+		int[] bytes = sibling.getEntryBytes();
+		int used = getUsedBytes();
+		int left = sibling.getUsedBytes();
+		int numMove = 0;
+		while(numMove < bytes.length && used < left) {
+			int b = bytes[isRightSibling ? numMove : bytes.length - 1 - numMove];
+			used += b;
+			left -= b;
+			numMove++;
+		}
+		return numMove;
+	}
+
+	/**
+	 * The fewest bytes the entries of a page with compressed keys other than the
+	 * root take. It leaves room for splits and redistributions to be off balance
+	 * by a few entries of the longest keys.
+	 */
+	private int getMinUsedBytes() {
+		return getCapacityBytes(td.getFieldType(keyField)) / 2 - 3 * getMaxEntryBytes();
+	}
+
+	/**
+	 * The bytes taken by each entry in use on this page with compressed keys, in
+	 * slot order
+	 */
+	private int[] getEntryBytes() {
+		int[] bytes = new int[getNumEntries()];
+		int n = 0;
+		for(int i = 1; i < numSlots; i++) {
+			if(isSlotUsed(i)) {
+				bytes[n++] = COMPRESSED_ENTRY_OVERHEAD + keyLength(keys[i]);
+			}
+		}
+		return bytes;
+	}
+
+	private int getUsedBytes() {
+		int used = 0;
+		for(int b : getEntryBytes()) {
+			used += b;
+		}
+		return used;
+	}
+
+	private static int keyLength(Field key) {
+		return ((StringField) key).getValue().length();
+	}
+
+	private static void writeCompressedEntry(DataOutputStream dos, Field key, int child) throws IOException {
+		String s = ((StringField) key).getValue();
+		dos.writeInt(child);
+		dos.writeShort(s.length());
+		dos.writeBytes(s);
+	}
+
+	/**
+	 * Read the first child pointer and the entries in use of a page with
+	 * compressed keys
+	 */
+	private void readCompressedEntries(DataInputStream dis) throws IOException {
+		int first = dis.readInt();
+		if(isSlotUsed(0)) {
+			children[0] = first;
+		}
+		for(int i = 1; i < numSlots; i++) {
+			if(!isSlotUsed(i)) {
+				continue;
+			}
+			children[i] = dis.readInt();
+			byte[] key = new byte[dis.readUnsignedShort()];
+			dis.readFully(key);
+			keys[i] = new StringField(new String(key), Type.STRING_LEN);
+		}
+	}
+
+	/**
+	 * Create the data of an internal page with compressed keys holding the given
+	 * keys and children in its first slots, with an empty parent pointer
+	 * 
+	 * @param keyType - the type of the keys
+	 * @param childCategory - the category of the child pages
+	 * @param keys - the keys, in order
+	 * @param children - the page numbers of the children, one more than the keys
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException
+	 */
+	static byte[] createCompressedPageData(Type keyType, int childCategory, List<Field> keys,
+			List<Integer> children) throws IOException {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childCategory);
+		byte[] header = new byte[getHeaderSize(getMaxEntries(keyType) + 1)];
+		for(int i = 0; i < children.size(); i++) {
+			header[i / 8] |= 1 << (i % 8);
+		}
+		dos.write(header);
+		dos.writeInt(children.get(0));
+		for(int i = 0; i < keys.size(); i++) {
+			writeCompressedEntry(dos, keys.get(i), children.get(i + 1));
+		}
+		dos.write(new byte[len - dos.size()]);
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -761,8 +1073,14 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					// the left child is in the previous slot in use, which is not
+					// the one right before this entry once entries were deleted
+					int prev = entry - 1;
+					while(prev > 0 && !p.isSlotUsed(prev)) {
+						prev--;
+					}
+					BTreePageId childId = p.getChildId(prev);
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -12,6 +12,10 @@ import java.io.*;
  *
  */
 public class BTreeLeafPage extends BTreePage {
+	/** Bytes before the characters of a compressed key: the length of the prefix
+	 *  it shares with the previous key, and of the rest of it */
+	private static final int COMPRESSED_KEY_OVERHEAD = 4;
+
 	private final byte header[];
 	private final Tuple tuples[];
 	private final int numSlots;
@@ -36,7 +40,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		if (checkoccupancy && depth > 0) {
-			assert(getNumTuples() >= getMaxTuples()/2);
+			assert(!isUnderfull());
 		}
 	}
 
@@ -53,6 +57,12 @@ public class BTreeLeafPage extends BTreePage {
 	 * <p>
 	 *      ceiling(no. tuple slots / 8)
 	 * <p>
+	 * When keys are compressed (see {@link BTreePage#compressesKeys}), the tuples
+	 * in use are instead stored one after another in slot order, each key as the
+	 * length of the prefix it shares with the previous key, the length of the
+	 * rest of it, and the rest of its characters. The number of slots then
+	 * assumes empty keys, and the page is full once its tuples take up its bytes.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -94,12 +104,17 @@ public class BTreeLeafPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		if(compressed) {
+			readCompressedTuples(dis);
+		}
+		else {
+			try{
+				// allocate and read the actual records of this page
+				for (int i=0; i<tuples.length; i++)
+					tuples[i] = readNextTuple(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 		}
 		dis.close();
 
@@ -110,24 +125,78 @@ public class BTreeLeafPage extends BTreePage {
 	 * Retrieve the maximum number of tuples this page can hold.
 	 */
 	public int getMaxTuples() {        
-		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		return getMaxTuples(td, keyField);
+	}
+
+	/**
+	 * Retrieve the maximum number of tuples a leaf page can hold. With compressed
+	 * keys, this is the number of slots of the page, which assumes empty keys.
+	 * 
+	 * @param td - the tuple descriptor of the tuples in the page
+	 * @param keyField - the field which the index is keyed on
+	 */
+	static int getMaxTuples(TupleDesc td, int keyField) {
+		int tupleSize = td.getSize();
+		if(compressesKeys(td.getFieldType(keyField))) {
+			tupleSize = getMinTupleBytes(td, keyField);
+		}
+		int bitsPerTupleIncludingHeader = tupleSize * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8; 
 		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
 
+	/**
+	 * Retrieve the number of tuples a leaf page always has room for, whatever
+	 * the lengths of their keys
+	 * 
+	 * @param td - the tuple descriptor of the tuples in the page
+	 * @param keyField - the field which the index is keyed on
+	 */
+	static int getTuplesPerPage(TupleDesc td, int keyField) {
+		int maxTuples = getMaxTuples(td, keyField);
+		if(!compressesKeys(td.getFieldType(keyField))) {
+			return maxTuples;
+		}
+		return Math.min(maxTuples, getCapacityBytes(td, keyField) / getMaxTupleBytes(td, keyField));
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a page in a BTreeFile with each tuple occupying tupleSize bytes
 	 */
 	private int getHeaderSize() {        
-		int tuplesPerPage = getMaxTuples();
+		return getHeaderSize(getMaxTuples());
+	}
+
+	private static int getHeaderSize(int tuplesPerPage) {
 		int hb = (tuplesPerPage / 8);
 		if (hb * 8 < tuplesPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * The bytes a tuple with a compressed key takes besides the characters of its key
+	 */
+	private static int getMinTupleBytes(TupleDesc td, int keyField) {
+		return td.getSize() - td.getFieldType(keyField).getLen() + COMPRESSED_KEY_OVERHEAD;
+	}
+
+	/**
+	 * The most bytes a tuple with a compressed key can take
+	 */
+	private static int getMaxTupleBytes(TupleDesc td, int keyField) {
+		return getMinTupleBytes(td, keyField) + Type.STRING_LEN;
+	}
+
+	/**
+	 * The bytes of a page with compressed keys available to its tuples
+	 */
+	private static int getCapacityBytes(TupleDesc td, int keyField) {
+		return BufferPool.getPageSize() - 3 * INDEX_SIZE - getHeaderSize(getMaxTuples(td, keyField));
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
@@ -233,6 +302,17 @@ public class BTreeLeafPage extends BTreePage {
 			}
 		}
 
+		if(compressed) {
+			try {
+				writeCompressedTuples(dos, getTuplesInUse(), keyField);
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the tuples
 		for (int i=0; i<tuples.length; i++) {
 
@@ -321,6 +401,9 @@ public class BTreeLeafPage extends BTreePage {
 
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
+		if (compressed && getUsedBytes(-1) + getMinTupleBytes(td, keyField) + keyOf(t, keyField).length()
+				> getCapacityBytes(td, keyField))
+			throw new DbException("called addTuple on page with no room for the tuple.");
 
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
@@ -452,6 +535,251 @@ public class BTreeLeafPage extends BTreePage {
 		return cnt;
 	}
 
+	/**
+	 * Returns true if this page must be split before a tuple with a key of any
+	 * length can be inserted into it.
+	 */
+	public boolean isFull() {
+		if(getNumEmptySlots() == 0) {
+			return true;
+		}
+		return compressed && getUsedBytes(-1) + getMaxTupleBytes(td, keyField) > getCapacityBytes(td, keyField);
+	}
+
+	/**
+	 * Returns true if this page has fewer tuples than half of those it can hold
+	 * or, with compressed keys, if its tuples take too few of its bytes.
+	 */
+	public boolean isUnderfull() {
+		if(!compressed) {
+			return getNumTuples() < getMaxTuples()/2;
+		}
+		return getUsedBytes(-1) < getMinUsedBytes();
+	}
+
+	/**
+	 * Returns true if this page would be below minimum occupancy once the given
+	 * tuple, which must be stored on it, is deleted.
+	 * @param t - the tuple to be deleted
+	 */
+	public boolean isUnderfullWithout(Tuple t) {
+		if(!compressed) {
+			return getNumTuples() - 1 < getMaxTuples()/2;
+		}
+		return getUsedBytes(t.getRecordId().getTupleNumber()) < getMinUsedBytes();
+	}
+
+	/**
+	 * Returns true if this page, below minimum occupancy, should be merged with
+	 * the given sibling rather than steal tuples from it: if the sibling is at
+	 * minimum occupancy itself or, with compressed keys, if the tuples of both
+	 * pages fit into one.
+	 * @param sibling - a sibling of this page
+	 */
+	public boolean canMergeWith(BTreeLeafPage sibling) {
+		if(!compressed) {
+			return sibling.getNumTuples() <= getMaxTuples()/2;
+		}
+		return getUsedBytes(-1) + sibling.getUsedBytes(-1) + getMaxTupleBytes(td, keyField)
+				<= getCapacityBytes(td, keyField);
+	}
+
+	/**
+	 * Returns the number of tuples to move from the end of this page to a new
+	 * page when splitting it, so that both end up about as full.
+	 */
+	public int getNumTuplesToSplit() {
+		if(!compressed) {
+			return getNumTuples() / 2;
+		}
+		int[] bytes = getTupleBytes(-1);
+		int used = sum(bytes);
+		int moved = 0;
+		int numMove = 0;
+		while(numMove < bytes.length && moved < used / 2) {
+			moved += bytes[bytes.length - 1 - numMove];
+			numMove++;
+		}
+		return numMove;
+	}
+
+	/**
+	 * Returns the number of tuples this page, below minimum occupancy, should
+	 * steal from a sibling so that both end up about as full.
+	 * @param sibling - the sibling to steal tuples from
+	 * @param isRightSibling - whether the sibling is a right sibling, which
+	 *        gives up its first tuples rather than its last ones
+	 */
+	public int getNumTuplesToSteal(BTreeLeafPage sibling, boolean isRightSibling) {
+		if(!compressed) {
+			return (sibling.getNumTuples() - getNumTuples()) / 2;
+		}
+		int[] bytes = sibling.getTupleBytes(-1);
+		int used = getUsedBytes(-1);
+		int left = sum(bytes);
+		int numMove = 0;
+		while(numMove < bytes.length && used < left) {
+			int b = bytes[isRightSibling ? numMove : bytes.length - 1 - numMove];
+			used += b;
+			left -= b;
+			numMove++;
+		}
+		return numMove;
+	}
+
+	/**
+	 * The fewest bytes the tuples of a page with compressed keys other than the
+	 * root take. It leaves room for splits and redistributions to be off balance
+	 * by a few tuples of the longest keys.
+	 */
+	private int getMinUsedBytes() {
+		return getCapacityBytes(td, keyField) / 2 - 3 * getMaxTupleBytes(td, keyField);
+	}
+
+	/**
+	 * The bytes taken by each tuple in use on this page with compressed keys, in
+	 * slot order
+	 * @param skipSlot - a slot to leave out as if it was empty, or -1
+	 */
+	private int[] getTupleBytes(int skipSlot) {
+		int[] bytes = new int[getNumTuples()];
+		int n = 0;
+		String prev = null;
+		for(int i = 0; i < numSlots; i++) {
+			if(i == skipSlot || !isSlotUsed(i)) {
+				continue;
+			}
+			String key = keyOf(tuples[i], keyField);
+			int shared = (prev == null ? 0 : sharedPrefix(prev, key));
+			bytes[n++] = getMinTupleBytes(td, keyField) + key.length() - shared;
+			prev = key;
+		}
+		return Arrays.copyOf(bytes, n);
+	}
+
+	private int getUsedBytes(int skipSlot) {
+		return sum(getTupleBytes(skipSlot));
+	}
+
+	private static int sum(int[] values) {
+		int sum = 0;
+		for(int v : values) {
+			sum += v;
+		}
+		return sum;
+	}
+
+	private static String keyOf(Tuple t, int keyField) {
+		return ((StringField) t.getField(keyField)).getValue();
+	}
+
+	/**
+	 * Returns the length of the longest common prefix of two strings
+	 */
+	static int sharedPrefix(String a, String b) {
+		int n = Math.min(a.length(), b.length());
+		int i = 0;
+		while(i < n && a.charAt(i) == b.charAt(i)) {
+			i++;
+		}
+		return i;
+	}
+
+	private ArrayList<Tuple> getTuplesInUse() {
+		ArrayList<Tuple> inUse = new ArrayList<Tuple>();
+		for(int i = 0; i < numSlots; i++) {
+			if(isSlotUsed(i)) {
+				inUse.add(tuples[i]);
+			}
+		}
+		return inUse;
+	}
+
+	/**
+	 * Write out tuples with compressed keys, in order
+	 */
+	private static void writeCompressedTuples(DataOutputStream dos, List<Tuple> tuples, int keyField)
+			throws IOException {
+		String prev = null;
+		for(Tuple t : tuples) {
+			String key = keyOf(t, keyField);
+			int shared = (prev == null ? 0 : sharedPrefix(prev, key));
+			dos.writeShort(shared);
+			dos.writeShort(key.length() - shared);
+			dos.writeBytes(key.substring(shared));
+			for(int j = 0; j < t.getTupleDesc().numFields(); j++) {
+				if(j != keyField) {
+					t.getField(j).serialize(dos);
+				}
+			}
+			prev = key;
+		}
+	}
+
+	/**
+	 * Read the tuples in use of a page with compressed keys
+	 */
+	private void readCompressedTuples(DataInputStream dis) {
+		String prev = null;
+		for(int i = 0; i < numSlots; i++) {
+			if(!isSlotUsed(i)) {
+				continue;
+			}
+			Tuple t = new Tuple(td);
+			t.setRecordId(new RecordId(pid, i));
+			try {
+				int shared = dis.readUnsignedShort();
+				byte[] suffix = new byte[dis.readUnsignedShort()];
+				dis.readFully(suffix);
+				String key = (shared == 0 ? "" : prev.substring(0, shared)) + new String(suffix);
+				for(int j = 0; j < td.numFields(); j++) {
+					if(j == keyField) {
+						t.setField(j, new StringField(key, Type.STRING_LEN));
+					}
+					else {
+						t.setField(j, td.getFieldType(j).parse(dis));
+					}
+				}
+				prev = key;
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new NoSuchElementException("error reading tuple");
+			} catch (java.text.ParseException e) {
+				e.printStackTrace();
+				throw new NoSuchElementException("parsing error!");
+			}
+			tuples[i] = t;
+		}
+	}
+
+	/**
+	 * Create the data of a leaf page with compressed keys holding the given
+	 * tuples in its first slots, with empty parent and sibling pointers
+	 * 
+	 * @param td - the tuple descriptor of the tuples
+	 * @param keyField - the field which the index is keyed on
+	 * @param tuples - the tuples, in key order
+	 * @return a byte array which can be passed to the BTreeLeafPage constructor
+	 * @throws IOException
+	 */
+	static byte[] createCompressedPageData(TupleDesc td, int keyField, List<Tuple> tuples)
+			throws IOException {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeInt(0); // left sibling pointer
+		dos.writeInt(0); // right sibling pointer
+		byte[] header = new byte[getHeaderSize(getMaxTuples(td, keyField))];
+		for(int i = 0; i < tuples.size(); i++) {
+			header[i / 8] |= 1 << (i % 8);
+		}
+		dos.write(header);
+		writeCompressedTuples(dos, tuples, keyField);
+		dos.write(new byte[len - dos.size()]);
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -19,6 +19,7 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final boolean compressed;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -52,6 +53,24 @@ public abstract class BTreePage implements Page {
 		this.pid = id;
 		this.keyField = key;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.compressed = compressesKeys(td.getFieldType(key));
+	}
+
+	/**
+	 * Whether pages keyed on the given type store their keys compressed. String
+	 * keys are stored with only their used characters, so pages holding them
+	 * use a variable-length layout: leaf pages store each key as the suffix
+	 * following the prefix it shares with the previous key, and internal pages
+	 * store the shortest keys that separate their children (see
+	 * {@link BTreeInternalPage#separator}). Such pages are full or below minimum
+	 * occupancy according to the bytes their entries take rather than the
+	 * number of their slots in use.
+	 *
+	 * @param keyType - the type of the key field
+	 * @return true if keys of this type are compressed
+	 */
+	public static boolean compressesKeys(Type keyType) {
+		return keyType == Type.STRING_TYPE;
 	}
 
 	/**
@@ -132,6 +151,18 @@ public abstract class BTreePage implements Page {
 	 * Returns the number of empty slots on this page.
 	 */
 	public abstract int getNumEmptySlots();
+
+	/**
+	 * Returns true if this page must be split before an entry or tuple of any
+	 * size can be added to it.
+	 */
+	public abstract boolean isFull();
+
+	/**
+	 * Returns true if this page is below the minimum occupancy of any page
+	 * other than the root.
+	 */
+	public abstract boolean isUnderfull();
 	
 	/**
 	 * Returns true if associated slot on this page is filled.
@@ -40,7 +40,7 @@ public class BufferPool {
         // some code goes here
         //pages = new Stack<>();
         this.numPages = numPages;
-        pidPageMap = new HashMap<>(numPages);
+        pidPageMap = new ConcurrentHashMap<>(numPages);
     }
     
     public static int getPageSize() {
@@ -76,19 +76,34 @@ public class BufferPool {
         throws TransactionAbortedException, DbException {
         // some code goes here
         if (pidPageMap.containsKey(pid)) {
+            OperatorProfile.pageRequested(true);
             return pidPageMap.get(pid);
         }
+        OperatorProfile.pageRequested(false);
         int tableId = pid.getTableId();
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         Page page = dbFile.readPage(pid);
         page.markDirty(true,tid);
-        if (pidPageMap.size() < numPages) {
-            pidPageMap.put(pid,page);
-        } else {
+        if (pidPageMap.size() >= numPages) {
             evictPage();
-            pidPageMap.put(pid,page);
         }
-        return page;
+        // another thread may have read the page meanwhile; keep the first copy
+        // so that all of them change the same one
+        Page cached = pidPageMap.putIfAbsent(pid, page);
+        return cached != null ? cached : page;
+    }
+
+    /**
+     * Return the specified page if it is in the buffer pool. Unlike
+     * {@link #getPage} this never reads the page from disk, evicts another
+     * page or acquires a lock, so it can be used by code that reads pages
+     * directly from their file without disturbing the pool.
+     *
+     * @param pid the ID of the requested page
+     * @return the cached page, or null if the pool does not hold it
+     */
+    public Page getCachedPage(PageId pid) {
+        return pidPageMap.get(pid);
     }
 
     /**
@@ -144,7 +159,10 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have 
      * been dirtied to the cache (replacing any existing versions of those pages) so 
-     * that future requests see up-to-date pages. 
+     * that future requests see up-to-date pages. The statistics of the
+     * table are updated as well, see {@link TableStats#tupleInserted},
+     * cached query results that read it are invalidated, and an entry for the
+     * tuple is added to each secondary index on the table.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -159,6 +177,11 @@ public class BufferPool {
             p.markDirty(true,tid);
             pidPageMap.put(p.getId(),p);
         }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.insertEntry(tid, t);
+        }
+        TableStats.tupleInserted(tableId, t);
+        ResultCache.tableModified(tableId);
     }
 
     /**
@@ -169,7 +192,10 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have 
      * been dirtied to the cache (replacing any existing versions of those pages) so 
-     * that future requests see up-to-date pages. 
+     * that future requests see up-to-date pages. The statistics of the
+     * table are updated as well, see {@link TableStats#tupleDeleted},
+     * cached query results that read it are invalidated, and the entry for the
+     * tuple is removed from each secondary index on the table.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -178,11 +204,18 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        ArrayList<Page> list = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid,t);
+        RecordId rid = t.getRecordId();
+        int tableId = rid.getPageId().getTableId();
+        ArrayList<Page> list = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid,t);
         for (Page p : list) {
             p.markDirty(true,tid);
             pidPageMap.put(p.getId(),p);
         }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.deleteEntry(tid, t, rid);
+        }
+        TableStats.tupleDeleted(tableId, t);
+        ResultCache.tableModified(tableId);
     }
 
     /**
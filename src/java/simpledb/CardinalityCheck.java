@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * CardinalityCheck counts the tuples of the filtered scan of a table as they
+ * stream past, on the build side of a hash join, which reads its whole input
+ * (or the first {@link HashEquiJoin#MAP_SIZE} tuples of it) before it
+ * returns any tuple. It then compares their number with the optimizer's
+ * estimate:
+ * <ul>
+ * <li>The observed selectivity of the table's filters is recorded in its
+ * {@link TableStats}, so later plans of queries with the same filters use it
+ * instead of the estimate.</li>
+ * <li>If the estimate was off by more than a factor of
+ * {@link #REOPTIMIZE_FACTOR} (and by at least {@link #REOPTIMIZE_MIN_ROWS}
+ * tuples), and the check is adaptive, it throws a
+ * {@link ReoptimizeException} so the query can be planned again with what
+ * is now known; see {@link Query#start}. It only does so while its parent
+ * cannot have returned a tuple yet, that is within the first pass over the
+ * first window tuples.</li>
+ * </ul>
+ */
+public class CardinalityCheck extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Estimates further off than this factor trigger re-optimization. */
+    public static final double REOPTIMIZE_FACTOR = 4.0;
+
+    /** Estimates closer than this many tuples never trigger it. */
+    public static final int REOPTIMIZE_MIN_ROWS = 100;
+
+    private OpIterator child;
+    private final String alias;
+    private final int estimated;
+    private final TableStats stats;
+    private final String filterKey;
+    private final boolean adaptive;
+    private final int window;
+    private int count;
+    private boolean checked;
+
+    /**
+     * @param child
+     *            the filtered scan of a table
+     * @param alias
+     *            the alias of the table in the query
+     * @param estimated
+     *            the estimated number of tuples child returns
+     * @param stats
+     *            the statistics of the table, to record the observed
+     *            selectivity in; null to record nothing
+     * @param filterKey
+     *            the filters of child, see
+     *            {@link TableStats#recordSelectivity}
+     * @param adaptive
+     *            true to throw a ReoptimizeException when the estimate is off
+     * @param window
+     *            the number of tuples the parent reads from this check before
+     *            it returns its first tuple, if it does not read them all
+     */
+    public CardinalityCheck(OpIterator child, String alias, int estimated,
+            TableStats stats, String filterKey, boolean adaptive, int window) {
+        this.child = child;
+        this.alias = alias;
+        this.estimated = estimated;
+        this.stats = stats;
+        this.filterKey = filterKey;
+        this.adaptive = adaptive;
+        this.window = window;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    /** @return the estimated number of tuples of the input */
+    public int getEstimate() {
+        return estimated;
+    }
+
+    /** @return true if the check throws when the estimate is off */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        count = 0;
+        checked = false;
+        super.open();
+    }
+
+    /**
+     * Record the selectivity observed so far and throw if the estimate was
+     * badly off.
+     *
+     * @param exhausted
+     *            true if all tuples were read, false if count is only a lower
+     *            bound
+     */
+    private void check(boolean exhausted) throws ReoptimizeException {
+        if (stats != null && stats.totalTuples() > 0)
+            stats.recordSelectivity(filterKey, Math.min(1.0,
+                    (double) count / stats.totalTuples()));
+        if (!adaptive || count > window)
+            return;
+        double est = Math.max(1, estimated);
+        double error = count / est;
+        if (exhausted)
+            error = Math.max(error, est / Math.max(1, count));
+        if (error > REOPTIMIZE_FACTOR
+                && Math.abs(count - estimated) >= REOPTIMIZE_MIN_ROWS)
+            throw new ReoptimizeException(alias, estimated, count, exhausted);
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // counts of a pass cut short would be wrong
+        checked = true;
+        child.rewind();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!child.hasNext()) {
+            if (!checked) {
+                checked = true;
+                check(true);
+            }
+            return null;
+        }
+        Tuple t = child.next();
+        if (!checked && ++count == window)
+            check(false);
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        close();
+        child = children[0];
+    }
+}
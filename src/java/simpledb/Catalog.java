@@ -30,6 +30,7 @@ public class Catalog {
     }
     Map<Integer,Table> tableMap;
     Map<String,Integer> tableName2IdMap;
+    Map<Integer,List<SecondaryIndex>> indexMap;
     /**
      * Constructor.
      * Creates a new, empty catalog.
@@ -38,6 +39,7 @@ public class Catalog {
         // some code goes here
         tableMap = new HashMap<>();
         tableName2IdMap = new HashMap<>();
+        indexMap = new ConcurrentHashMap<>();
     }
 
     /**
@@ -70,6 +72,45 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a secondary index on a table to the catalog. The BTreeFile holding
+     * its entries is added as a table of its own, named after the indexed
+     * table and field, and the index is kept up to date from then on by
+     * {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple}.
+     * @param index the index to add; its table must be in the catalog
+     */
+    public void addIndex(SecondaryIndex index) {
+        int tableid = index.getTableId();
+        String field = getTupleDesc(tableid).getFieldName(index.getField());
+        addTable(index.getFile(), getTableName(tableid) + "_" + field + "_idx");
+        List<SecondaryIndex> indexes = new ArrayList<>(getIndexes(tableid));
+        indexes.add(index);
+        indexMap.put(tableid, Collections.unmodifiableList(indexes));
+    }
+
+    /**
+     * Returns the secondary indexes on the specified table
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     * @return the indexes, empty if the table has none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = indexMap.get(tableid);
+        return indexes == null ? Collections.<SecondaryIndex>emptyList() : indexes;
+    }
+
+    /**
+     * Returns a secondary index on a field of the specified table, or null
+     * if there is none
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for (SecondaryIndex index : getIndexes(tableid)) {
+            if (index.getField() == field)
+                return index;
+        }
+        return null;
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -133,6 +174,7 @@ public class Catalog {
         // some code goes here
         tableMap.clear();
         tableName2IdMap.clear();
+        indexMap.clear();
     }
     
     /**
@@ -9,6 +9,11 @@ public class CostCard {
     public double cost;
     /** The cardinality of the optimal subplan */
     public int card;
-    /** The optimal subplan */
+    /** The optimal subplan; null while the plan is only held in a {@link PlanCache} */
     public Vector<LogicalJoinNode> plan;
+    /** True if the last join of the subplan has its inner and outer swapped */
+    public boolean swapped;
+    /** The joins of the subplan on the side of the first table of its last
+        join, as a bitmask; the remaining joins are on the side of the second */
+    public long t1Joins;
 }
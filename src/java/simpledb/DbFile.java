@@ -68,6 +68,20 @@ public interface DbFile {
      */
     public DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over the tuples stored in this DbFile that satisfy
+     * all of the given predicates, holding only the given fields. Files may
+     * test the predicates while reading their pages, so tuples that fail
+     * them, and fields that are not asked for, need never be decoded.
+     *
+     * @param fields the indices of the fields to return, in order, or null
+     *   to return whole tuples
+     * @param predicates predicates over the fields of this file that every
+     *   returned tuple satisfies; null or empty to return every tuple
+     * @return an iterator over the matching tuples of this DbFile.
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] fields, Predicate[] predicates);
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
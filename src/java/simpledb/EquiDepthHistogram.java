@@ -0,0 +1,345 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A histogram over a single integer field whose buckets each hold about the
+ * same number of values, plus a list of the most common values (MCVs) that
+ * are counted exactly and kept out of the buckets.
+ * <p>
+ * Unlike the fixed-width {@link IntHistogram}, the buckets follow the
+ * distribution of the values: dense ranges get narrow buckets and a value
+ * that makes up a large share of the column gets its own exact count, so
+ * skewed columns are estimated about as well as uniform ones.
+ * <p>
+ * The histogram is built from all values at once. Values can be added and
+ * removed afterwards; they update the counts of the MCV or bucket they fall
+ * into (the first or last bucket grows to cover values beyond the range)
+ * but never move bucket boundaries. Counts are kept in Fenwick trees, so an
+ * estimate takes O(log buckets): a binary search for the bucket of the
+ * value and a prefix sum of the counts below it.
+ */
+public class EquiDepthHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The largest number of most common values kept. */
+    static final int MAX_MCVS = 16;
+
+    /**
+     * A value is only kept as an MCV if it occurs this many times as often as
+     * the average value does.
+     */
+    static final double MCV_FACTOR = 1.25;
+
+    private final int[] mcvValues;
+    private final int[] mcvCounts;
+    private final Fenwick mcvSums;
+
+    /** Inclusive bounds of each bucket; bucket b covers [lows[b], highs[b]] */
+    private final int[] lows;
+    private final int[] highs;
+    /** Number of distinct values seen in each bucket when it was built */
+    private final int[] distinct;
+    private final int[] counts;
+    private final Fenwick bucketSums;
+
+    private int ntups;
+
+    /**
+     * Counts indexed by position, with O(log n) updates and prefix sums.
+     */
+    private static class Fenwick implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long[] tree;
+
+        Fenwick(int n) {
+            tree = new long[n + 1];
+        }
+
+        void add(int i, long delta) {
+            for (i++; i < tree.length; i += i & -i)
+                tree[i] += delta;
+        }
+
+        /** @return the sum of the counts at positions [0, i) */
+        long prefix(int i) {
+            long sum = 0;
+            for (; i > 0; i -= i & -i)
+                sum += tree[i];
+            return sum;
+        }
+    }
+
+    /**
+     * Create a histogram of the given values.
+     *
+     * @param buckets
+     *            The largest number of buckets to split the values into.
+     *            There are fewer if there are fewer distinct values.
+     * @param values
+     *            The values to histogram, in any order; not modified
+     */
+    public EquiDepthHistogram(int buckets, int[] values) {
+        if (buckets < 1)
+            throw new IllegalArgumentException("need at least one bucket");
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        // runs of equal values
+        int runs = 0;
+        int[] runValues = new int[sorted.length];
+        int[] runCounts = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                runValues[runs] = sorted[i];
+                runs++;
+            }
+            runCounts[runs - 1]++;
+        }
+
+        // the most frequent values that stand out from the average
+        boolean[] isMcv = new boolean[runs];
+        int numMcvs = 0;
+        if (runs > 0) {
+            Integer[] order = new Integer[runs];
+            for (int i = 0; i < runs; i++)
+                order[i] = i;
+            final int[] rc = runCounts;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Integer.compare(rc[b], rc[a]);
+                }
+            });
+            double threshold = Math.max(2, MCV_FACTOR * sorted.length / runs);
+            for (int i = 0; i < Math.min(MAX_MCVS, runs); i++) {
+                if (runCounts[order[i]] < threshold)
+                    break;
+                isMcv[order[i]] = true;
+                numMcvs++;
+            }
+        }
+        mcvValues = new int[numMcvs];
+        mcvCounts = new int[numMcvs];
+        mcvSums = new Fenwick(numMcvs);
+        int rest = 0;
+        int restRuns = 0;
+        for (int i = 0, m = 0; i < runs; i++) {
+            if (isMcv[i]) {
+                mcvValues[m] = runValues[i];
+                mcvCounts[m] = runCounts[i];
+                mcvSums.add(m, runCounts[i]);
+                m++;
+            } else {
+                rest += runCounts[i];
+                restRuns++;
+            }
+        }
+
+        // split the other values into buckets of about rest / n values each,
+        // never splitting a run of equal values
+        int n = Math.max(1, Math.min(buckets, restRuns));
+        int[] lo = new int[n];
+        int[] hi = new int[n];
+        int[] nd = new int[n];
+        int[] cnt = new int[n];
+        int b = 0;
+        long seen = 0;
+        boolean open = false;
+        for (int i = 0; i < runs; i++) {
+            if (isMcv[i])
+                continue;
+            if (!open) {
+                lo[b] = b == 0 ? runValues[i] : hi[b - 1] + 1;
+                open = true;
+            }
+            hi[b] = runValues[i];
+            nd[b]++;
+            cnt[b] += runCounts[i];
+            seen += runCounts[i];
+            if (b < n - 1 && seen * n >= (long) rest * (b + 1)) {
+                b++;
+                open = false;
+            }
+        }
+        if (restRuns == 0) {
+            // a single empty bucket that added values will widen
+            int v = runs > 0 ? runValues[0] : 0;
+            lo[0] = v;
+            hi[0] = v;
+        }
+        n = open || b == 0 ? b + 1 : b;
+        lows = Arrays.copyOf(lo, n);
+        highs = Arrays.copyOf(hi, n);
+        distinct = Arrays.copyOf(nd, n);
+        counts = Arrays.copyOf(cnt, n);
+        bucketSums = new Fenwick(n);
+        for (int i = 0; i < n; i++)
+            bucketSums.add(i, counts[i]);
+        ntups = sorted.length;
+    }
+
+    /**
+     * @return the index of the first bucket whose upper bound is at least v,
+     *         or the number of buckets if there is none
+     */
+    private int bucketAtOrAbove(int v) {
+        int lo = 0, hi = highs.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (highs[mid] < v)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /** Change the count of v by delta, widening the edge buckets if needed */
+    private void update(int v, int delta) {
+        int m = Arrays.binarySearch(mcvValues, v);
+        if (m >= 0) {
+            if (mcvCounts[m] + delta < 0)
+                return;
+            mcvCounts[m] += delta;
+            mcvSums.add(m, delta);
+        } else {
+            int last = highs.length - 1;
+            int b;
+            if (v < lows[0]) {
+                b = 0;
+                if (delta > 0)
+                    lows[0] = v;
+            } else if (v > highs[last]) {
+                b = last;
+                if (delta > 0)
+                    highs[last] = v;
+            } else {
+                b = bucketAtOrAbove(v);
+            }
+            if (counts[b] + delta < 0)
+                return;
+            counts[b] += delta;
+            bucketSums.add(b, delta);
+        }
+        ntups += delta;
+    }
+
+    /**
+     * Add a value to the histogram.
+     * @param v Value to add to the histogram
+     */
+    public void addValue(int v) {
+        update(v, 1);
+    }
+
+    /**
+     * Remove a value from the histogram. Does nothing if the MCV or bucket
+     * of v is already empty.
+     * @param v Value to remove from the histogram
+     */
+    public void removeValue(int v) {
+        update(v, -1);
+    }
+
+    /** @return the number of values equal to v, as a fraction of ntups */
+    private double equal(int v) {
+        int m = Arrays.binarySearch(mcvValues, v);
+        if (m >= 0)
+            return (double) mcvCounts[m] / ntups;
+        int b = bucketAtOrAbove(v);
+        if (b == highs.length || v < lows[b])
+            return 0;
+        long width = (long) highs[b] - lows[b] + 1;
+        return (double) counts[b] / Math.min(width, Math.max(1, distinct[b])) / ntups;
+    }
+
+    /** @return the number of values less than v, as a fraction of ntups */
+    private double less(int v) {
+        int m = Arrays.binarySearch(mcvValues, v);
+        long below = mcvSums.prefix(m >= 0 ? m : -m - 1);
+        int b = bucketAtOrAbove(v);
+        below += bucketSums.prefix(b);
+        double part = 0;
+        if (b < highs.length && v > lows[b]) {
+            long width = (long) highs[b] - lows[b] + 1;
+            part = (double) counts[b] * ((long) v - lows[b]) / width;
+        }
+        return Math.min(1.0, (below + part) / ntups);
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on the
+     * values in the histogram.
+     *
+     * @param op Operator
+     * @param v Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        if (ntups <= 0)
+            return op == Predicate.Op.NOT_EQUALS ? 1.0 : 0.0;
+        switch (op) {
+        case EQUALS:
+            return equal(v);
+        case NOT_EQUALS:
+            return 1 - equal(v);
+        case LESS_THAN:
+            return less(v);
+        case LESS_THAN_OR_EQ:
+            return Math.min(1.0, less(v) + equal(v));
+        case GREATER_THAN:
+            return Math.max(0.0, 1 - less(v) - equal(v));
+        case GREATER_THAN_OR_EQ:
+            return 1 - less(v);
+        default:
+            return -1.0;
+        }
+    }
+
+    /**
+     * @return the probability that two values drawn from the histogram are
+     *         equal, i.e. the selectivity of an equality predicate against a
+     *         value drawn from the same distribution
+     */
+    public double avgSelectivity() {
+        if (ntups <= 0)
+            return 1.0;
+        double sum = 0;
+        for (int c : mcvCounts)
+            sum += (double) c * c;
+        for (int b = 0; b < counts.length; b++) {
+            long width = (long) highs[b] - lows[b] + 1;
+            sum += (double) counts[b] * counts[b] / Math.min(width, Math.max(1, distinct[b]));
+        }
+        return sum / ((double) ntups * ntups);
+    }
+
+    /**
+     * @return the number of most common values kept exactly
+     */
+    int numMcvs() {
+        return mcvValues.length;
+    }
+
+    /**
+     * @return the number of buckets
+     */
+    int numBuckets() {
+        return counts.length;
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mcvValues.length; i++)
+            sb.append("mcv[" + mcvValues[i] + "]=" + mcvCounts[i] + " ");
+        for (int b = 0; b < counts.length; b++)
+            sb.append("[" + lows[b] + "," + highs[b] + "]=" + counts[b] + " ");
+        return sb.toString().trim();
+    }
+}
@@ -0,0 +1,66 @@
+package simpledb;
+
+/**
+ * A DbFileIterator that returns the tuples of another iterator that satisfy
+ * a set of predicates, holding only some of their fields. Used by files that
+ * cannot evaluate pushed-down predicates any earlier than on whole tuples.
+ */
+public class FilteredDbFileIterator extends AbstractDbFileIterator {
+
+    private final DbFileIterator child;
+    private final int[] fields;
+    private final TupleDesc projected;
+    private final Predicate[] predicates;
+
+    /**
+     * @param child the iterator over whole tuples
+     * @param td the TupleDesc of the tuples child returns
+     * @param fields the indices of the fields to return, or null for all
+     * @param predicates the predicates returned tuples satisfy, or null
+     */
+    public FilteredDbFileIterator(DbFileIterator child, TupleDesc td,
+            int[] fields, Predicate[] predicates) {
+        this.child = child;
+        this.fields = fields;
+        this.projected = fields == null ? td : td.project(fields);
+        this.predicates = predicates;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.close();
+        child.rewind();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (!matches(t))
+                continue;
+            if (fields == null)
+                return t;
+            Tuple out = new Tuple(projected);
+            out.setRecordId(t.getRecordId());
+            for (int i = 0; i < fields.length; i++)
+                out.setField(i, t.getField(fields[i]));
+            return out;
+        }
+        return null;
+    }
+
+    private boolean matches(Tuple t) {
+        if (predicates != null)
+            for (Predicate p : predicates)
+                if (!p.filter(t))
+                    return false;
+        return true;
+    }
+}
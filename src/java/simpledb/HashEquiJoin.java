@@ -3,13 +3,23 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equality join by loading one input,
+ * the build side, into a hash table and looking up the tuples of the other
+ * input, the probe side, in it. If the build side does not fit in
+ * {@link #MAP_SIZE} tuples, the probe side is scanned once per chunk of it,
+ * unless the join is asked to keep the order of the probe side, in which case
+ * the whole build side is loaded at once.
+ * <p>
+ * Either child can be the build side; the output is the concatenation of the
+ * tuples of child1 and child2 in that order regardless.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
     private JoinPredicate pred;
     private OpIterator child1, child2;
+    private final boolean buildOnChild2;
+    private boolean keepProbeOrder = false;
     private TupleDesc comboTD;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
@@ -26,12 +36,58 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, false);
+    }
+
+    /**
+     * Constructor. Accepts to children to join, the predicate to join them
+     * on, and which of them to build the hash table on. The smaller input
+     * should be the build side.
+     * 
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param buildOnChild2
+     *            true to build the hash table on child2 and probe it with
+     *            child1, false for the reverse
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+            boolean buildOnChild2) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.buildOnChild2 = buildOnChild2;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
+    /**
+     * @return true if the hash table is built on child2
+     */
+    public boolean buildsOnChild2() {
+        return buildOnChild2;
+    }
+
+    /**
+     * Set whether the join returns its tuples in the order of the probe side.
+     * A build side larger than {@link #MAP_SIZE} is then held in memory in
+     * full instead of in chunks, each of which would start the probe side
+     * over.
+     */
+    public void setKeepProbeOrder(boolean keepProbeOrder) {
+        this.keepProbeOrder = keepProbeOrder;
+    }
+
+    /**
+     * @return the input whose order the join keeps if asked to, see
+     *         {@link #setKeepProbeOrder}
+     */
+    public OpIterator getProbeChild() {
+        return probeChild();
+    }
+
     public JoinPredicate getJoinPredicate() {
         return pred;
     }
@@ -53,18 +109,28 @@ public class HashEquiJoin extends Operator {
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
     public final static int MAP_SIZE = 20000;
 
+    private OpIterator buildChild() {
+        return buildOnChild2 ? child2 : child1;
+    }
+
+    private OpIterator probeChild() {
+        return buildOnChild2 ? child1 : child2;
+    }
+
     private boolean loadMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
+        OpIterator build = buildChild();
+        int field = buildOnChild2 ? pred.getField2() : pred.getField1();
+        while (build.hasNext()) {
+            Tuple t = build.next();
+            ArrayList<Tuple> list = map.get(t.getField(field));
             if (list == null) {
                 list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+                map.put(t.getField(field), list);
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
+            list.add(t);
+            if (cnt++ == MAP_SIZE && !keepProbeOrder)
                 return true;
         }
         return cnt > 0;
@@ -92,6 +158,8 @@ public class HashEquiJoin extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        listIt = null;
+        loadMap();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -115,7 +183,10 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
+        if (buildOnChild2)
+            t2 = listIt.next();
+        else
+            t1 = listIt.next();
 
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
@@ -135,13 +206,19 @@ public class HashEquiJoin extends Operator {
             return processList();
         }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        // loop around the probe side
+        OpIterator probe = probeChild();
+        while (probe.hasNext()) {
+            Tuple t = probe.next();
+            if (buildOnChild2)
+                t1 = t;
+            else
+                t2 = t;
 
             // if match, create a combined tuple and fill it with the values
             // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
+            ArrayList<Tuple> l = map.get(t.getField(buildOnChild2 ? pred
+                    .getField1() : pred.getField2()));
             if (l == null)
                 continue;
             listIt = l.iterator();
@@ -150,8 +227,8 @@ public class HashEquiJoin extends Operator {
 
         }
 
-        // child2 is done: advance child1
-        child2.rewind();
+        // the probe side is done: load the next chunk of the build side
+        probe.rewind();
         if (loadMap()) {
             return fetchNext();
         }
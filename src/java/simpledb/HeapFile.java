@@ -149,58 +149,72 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new DbFileIterator() {
-            private int pos=0;
-            private Iterator<Tuple> iter;
-            @Override
-            public void open() throws DbException, TransactionAbortedException {
-                PageId pageId = new HeapPageId(getId(),pos);
-                HeapPage curPage = (HeapPage)Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-                iter = curPage.iterator();
-            }
+        return new HeapFileIterator(tid, null, null);
+    }
 
-            @Override
-            public boolean hasNext() throws DbException, TransactionAbortedException {
-                if (iter == null) {
-                    return false;
-                }
-                if (iter.hasNext()) {
-                    return true;
-                }
-                if (++pos < numPages()) {
-                    PageId pageId = new HeapPageId(getId(),pos);
-                    HeapPage curPage = (HeapPage)Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-                    iter = curPage.iterator();
-                }
-                if (iter.hasNext()) {
-                    return true;
-                }
-                return false;
-            }
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid, int[] fields, Predicate[] predicates) {
+        if (predicates != null && predicates.length == 0)
+            predicates = null;
+        return new HeapFileIterator(tid, fields, predicates);
+    }
+
+    /**
+     * Iterates over the pages of this file in order. Each page tests the
+     * predicates on its tuples before decoding them (see
+     * {@link HeapPage#iterator(Predicate[], int[], TupleDesc)}).
+     */
+    private class HeapFileIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final int[] fields;
+        private final TupleDesc projected;
+        private final Predicate[] predicates;
+        private int pos = 0;
+        private Iterator<Tuple> iter;
+
+        HeapFileIterator(TransactionId tid, int[] fields, Predicate[] predicates) {
+            this.tid = tid;
+            this.fields = fields;
+            this.projected = fields == null ? null : td.project(fields);
+            this.predicates = predicates;
+        }
+
+        private Iterator<Tuple> pageIterator(int pageNo)
+                throws DbException, TransactionAbortedException {
+            PageId pageId = new HeapPageId(getId(), pageNo);
+            HeapPage curPage = (HeapPage)Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
+            return curPage.iterator(predicates, fields, projected);
+        }
 
-            @Override
-            public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-                if (iter == null) {
-                    throw new NoSuchElementException();
+        public void open() throws DbException, TransactionAbortedException {
+            pos = 0;
+            iter = numPages() > 0 ? pageIterator(pos) : Collections.<Tuple>emptyIterator();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (iter == null) {
+                return null;
+            }
+            // pages may hold no (matching) tuples; move on until one does
+            while (!iter.hasNext()) {
+                if (pos + 1 >= numPages()) {
+                    return null;
                 }
-                return iter.next();
+                iter = pageIterator(++pos);
             }
+            return iter.next();
+        }
 
-            @Override
-            public void rewind() throws DbException, TransactionAbortedException {
-                pos = 0;
-                PageId pageId = new HeapPageId(getId(),pos);
-                HeapPage curPage = (HeapPage)Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-                iter = curPage.iterator();
-            }
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
 
-            @Override
-            public void close() {
-                pos = 0;
-                iter = null;
-            }
-        };
+        public void close() {
+            super.close();
+            pos = 0;
+            iter = null;
+        }
     }
 
 }
-
@@ -16,8 +16,17 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    /**
+     * The tuple in each slot. Slots are decoded from data the first time
+     * they are needed, so a used slot may still hold null.
+     */
     final Tuple tuples[];
     final int numSlots;
+    /** The bytes this page was read from */
+    private final byte[] data;
+    /** Offset of each field from the start of a tuple's slot */
+    private final int[] fieldOffsets;
+    private final int tupleSize;
     private boolean dirty = false;
     private TransactionId tid = null;
     byte[] oldData;
@@ -43,24 +52,26 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
+        this.data = data;
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
         for (int i=0; i<header.length; i++)
             header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
         dis.close();
 
-        setBeforeImage();
+        // the records themselves are only decoded when they are read
+        tuples = new Tuple[numSlots];
+        tupleSize = td.getSize();
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
+
+        // the data is exactly what getPageData() would produce, so it can
+        // serve as the before image without decoding every tuple. The page
+        // is not shared with other threads yet, so no lock is needed
+        oldData = data.clone();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -118,36 +129,97 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in the used slot slotId, decoding it from the page
+     *   data if that has not been done yet
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    private Tuple tuple(int slotId) {
+        if (tuples[slotId] == null)
+            tuples[slotId] = readTuple(slotId);
+        return tuples[slotId];
+    }
+
+    /**
+     * @return the tuple in slot slotId, or null if the slot is empty
+     */
+    public Tuple getTuple(int slotId) {
+        if (slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId))
             return null;
-        }
+        return tuple(slotId);
+    }
 
-        // read fields in the tuple
+    /**
+     * Decode the tuple in slot slotId from the page data.
+     */
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
+        for (int j=0; j<td.numFields(); j++)
+            t.setField(j, readField(slotId, j));
+        return t;
+    }
+
+    /** @return the offset of field j of the tuple in slot slotId in the page data */
+    private int offsetOf(int slotId, int j) {
+        return header.length + slotId * tupleSize + fieldOffsets[j];
+    }
+
+    /**
+     * Read field j of the tuple in slot slotId straight from the page data.
+     */
+    private Field readField(int slotId, int j) throws NoSuchElementException {
+        if (td.getFieldType(j) == Type.INT_TYPE)
+            return new IntField(readInt(offsetOf(slotId, j)));
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                data, offsetOf(slotId, j), td.getFieldType(j).getLen()));
         try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
+            return td.getFieldType(j).parse(dis);
         } catch (java.text.ParseException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
+    }
+
+    /** @return the big-endian integer at offset off of the page data */
+    private int readInt(int off) {
+        return ((data[off] & 0xff) << 24) | ((data[off+1] & 0xff) << 16)
+                | ((data[off+2] & 0xff) << 8) | (data[off+3] & 0xff);
+    }
 
+    /**
+     * @return true if the tuple in the used slot slotId satisfies all of the
+     *   predicates. Slots that have not been decoded are tested on the page
+     *   data, decoding only the fields the predicates refer to.
+     */
+    private boolean matches(int slotId, Predicate[] predicates) {
+        if (predicates == null)
+            return true;
+        Tuple t = tuples[slotId];
+        for (Predicate p : predicates) {
+            if (t != null) {
+                if (!p.filter(t))
+                    return false;
+            } else if (td.getFieldType(p.getField()) == Type.INT_TYPE) {
+                int v = readInt(offsetOf(slotId, p.getField()));
+                if (!IntField.compare(p.getOp(), v, ((IntField) p.getOperand()).getValue()))
+                    return false;
+            } else if (!readField(slotId, p.getField()).compare(p.getOp(), p.getOperand())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a tuple with the given fields of the tuple in the used slot
+     *   slotId, read without decoding the rest of it
+     */
+    private Tuple project(int slotId, int[] fields, TupleDesc projected) {
+        Tuple full = tuples[slotId];
+        Tuple t = new Tuple(projected);
+        t.setRecordId(new RecordId(pid, slotId));
+        for (int k=0; k<fields.length; k++)
+            t.setField(k, full != null ? full.getField(fields[k]) : readField(slotId, fields[k]));
         return t;
     }
 
@@ -194,8 +266,9 @@ public class HeapPage implements Page {
             }
 
             // non-empty slot
+            Tuple t = tuple(i);
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
                 
@@ -354,12 +427,33 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
+        return iterator(null, null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that satisfy all of
+     * the given predicates. The predicates are tested before a tuple is
+     * decoded, so tuples that fail them are never built.
+     *
+     * @param predicates the predicates returned tuples must satisfy, with
+     *   field indices into this page's TupleDesc; null to return every tuple
+     * @param fields the indices of the fields to return, or null to return
+     *   whole tuples
+     * @param projected the TupleDesc of the returned tuples if fields is not
+     *   null
+     */
+    public Iterator<Tuple> iterator(final Predicate[] predicates, final int[] fields,
+            final TupleDesc projected) {
         return new Iterator<Tuple>() {
             private int pos=0;
+            private boolean found=false;
 
             public boolean hasNext() {
-                for (;pos < tuples.length; pos++) {
-                    if (isSlotUsed(pos)) {
+                if (found)
+                    return true;
+                for (;pos < numSlots; pos++) {
+                    if (isSlotUsed(pos) && matches(pos, predicates)) {
+                        found = true;
                         return true;
                     }
                 }
@@ -367,7 +461,11 @@ public class HeapPage implements Page {
             }
 
             public Tuple next() {
-                return tuples[pos++];
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                found = false;
+                int slot = pos++;
+                return fields == null ? tuple(slot) : project(slot, fields, projected);
             }
 
             public void remove() {
@@ -377,4 +475,3 @@ public class HeapPage implements Page {
     }
 
 }
-
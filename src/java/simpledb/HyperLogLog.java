@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A HyperLogLog sketch for estimating the number of distinct values in a
+ * stream of fields. It uses 2^PRECISION one-byte registers (4 KB) no matter
+ * how many values are added, and the typical relative error is about
+ * 1.04 / sqrt(2^PRECISION), i.e. 1.6%.
+ * <p>
+ * Two sketches can be combined with {@link #merge}; the result is the same
+ * as if all values had been added to a single sketch.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of hash bits used to pick a register. */
+    static final int PRECISION = 12;
+
+    private static final int M = 1 << PRECISION;
+
+    private final byte[] registers = new byte[M];
+
+    /**
+     * Add a field value to the sketch.
+     */
+    public void add(Field f) {
+        addHash(hash(f));
+    }
+
+    /**
+     * Add a value, given by its 64-bit hash, to the sketch.
+     */
+    public void addHash(long h) {
+        int idx = (int) (h >>> (64 - PRECISION));
+        // the sentinel bit bounds the rank when the remaining bits are zero
+        long w = (h << PRECISION) | (1L << (PRECISION - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+        if (rank > registers[idx])
+            registers[idx] = rank;
+    }
+
+    /**
+     * Merge another sketch into this one.
+     */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < M; i++)
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+    }
+
+    /**
+     * @return the estimated number of distinct values added to the sketch
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / M);
+        double e = alpha * M * M / sum;
+        // linear counting is more accurate while many registers are empty
+        if (e <= 2.5 * M && zeros > 0)
+            e = M * Math.log((double) M / zeros);
+        return Math.round(e);
+    }
+
+    /**
+     * @return a well-mixed 64-bit hash of a field value
+     */
+    static long hash(Field f) {
+        long h;
+        if (f instanceof IntField) {
+            h = ((IntField) f).getValue();
+        } else {
+            // 64-bit FNV-1a over the characters of the string
+            String s = ((StringField) f).getValue();
+            h = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        }
+        return mix(h);
+    }
+
+    /** The 64-bit finalizer of MurmurHash3. */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,168 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan reads the tuples of a HeapFile table whose indexed field
+ * satisfies a predicate through a {@link SecondaryIndex}.
+ * <p>
+ * The record ids of the matching tuples are read from the index when the
+ * scan is opened and sorted by page and slot, so every page of the table is
+ * read at most once, in file order, rather than once per matching tuple in
+ * key order. Tuples are returned in that order too.
+ */
+public class IndexScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final String tableAlias;
+    private final IndexPredicate ipred;
+    private ArrayList<RecordId> rids;
+    private int pos;
+    private HeapPage page;
+    private Tuple next;
+
+    /**
+     * Creates an index scan over the table of the given index as a part of
+     * the specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to read the table through
+     * @param tableAlias
+     *            the alias of the table (see {@link SeqScan})
+     * @param ipred
+     *            the predicate over the indexed field every returned tuple
+     *            satisfies, or null to return all tuples
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+            IndexPredicate ipred) {
+        this.tid = tid;
+        this.index = index;
+        this.tableAlias = tableAlias;
+        this.ipred = ipred;
+    }
+
+    /**
+     * @return the actual name of the table the operator scans
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the index predicate of this scan, or null if it returns all
+     *         tuples
+     */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (rids != null) {
+            throw new DbException("already be opened");
+        }
+        ArrayList<RecordId> matching = new ArrayList<RecordId>();
+        DbFileIterator it = index.iterator(tid, ipred);
+        it.open();
+        try {
+            while (it.hasNext()) {
+                matching.add(index.getRecordId(it.next()));
+            }
+        } finally {
+            it.close();
+        }
+        Collections.sort(matching, new Comparator<RecordId>() {
+            public int compare(RecordId a, RecordId b) {
+                int cmp = Integer.compare(a.getPageId().getPageNumber(),
+                        b.getPageId().getPageNumber());
+                return cmp != 0 ? cmp : Integer.compare(a.getTupleNumber(), b.getTupleNumber());
+            }
+        });
+        rids = matching;
+        pos = 0;
+        page = null;
+        next = null;
+    }
+
+    /**
+     * Returns the TupleDesc of the table, with field names prefixed with the
+     * table alias as in {@link SeqScan#getTupleDesc}.
+     */
+    public TupleDesc getTupleDesc() {
+        TupleDesc desc = Database.getCatalog().getTupleDesc(index.getTableId());
+        Type[] types = new Type[desc.numFields()];
+        String[] names = new String[desc.numFields()];
+        for (int i = 0; i < desc.numFields(); i++) {
+            types[i] = desc.getFieldType(i);
+            names[i] = tableAlias + "." + desc.getFieldName(i);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the next tuple a record id points to, skipping record ids of
+     *         slots that are empty, or null if there are no more
+     */
+    private Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (pos < rids.size()) {
+            RecordId rid = rids.get(pos++);
+            // record ids of a page are next to each other, so it is read once
+            if (page == null || !page.getId().equals(rid.getPageId())) {
+                page = (HeapPage) Database.getBufferPool().getPage(tid,
+                        rid.getPageId(), Permissions.READ_ONLY);
+            }
+            Tuple t = page.getTuple(rid.getTupleNumber());
+            if (t != null) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (rids == null) {
+            throw new DbException("not opened");
+        }
+        if (next == null) {
+            next = fetchNext();
+        }
+        return next != null;
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    public void close() {
+        rids = null;
+        page = null;
+        next = null;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (rids == null) {
+            throw new DbException("not opened");
+        }
+        pos = 0;
+        page = null;
+        next = null;
+    }
+}
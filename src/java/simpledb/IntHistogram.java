@@ -1,10 +1,14 @@
 package simpledb;
 
+import java.io.Serializable;
+
 import static simpledb.Predicate.Op.*;
 
 /** A class to represent a fixed-width histogram over a single integer-based field.
  */
-public class IntHistogram {
+public class IntHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private int ntups;
     private int min;
@@ -47,7 +51,32 @@ public class IntHistogram {
     public void addValue(int v) {
     	// some code goes here
         ntups++;
-        values[getIndex(v)] += 1;
+        values[bucketOf(v)] += 1;
+    }
+
+    /**
+     * Remove a value added by {@link #addValue} from the histogram. Does
+     * nothing if the bucket of v is already empty.
+     * @param v Value to remove from the histogram
+     */
+    public void removeValue(int v) {
+        int b = bucketOf(v);
+        if (values[b] > 0) {
+            values[b] -= 1;
+            ntups--;
+        }
+    }
+
+    /**
+     * @return the bucket of v; values outside [min, max] are counted in the
+     *         first or last bucket
+     */
+    private int bucketOf(int v) {
+        if (v < min)
+            return 0;
+        if (v > max)
+            return buckets - 1;
+        return getIndex(v);
     }
     private int getIndex(int v) {
         return (int)((v-min) / b_width);
@@ -2,8 +2,6 @@ package simpledb;
 
 import java.util.*;
 
-import static simpledb.Aggregator.Op.*;
-
 /**
  * Knows how to compute some aggregate over a set of IntFields.
  */
@@ -15,10 +13,44 @@ public class IntegerAggregator implements Aggregator {
     private Type gbFieldType;
     private int aField;
     private Op what;
-    private List<Tuple> tuples;
-    private Map<Field,Integer> f2cnt;
-    private int cnt = 0;
     private TupleDesc desc;
+    /**
+     * Hash aggregation table, keyed on the group-by field (or on null when
+     * there is no grouping). Linked so results come out in first-seen order.
+     */
+    private LinkedHashMap<Field, Group> groups;
+
+    /**
+     * Running aggregate state of one group, kept in primitives so merging a
+     * tuple never allocates. AVG is kept as (sum, count) and only divided
+     * when the result is produced, so partial states can be combined.
+     */
+    private static class Group implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+        int count = 0;
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+
+        void add(int v) {
+            count++;
+            sum += v;
+            if (v < min)
+                min = v;
+            if (v > max)
+                max = v;
+        }
+
+        void add(Group other) {
+            count += other.count;
+            sum += other.sum;
+            if (other.min < min)
+                min = other.min;
+            if (other.max > max)
+                max = other.max;
+        }
+    }
+
     /**
      * Aggregate constructor
      *
@@ -40,8 +72,7 @@ public class IntegerAggregator implements Aggregator {
         gbFieldType = gbfieldtype;
         aField = afield;
         this.what = what;
-        tuples = new ArrayList<>();
-        f2cnt = new HashMap<>();
+        groups = new LinkedHashMap<>();
         if (gbfield == NO_GROUPING) {
             desc = new TupleDesc(new Type[]{Type.INT_TYPE});
         } else {
@@ -58,49 +89,57 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        int index = 0;
-        boolean found = false;
-        if (gbFieldType != null && gbField != NO_GROUPING) {
-            Field gb = tup.getField(gbField);
-            if (!f2cnt.containsKey(gb)) {
-                f2cnt.put(gb,0);
-            }
-            f2cnt.put(gb,f2cnt.get(gb)+1);
-            for (int i = 0;i < tuples.size();i++){
-                if (tuples.get(i).getField(gbField).equals(gb)) {
-                    index = i;
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
-                tuples.add(tup);
-                return;
-            }
-        } else {
-            cnt++;
-            if (tuples.size() == 0) {
-                tuples.add(tup);
-                return;
-            }
+        Field key = gbField == NO_GROUPING ? null : tup.getField(gbField);
+        Group g = groups.get(key);
+        if (g == null) {
+            g = new Group();
+            groups.put(key, g);
         }
-        int v1 = ((IntField)(tuples.get(index).fields.get(aField))).getValue();
-        int v2 = ((IntField)(tup.fields.get(aField))).getValue();
-        if (what == MIN) {
-            if (v2 < v1) {
-                tuples.set(index,tup);
-            }
-        } else if (what == MAX) {
-            if (v2 > v1) {
-                tuples.set(index,tup);
-            }
-        } else if (what == SUM) {
-            tuples.get(index).setField(aField,new IntField(v1 + v2));
-        } else if (what == AVG) {
-            tuples.get(index).setField(aField,new IntField(v1 + v2));
-        } else if (what == COUNT) {
+        g.add(((IntField) tup.getField(aField)).getValue());
+    }
+
+    public void merge(Aggregator partial) {
+        if (!(partial instanceof IntegerAggregator))
+            throw new IllegalArgumentException("cannot merge " + partial);
+        IntegerAggregator other = (IntegerAggregator) partial;
+        if (other.gbField != gbField || other.aField != aField
+                || other.what != what)
+            throw new IllegalArgumentException("incompatible partial aggregate");
+        for (Map.Entry<Field, Group> e : other.groups.entrySet()) {
+            Group g = groups.get(e.getKey());
+            if (g == null)
+                groups.put(e.getKey(), e.getValue());
+            else
+                g.add(e.getValue());
         }
+    }
 
+    /**
+     * @return the final aggregate value of a group
+     */
+    private int aggregateValue(Group g) {
+        switch (what) {
+        case MIN:
+            return g.min;
+        case MAX:
+            return g.max;
+        case SUM:
+            return (int) g.sum;
+        case AVG:
+            return (int) (g.sum / g.count);
+        case COUNT:
+            return g.count;
+        default:
+            throw new UnsupportedOperationException("unsupported aggregate " + what);
+        }
+    }
+
+    public int numGroups() {
+        return groups.size();
+    }
+
+    public boolean containsGroup(Tuple tup) {
+        return groups.containsKey(gbField == NO_GROUPING ? null : tup.getField(gbField));
     }
 
     /**
@@ -115,13 +154,14 @@ public class IntegerAggregator implements Aggregator {
         // some code goes here
         return new OpIterator() {
             private Boolean is_open = false;
-            private int pos = 0;
+            private Iterator<Map.Entry<Field, Group>> it;
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 if (is_open) {
                     throw new IllegalStateException("Operator already open");
                 }
                 is_open = true;
+                it = groups.entrySet().iterator();
             }
 
             @Override
@@ -129,10 +169,7 @@ public class IntegerAggregator implements Aggregator {
                 if (!is_open) {
                     throw new IllegalStateException("Operator not yet open");
                 }
-                if (pos < tuples.size()) {
-                    return true;
-                }
-                return false;
+                return it.hasNext();
             }
 
             @Override
@@ -140,33 +177,16 @@ public class IntegerAggregator implements Aggregator {
                 if (!is_open) {
                     throw new IllegalStateException("Operator not yet open");
                 }
-                if (pos < tuples.size()) {
-                    Tuple tuple = tuples.get(pos);
-                    Tuple newTuple = new Tuple(getTupleDesc());
-                    int v = ((IntField)tuple.getField(aField)).getValue();
-                    if (gbField != NO_GROUPING) {
-                        newTuple.setField(0,tuple.getField(gbField));
-                        newTuple.setField(1,tuple.getField(aField));
-                    } else {
-                        newTuple.setField(0,tuple.getField(aField));
-                    }
-                    if (what == AVG) {
-                        if (gbFieldType != null && gbField != NO_GROUPING) {
-                            newTuple.setField(1, new IntField(v / f2cnt.get(newTuple.getField(0))));
-                        } else {
-                            newTuple.setField(0, new IntField(v / cnt));
-                        }
-                    } else if (what == COUNT) {
-                        if (gbFieldType != null && gbField != NO_GROUPING) {
-                            newTuple.setField(1, new IntField(f2cnt.get(newTuple.getField(0))));
-                        } else {
-                            newTuple.setField(0, new IntField(cnt));
-                        }
-                    }
-                    pos++;
-                    return newTuple;
+                Map.Entry<Field, Group> e = it.next();
+                Tuple newTuple = new Tuple(getTupleDesc());
+                IntField v = new IntField(aggregateValue(e.getValue()));
+                if (gbField != NO_GROUPING) {
+                    newTuple.setField(0, e.getKey());
+                    newTuple.setField(1, v);
+                } else {
+                    newTuple.setField(0, v);
                 }
-                throw new NoSuchElementException();
+                return newTuple;
             }
 
             @Override
@@ -174,7 +194,7 @@ public class IntegerAggregator implements Aggregator {
                 if (!is_open) {
                     throw new IllegalStateException("Operator not yet open");
                 }
-                pos = 0;
+                it = groups.entrySet().iterator();
             }
 
             @Override
@@ -14,6 +14,28 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /** Default for {@link #setMaxDpJoins}. */
+    public static final int DEFAULT_MAX_DP_JOINS = 16;
+
+    private int maxDpJoins = DEFAULT_MAX_DP_JOINS;
+
+    // Inputs of the cost model for each join, indexed by its position in
+    // joins. They are filled in once by orderJoins so that the inner loops of
+    // the search do no map lookups.
+    private double[] scanCost1, scanCost2;
+    private int[] scanCard1, scanCard2;
+    private boolean[] pkey1, pkey2;
+    /** Number of the table on each side of each join (-1 for a subquery) */
+    private int[] table1, table2;
+    private int numTables;
+    /** Joins with a primary key on either side, for the dynamic program */
+    private long pkeyJoins;
+    // Only filled in for the dynamic program:
+    /** The tables joined by each subset of joins, indexed by subset */
+    private long[] subsetTables;
+    /** The joins of each table, indexed by table number */
+    private long[] tableJoins;
+
     /**
      * Constructor
      * 
@@ -27,6 +49,27 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * Set the largest number of joins that {@link #orderJoins} orders by
+     * exhaustive dynamic programming. Planning time and memory of the dynamic
+     * program double with every join, so larger queries are ordered by a
+     * greedy search instead.
+     * 
+     * @param limit
+     *            the number of joins; 0 always uses the greedy search
+     * @throws IllegalArgumentException
+     *             if limit is negative or exceeds {@link PlanCache#MAX_JOINS}
+     */
+    public void setMaxDpJoins(int limit) {
+        if (limit < 0 || limit > PlanCache.MAX_JOINS)
+            throw new IllegalArgumentException("invalid join limit " + limit);
+        maxDpJoins = limit;
+    }
+
+    public int getMaxDpJoins() {
+        return maxDpJoins;
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -68,7 +111,15 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.p == Predicate.Op.EQUALS) {
+            // orderJoins puts the smaller input of a join between tables
+            // first; a subquery can only be second, and is usually the
+            // smaller side of an IN
+            j = new HashEquiJoin(p, plan1, plan2,
+                    lj instanceof LogicalSubplanJoinNode);
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
@@ -107,14 +158,37 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            // nested loops: scan the outer once, the inner once per outer
+            // tuple, and apply the predicate to every pair
+            return cost1 + card1 * cost2 + (double) card1 * card2;
         }
     }
 
+    /**
+     * Estimate the cost of a {@link HashEquiJoin} that builds its hash table
+     * on the left-hand side. The build side is read once, in chunks of
+     * {@link HashEquiJoin#MAP_SIZE} tuples, and the probe side once per
+     * chunk. Inserting a tuple into the hash table is assumed to cost twice
+     * as much as looking one up, so the smaller input is the better build
+     * side.
+     * 
+     * @param card1
+     *            Estimated cardinality of the build side
+     * @param card2
+     *            Estimated cardinality of the probe side
+     * @param cost1
+     *            Estimated cost of one full scan of the build side
+     * @param cost2
+     *            Estimated cost of one full scan of the probe side
+     * @return An estimate of the cost of this query, in terms of cost1 and
+     *         cost2
+     */
+    public double estimateHashJoinCost(int card1, int card2, double cost1,
+            double cost2) {
+        int passes = 1 + (card1 - 1) / HashEquiJoin.MAP_SIZE;
+        return cost1 + passes * cost2 + 2.0 * card1 + (double) passes * card2;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -155,9 +229,57 @@ public class JoinOptimizer {
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
+        long card;
         // some code goes here
-        return card <= 0 ? 1 : card;
+        if (joinOp == Predicate.Op.EQUALS) {
+            // a key matches at most one tuple of the other side; otherwise
+            // each value of the side with fewer distinct values matches one
+            // of the other's, |R||S| / max(ndv(R), ndv(S)). Without
+            // statistics, assume the larger side's values cover the smaller's
+            int ndv1 = distinctValues(table1Alias, field1PureName, card1, stats,
+                    tableAliasToId);
+            int ndv2 = distinctValues(table2Alias, field2PureName, card2, stats,
+                    tableAliasToId);
+            if (t1pkey && t2pkey)
+                card = Math.min(card1, card2);
+            else if (t1pkey)
+                card = card2;
+            else if (t2pkey)
+                card = card1;
+            else if (ndv1 > 0 && ndv2 > 0)
+                card = (long) card1 * card2 / Math.max(ndv1, ndv2);
+            else
+                card = Math.max(card1, card2);
+        } else if (joinOp == Predicate.Op.NOT_EQUALS) {
+            card = (long) card1 * card2;
+        } else {
+            // range predicates keep a fixed fraction of the cross product
+            card = (long) (0.3 * card1 * card2);
+        }
+        card = Math.min(card, Integer.MAX_VALUE);
+        return card <= 0 ? 1 : (int) card;
+    }
+
+    /**
+     * @return the estimated number of distinct values of a field among card
+     *         tuples of a table, or -1 if there are no statistics for it
+     */
+    private static int distinctValues(String tableAlias, String fieldPureName,
+            int card, Map<String, TableStats> stats,
+            Map<String, Integer> tableAliasToId) {
+        Integer tableId = tableAliasToId == null ? null : tableAliasToId.get(tableAlias);
+        if (tableId == null || stats == null)
+            return -1;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return -1;
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(fieldPureName);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+        return Math.max(1, Math.min(s.numDistinct(field), card));
     }
 
     /**
@@ -207,8 +329,9 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed. Each join combines the subplans
+     *         built so far for its two tables, so the plan may be bushy.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -220,8 +343,340 @@ public class JoinOptimizer {
         //Not necessary for labs 1--3
 
         // some code goes here
-        //Replace the following
-        return joins;
+        int n = joins.size();
+        if (n == 0)
+            return joins;
+        prepareCostInputs(stats, filterSelectivities);
+        Vector<LogicalJoinNode> order = n <= maxDpJoins ? orderJoinsDP(stats)
+                : orderJoinsGreedy(stats);
+
+        // without a plan for all joins, the joins are not connected; leave
+        // the order alone and let the caller report the problem
+        if (order == null)
+            return joins;
+        if (explain)
+            printJoins(order, stats, filterSelectivities);
+        return order;
+    }
+
+    /**
+     * Selinger-style dynamic program over subsets of joins, which finds the
+     * cheapest plan, left-deep or bushy.
+     * 
+     * @return the best order, or null if the joins are not connected
+     */
+    private Vector<LogicalJoinNode> orderJoinsDP(
+            HashMap<String, TableStats> stats) {
+        int n = joins.size();
+        subsetTables = new long[1 << n];
+        for (int s = 1; s < subsetTables.length; s++) {
+            int j = Integer.numberOfTrailingZeros(s);
+            subsetTables[s] = subsetTables[s & (s - 1)] | (1L << table1[j])
+                    | (table2[j] < 0 ? 0 : 1L << table2[j]);
+        }
+        tableJoins = new long[numTables];
+        for (int j = 0; j < n; j++) {
+            tableJoins[table1[j]] |= 1L << j;
+            if (table2[j] >= 0)
+                tableJoins[table2[j]] |= 1L << j;
+        }
+
+        // Removing a join from a subset gives a numerically smaller mask, so
+        // visiting masks in increasing order sees every subplan before its
+        // supersets.
+        PlanCache pc = new PlanCache(n);
+        long all = (1L << n) - 1;
+        for (long s = 1; s <= all; s++) {
+            double bestCost = Double.MAX_VALUE;
+            for (long rest = s; rest != 0; rest &= rest - 1) {
+                int j = Long.numberOfTrailingZeros(rest);
+                CostCard cc = computeCostAndCardOfSubplan(stats, null, j, s,
+                        bestCost, pc);
+                if (cc != null) {
+                    bestCost = cc.cost;
+                    pc.addPlan(s, cc.cost, cc.card, j, cc.t1Joins, cc.swapped);
+                }
+            }
+        }
+        return pc.getOrder(all, joins);
+    }
+
+    /**
+     * @return the joins of s that are connected to table t through joins of
+     *         s
+     */
+    private long componentOf(long s, int t) {
+        long component = 0;
+        long tables = 1L << t, seen = 0;
+        while (tables != seen) {
+            for (long fresh = tables & ~seen; fresh != 0; fresh &= fresh - 1)
+                component |= s & tableJoins[Long.numberOfTrailingZeros(fresh)];
+            seen = tables;
+            tables |= subsetTables[(int) component];
+        }
+        return component;
+    }
+
+    /**
+     * Greedy join ordering for queries too large for the dynamic program.
+     * Starting from each join in turn, the plan is grown by the connected join
+     * that is cheapest to add next; the cheapest of the resulting left-deep
+     * plans wins. This takes O(n^3) cost estimates for n joins, and unlike
+     * the dynamic program does not consider bushy plans.
+     * 
+     * @return the best order found, or null if the joins are not connected
+     */
+    private Vector<LogicalJoinNode> orderJoinsGreedy(
+            HashMap<String, TableStats> stats) {
+        int n = joins.size();
+        int[] order = new int[n];
+        boolean[] swaps = new boolean[n];
+        int[] bestOrder = null;
+        boolean[] bestSwaps = null;
+        double bestCost = Double.MAX_VALUE;
+
+        for (int first = 0; first < n; first++) {
+            boolean[] used = new boolean[n];
+            boolean[] joined = new boolean[numTables];
+            double cost = 0;
+            int card = 0;
+            boolean pkey = false;
+            int k;
+            for (k = 0; k < n; k++) {
+                int next = -1, nextSide = 0;
+                boolean nextSwap = false;
+                double nextCost = Double.MAX_VALUE;
+                int from = k == 0 ? first : 0, to = k == 0 ? first + 1 : n;
+                for (int i = from; i < to; i++) {
+                    if (used[i])
+                        continue;
+                    int side = k == 0 ? 0 : sideIn(i, joined);
+                    if (side < 0)
+                        continue;
+                    double cost1 = side == 1 ? cost : scanCost1[i];
+                    double cost2 = side == 2 ? cost : scanCost2[i];
+                    int card1 = side == 1 ? card : scanCard1[i];
+                    int card2 = side == 2 ? card : scanCard2[i];
+                    boolean swap = false;
+                    double c = joinCost(i, cost1, card1, cost2, card2, false);
+                    if (!(joins.get(i) instanceof LogicalSubplanJoinNode)) {
+                        double c2 = joinCost(i, cost1, card1, cost2, card2, true);
+                        if (c2 < c) {
+                            c = c2;
+                            swap = true;
+                        }
+                    }
+                    if (c < nextCost) {
+                        next = i;
+                        nextSide = side;
+                        nextSwap = swap;
+                        nextCost = c;
+                    }
+                }
+                // stop when the rest is not connected, or when the plan
+                // already costs more than a complete one
+                if (next < 0 || nextCost >= bestCost)
+                    break;
+                card = joinCard(next, nextSide == 1 ? card : scanCard1[next],
+                        nextSide == 2 ? card : scanCard2[next],
+                        nextSide == 1 ? pkey : pkey1[next],
+                        nextSide == 2 ? pkey : pkey2[next], stats);
+                cost = nextCost;
+                pkey |= pkey1[next] || pkey2[next];
+                used[next] = true;
+                joined[table1[next]] = true;
+                if (table2[next] >= 0)
+                    joined[table2[next]] = true;
+                order[k] = next;
+                swaps[k] = nextSwap;
+            }
+            if (k == n) {
+                bestCost = cost;
+                bestOrder = order.clone();
+                bestSwaps = swaps.clone();
+            }
+        }
+
+        if (bestOrder == null)
+            return null;
+        Vector<LogicalJoinNode> result = new Vector<LogicalJoinNode>();
+        for (int k = 0; k < n; k++) {
+            LogicalJoinNode j = joins.get(bestOrder[k]);
+            result.add(bestSwaps[k] ? j.swapInnerOuter() : j);
+        }
+        return result;
+    }
+
+    /**
+     * Estimate the cost of executing the joins of this optimizer in the given
+     * order, using the same model as {@link #orderJoins}.
+     * 
+     * @param order
+     *            a permutation of the joins, possibly with inner and outer
+     *            swapped, in the order in which {@link LogicalPlan} should
+     *            execute them
+     * @throws ParsingException
+     *             when stats or filterSelectivities is missing a table
+     */
+    public double estimatePlanCost(Vector<LogicalJoinNode> order,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities)
+            throws ParsingException {
+        if (order.isEmpty())
+            return 0;
+        prepareCostInputs(stats, filterSelectivities);
+        CostCard[] subplans = costSubplans(order, stats);
+        return subplans[subplans.length - 1].cost;
+    }
+
+    /**
+     * Work out the cost and cardinality of the subplan produced by each join
+     * of order. Like {@link LogicalPlan#physicalPlan}, each join combines the
+     * subplans that already contain its tables, so bushy plans are handled.
+     * 
+     * @return the cost and cardinality of the subplan rooted at each join
+     * @throws IllegalArgumentException
+     *             if order contains a join that is not one of the joins
+     */
+    private CostCard[] costSubplans(Vector<LogicalJoinNode> order,
+            HashMap<String, TableStats> stats) {
+        CostCard[] subplans = new CostCard[order.size()];
+        boolean[] pkeys = new boolean[subplans.length];
+        // the subplan each table is part of so far, or -1 if none
+        int[] subplanOf = new int[numTables];
+        Arrays.fill(subplanOf, -1);
+        for (int k = 0; k < subplans.length; k++) {
+            LogicalJoinNode j = order.get(k);
+            int i = joins.indexOf(j);
+            if (i < 0)
+                throw new IllegalArgumentException("unknown join " + j);
+            int s1 = subplanOf[table1[i]];
+            int s2 = table2[i] < 0 ? -1 : subplanOf[table2[i]];
+            if (s2 == s1)
+                s2 = -1; // closes a cycle: the second table is scanned again
+            double cost1 = s1 < 0 ? scanCost1[i] : subplans[s1].cost;
+            double cost2 = s2 < 0 ? scanCost2[i] : subplans[s2].cost;
+            int card1 = s1 < 0 ? scanCard1[i] : subplans[s1].card;
+            int card2 = s2 < 0 ? scanCard2[i] : subplans[s2].card;
+            boolean swap = !j.t1Alias.equals(joins.get(i).t1Alias);
+
+            subplans[k] = new CostCard();
+            subplans[k].cost = joinCost(i, cost1, card1, cost2, card2, swap);
+            subplans[k].card = joinCard(i, card1, card2,
+                    s1 < 0 ? pkey1[i] : pkeys[s1],
+                    s2 < 0 ? pkey2[i] : pkeys[s2], stats);
+            pkeys[k] = pkey1[i] || pkey2[i] || (s1 >= 0 && pkeys[s1])
+                    || (s2 >= 0 && pkeys[s2]);
+            for (int t = 0; t < numTables; t++)
+                if (t == table1[i] || t == table2[i]
+                        || (subplanOf[t] >= 0 && (subplanOf[t] == s1 || subplanOf[t] == s2)))
+                    subplanOf[t] = k;
+        }
+        return subplans;
+    }
+
+    /**
+     * Fill in the per-join inputs of the cost model used by
+     * {@link #computeCostAndCardOfSubplan}.
+     *
+     * @throws ParsingException
+     *             when stats or filterSelectivities is missing a table
+     */
+    private void prepareCostInputs(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities)
+            throws ParsingException {
+        int n = joins.size();
+        scanCost1 = new double[n];
+        scanCost2 = new double[n];
+        scanCard1 = new int[n];
+        scanCard2 = new int[n];
+        pkey1 = new boolean[n];
+        pkey2 = new boolean[n];
+        table1 = new int[n];
+        table2 = new int[n];
+        pkeyJoins = 0;
+        HashMap<String, Integer> tables = new HashMap<String, Integer>();
+        for (int i = 0; i < n; i++) {
+            LogicalJoinNode j = joins.get(i);
+            TableStats s1 = statsOf(j.t1Alias, stats, filterSelectivities);
+            scanCost1[i] = s1.estimateScanCost();
+            scanCard1[i] = s1.estimateTableCardinality(filterSelectivities.get(j.t1Alias));
+            pkey1[i] = isPkey(j.t1Alias, j.f1PureName);
+            table1[i] = tableNumber(j.t1Alias, tables);
+            table2[i] = -1;
+            if (j.t2Alias != null) {
+                TableStats s2 = statsOf(j.t2Alias, stats, filterSelectivities);
+                scanCost2[i] = s2.estimateScanCost();
+                scanCard2[i] = s2.estimateTableCardinality(filterSelectivities.get(j.t2Alias));
+                pkey2[i] = isPkey(j.t2Alias, j.f2PureName);
+                table2[i] = tableNumber(j.t2Alias, tables);
+            }
+            if ((pkey1[i] || pkey2[i]) && i < 64)
+                pkeyJoins |= 1L << i;
+        }
+        numTables = tables.size();
+    }
+
+    private TableStats statsOf(String alias, HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        Integer id = this.p.getTableId(alias);
+        if (id == null)
+            throw new ParsingException("Unknown table " + alias);
+        TableStats s = stats.get(Database.getCatalog().getTableName(id));
+        if (s == null || filterSelectivities.get(alias) == null)
+            throw new ParsingException("Missing statistics for table " + alias);
+        return s;
+    }
+
+    private static int tableNumber(String alias, HashMap<String, Integer> tables) {
+        Integer t = tables.get(alias);
+        if (t == null) {
+            t = tables.size();
+            tables.put(alias, t);
+        }
+        return t;
+    }
+
+    /**
+     * @return 1 if the first table of join i has been joined, else 2 if its
+     *         second table has, else -1
+     */
+    private int sideIn(int i, boolean[] joined) {
+        if (joined[table1[i]])
+            return 1;
+        if (table2[i] >= 0 && joined[table2[i]])
+            return 2;
+        return -1;
+    }
+
+    /**
+     * Estimate the cost of performing join i on inputs with the given costs
+     * and cardinalities. Equality joins between tables are executed as hash
+     * joins, other joins as nested loops joins.
+     * 
+     * @param swap
+     *            true to make the second input the outer (or build side) of
+     *            the join
+     */
+    private double joinCost(int i, double cost1, int card1, double cost2,
+            int card2, boolean swap) {
+        LogicalJoinNode j = joins.get(i);
+        if (j.p == Predicate.Op.EQUALS && !(j instanceof LogicalSubplanJoinNode)) {
+            return swap ? estimateHashJoinCost(card2, card1, cost2, cost1)
+                    : estimateHashJoinCost(card1, card2, cost1, cost2);
+        }
+        return swap ? estimateJoinCost(j, card2, card1, cost2, cost1)
+                : estimateJoinCost(j, card1, card2, cost1, cost2);
+    }
+
+    /**
+     * Estimate the cardinality of performing join i on inputs with the given
+     * cardinalities; see {@link #estimateJoinCardinality}.
+     */
+    private int joinCard(int i, int card1, int card2, boolean pkey1,
+            boolean pkey2, HashMap<String, TableStats> stats) {
+        return estimateJoinCardinality(joins.get(i), card1, card2, pkey1,
+                pkey2, stats);
     }
 
     // ===================== Private Methods =================================
@@ -240,9 +695,10 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      * @param joinToRemove
-     *            the join to remove from joinSet
+     *            the position in joins of the join to remove from joinSet
      * @param joinSet
-     *            the set of joins being considered
+     *            the set of joins being considered, as a bitmask over the
+     *            positions in joins
      * @param bestCostSoFar
      *            the best way to join joinSet so far (minimum of previous
      *            invocations of computeCostAndCardOfSubplan for this joinSet,
@@ -250,144 +706,72 @@ public class JoinOptimizer {
      * @param pc
      *            the PlanCache for this join; should have subplans for all
      *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     * @return A {@link CostCard} objects desribing the cost and cardinality
+     *         of the plan, or null if it is no better than bestCostSoFar or
+     *         requires a cross product. The plan itself joins the cached plans
+     *         of the joins on either side of joinToRemove with it.
      */
-    @SuppressWarnings("unchecked")
     private CostCard computeCostAndCardOfSubplan(
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
-
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
-            }
-
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+            int joinToRemove, long joinSet,
+            double bestCostSoFar, PlanCache pc) {
+
+        int i = joinToRemove;
+        long rest = joinSet & ~(1L << i);
+
+        // The rest of the joins fall into the subplan that joins the first
+        // table of join i and the one that joins its second table; either
+        // may be empty, in which case the table is scanned.
+        long t1Joins = componentOf(rest, table1[i]);
+        long t2Joins = rest & ~t1Joins;
+        long t2Bit = table2[i] < 0 ? 0 : 1L << table2[i];
+        if ((subsetTables[(int) t1Joins] & t2Bit) != 0) {
+            // join i closes a cycle; join the rest with another scan of its
+            // second table, as a left-deep plan would
+            t1Joins = rest;
+            t2Joins = 0;
+        } else if (t2Joins != 0 && (subsetTables[(int) t2Joins] & t2Bit) == 0) {
+            // don't consider this plan if some of the rest isn't connected
+            // to join i (cross product)
+            return null;
+        }
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
-            }
+        // possible that we have not cached an answer, if subset
+        // includes a cross product
+        if ((t1Joins != 0 && !pc.hasPlan(t1Joins))
+                || (t2Joins != 0 && !pc.hasPlan(t2Joins))) {
+            return null;
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        double cost1 = t1Joins == 0 ? scanCost1[i] : pc.getCost(t1Joins);
+        double cost2 = t2Joins == 0 ? scanCost2[i] : pc.getCost(t2Joins);
+        int card1 = t1Joins == 0 ? scanCard1[i] : pc.getCard(t1Joins);
+        int card2 = t2Joins == 0 ? scanCard2[i] : pc.getCard(t2Joins);
+
+        double cost = joinCost(i, cost1, card1, cost2, card2, false);
+        boolean swapped = false;
+        // a subquery can only be the inner of its join
+        if (!(joins.get(i) instanceof LogicalSubplanJoinNode)) {
+            double costSwapped = joinCost(i, cost1, card1, cost2, card2, true);
+            if (costSwapped < cost) {
+                cost = costSwapped;
+                swapped = true;
+            }
         }
-        if (cost1 >= bestCostSoFar)
+        if (cost >= bestCostSoFar)
             return null;
 
         CostCard cc = new CostCard();
-
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
+        cc.card = joinCard(i, card1, card2,
+                t1Joins == 0 ? pkey1[i] : (t1Joins & pkeyJoins) != 0,
+                t2Joins == 0 ? pkey2[i] : (t2Joins & pkeyJoins) != 0, stats);
+        cc.cost = cost;
+        cc.t1Joins = t1Joins;
+        cc.swapped = swapped;
         return cc;
     }
 
-    /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
-     */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
-        }
-        return false;
-    }
-
     /**
      * Return true if field is a primary key of the specified table, false
      * otherwise
@@ -404,20 +788,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -425,8 +795,6 @@ public class JoinOptimizer {
      * 
      * @param js
      *            the join plan to visualize
-     * @param pc
-     *            the PlanCache accumulated whild building the optimal plan
      * @param stats
      *            table statistics for base tables
      * @param selectivities
@@ -434,7 +802,7 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      */
-    private void printJoins(Vector<LogicalJoinNode> js, PlanCache pc,
+    private void printJoins(Vector<LogicalJoinNode> js,
             HashMap<String, TableStats> stats,
             HashMap<String, Double> selectivities) {
 
@@ -454,13 +822,14 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
+        CostCard[] subplans = costSubplans(js, stats);
+        int pathSoFar = 0;
         boolean neither;
 
         System.out.println(js);
         for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+            pathSoFar++;
+            System.out.println("PATH SO FAR = " + js.subList(0, pathSoFar));
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
@@ -471,8 +840,8 @@ public class JoinOptimizer {
             neither = true;
 
             root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
+                    + subplans[pathSoFar - 1].cost + ", card = "
+                    + subplans[pathSoFar - 1].card + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
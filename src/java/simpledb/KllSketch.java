@@ -0,0 +1,153 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A KLL quantile sketch over integer values (Karnin, Lang and Liberty,
+ * "Optimal Quantile Approximation in Streams", FOCS 2016).
+ * <p>
+ * Values are kept in a hierarchy of compactors. An item at level h stands
+ * for 2^h input values; when a level fills up it is sorted and every other
+ * item (starting at a random offset) is promoted to the next level. Lower
+ * levels get geometrically smaller capacities, so the sketch holds
+ * O(k) values in total and answers rank queries with an error of roughly
+ * 1.7 / k of the input size. Sketches are mergeable.
+ */
+public class KllSketch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default accuracy parameter: about 1% rank error in a few KB. */
+    public static final int DEFAULT_K = 200;
+
+    private static final double C = 2.0 / 3.0;
+
+    private final int k;
+    private final Random rand;
+    private int[][] levels = new int[0][];
+    private int[] lens = new int[0];
+    private int size = 0;
+    private int maxSize = 0;
+
+    public KllSketch() {
+        this(DEFAULT_K, 0);
+    }
+
+    /**
+     * @param k
+     *            the accuracy parameter; memory grows linearly with k
+     * @param seed
+     *            the seed for choosing which items survive a compaction
+     */
+    public KllSketch(int k, long seed) {
+        if (k < 8)
+            throw new IllegalArgumentException("k must be at least 8");
+        this.k = k;
+        this.rand = new Random(seed);
+        grow();
+    }
+
+    private int capacity(int h) {
+        int height = levels.length;
+        return (int) Math.ceil(k * Math.pow(C, height - h - 1)) + 1;
+    }
+
+    private void grow() {
+        int height = levels.length + 1;
+        levels = Arrays.copyOf(levels, height);
+        lens = Arrays.copyOf(lens, height);
+        levels[height - 1] = new int[8];
+        maxSize = 0;
+        for (int h = 0; h < height; h++)
+            maxSize += capacity(h);
+    }
+
+    private void append(int h, int v) {
+        if (lens[h] == levels[h].length)
+            levels[h] = Arrays.copyOf(levels[h], 2 * levels[h].length);
+        levels[h][lens[h]++] = v;
+    }
+
+    /**
+     * Add a value to the sketch.
+     */
+    public void add(int v) {
+        append(0, v);
+        size++;
+        if (size >= maxSize)
+            compress();
+    }
+
+    /** Compact the lowest level that is over capacity. */
+    private void compress() {
+        for (int h = 0; h < levels.length; h++) {
+            if (lens[h] >= capacity(h)) {
+                if (h + 1 >= levels.length)
+                    grow();
+                int[] items = levels[h];
+                int n = lens[h];
+                Arrays.sort(items, 0, n);
+                // an odd item out stays behind at this level
+                int keep = n % 2;
+                for (int i = keep + (rand.nextBoolean() ? 1 : 0); i < n; i += 2)
+                    append(h + 1, items[i]);
+                lens[h] = keep;
+                size -= (n - keep) / 2;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Merge another sketch into this one.
+     */
+    public void merge(KllSketch other) {
+        while (levels.length < other.levels.length)
+            grow();
+        for (int h = 0; h < other.levels.length; h++)
+            for (int i = 0; i < other.lens[h]; i++)
+                append(h, other.levels[h][i]);
+        size += other.size;
+        while (size >= maxSize)
+            compress();
+    }
+
+    /**
+     * @return the number of values retained by the sketch
+     */
+    public int retained() {
+        return size;
+    }
+
+    /**
+     * @param q
+     *            a quantile between 0 and 1
+     * @return an estimate of the value of rank q * n among the n values added,
+     *         or 0 if the sketch is empty
+     */
+    public int quantile(double q) {
+        if (size == 0)
+            return 0;
+        long[] items = new long[size];
+        int n = 0;
+        long total = 0;
+        // pack (value, level) so one sort orders items by value
+        for (int h = 0; h < levels.length; h++) {
+            for (int i = 0; i < lens[h]; i++) {
+                items[n++] = ((long) levels[h][i] << 8) | h;
+                total += 1L << h;
+            }
+        }
+        Arrays.sort(items);
+        double target = q * total;
+        long seen = 0;
+        for (long item : items) {
+            seen += 1L << (item & 0xff);
+            if (seen >= target)
+                return (int) (item >> 8);
+        }
+        return (int) (items[n - 1] >> 8);
+    }
+}
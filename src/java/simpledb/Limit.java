@@ -0,0 +1,97 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit is an operator that implements LIMIT ... OFFSET without an ORDER BY.
+ * Since operators are pull-based, it stops upstream work as soon as it has
+ * produced its last tuple: the child is never asked for more than
+ * (offset + limit) tuples.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private int limit;
+    private int offset;
+    private int returned;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the maximum number of tuples to return
+     * @param offset
+     *            the number of leading child tuples to skip
+     * @param child
+     *            The child operator
+     */
+    public Limit(int limit, int offset, OpIterator child) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("limit and offset must be non-negative");
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public Limit(int limit, OpIterator child) {
+        this(limit, 0, child);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        returned = -offset;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        returned = -offset;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Skips the first offset tuples of the
+     * child and then passes through at most limit tuples.
+     *
+     * @return The next tuple, or null if the limit has been reached or the
+     *         child is exhausted
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        while (returned < limit && child.hasNext()) {
+            Tuple t = child.next();
+            if (returned++ >= 0)
+                return t;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -1,7 +1,12 @@
 package simpledb;
 import java.util.Map;
+import java.util.List;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -13,8 +18,8 @@ import java.util.NoSuchElementException;
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
  * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * A query may compute any number of aggregates, grouped by any number
+ * of fields; they are all evaluated by a single {@link Aggregate}.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,14 +34,26 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    private Vector<String> aggOps;
+    private Vector<String> aggFields;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1, offset = 0;
     private String query;
 //    private Query owner;
+    private boolean adaptive = false;
+    /** Aliases of the inputs earlier plans of this query found misestimated */
+    private HashSet<String> reoptimized = new HashSet<String>();
+    /** Whether joins are already in the order to build them in */
+    private boolean joinsOrdered = false;
+
+    /**
+     * Estimated number of input tuples above which aggregation is done in
+     * parallel with one thread per available processor.
+     */
+    public static final int PARALLEL_AGGREGATE_THRESHOLD = 100000;
 
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
@@ -47,6 +64,9 @@ public class LogicalPlan {
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
+        groupByFields = new Vector<String>();
+        aggOps = new Vector<String>();
+        aggFields = new Vector<String>();
         this.query = "";
     }
 
@@ -60,6 +80,91 @@ public class LogicalPlan {
         this.query = query;
     }
       
+    /** Set whether the physical plan checks the cardinality of the filtered
+        tables its hash joins build on, see {@link CardinalityCheck}.
+        A check whose estimate was badly off throws a
+        {@link ReoptimizeException}; the plan is then rebuilt with
+        {@link #reoptimize}.
+    */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /** Build the physical plan again after a {@link CardinalityCheck} found
+        the input it read was misestimated. Its observed selectivity
+        (recorded by the check) is used in place of the estimate, so joins
+        are ordered again with what is now known. The input is read again,
+        and only checked to record its selectivity, so planning ends.
+        @see #physicalPlan
+     */
+    public OpIterator reoptimize(TransactionId t, Map<String,TableStats> baseTableStats,
+            ReoptimizeException e) throws ParsingException {
+        reoptimized.add(e.getAlias());
+        joinsOrdered = false;
+        return physicalPlan(t, baseTableStats, false);
+    }
+
+    /** Create a copy of this plan with other filter constants and LIMIT
+        clause, for {@link StatementCache}. The copy shares this plan's nodes,
+        which the optimizer does not change.
+
+        @param constants the constant of each filter, in the order the
+          filters were added
+        @param limit the LIMIT of the copy, or -1 for none
+        @param offset the OFFSET of the copy
+        @param orderedJoins if not null, the joins in the order a physical
+          plan of an earlier copy built them in, which the copy builds them
+          in as well instead of ordering them again
+    */
+    LogicalPlan bind(String[] constants, int limit, int offset,
+            Vector<LogicalJoinNode> orderedJoins) {
+        LogicalPlan lp = new LogicalPlan();
+        lp.joins = new Vector<LogicalJoinNode>(orderedJoins != null ? orderedJoins : joins);
+        lp.joinsOrdered = orderedJoins != null;
+        lp.tables = tables;
+        for (int i = 0; i < filters.size(); i++) {
+            LogicalFilterNode lf = filters.get(i);
+            lp.filters.add(new LogicalFilterNode(lf.tableAlias, lf.fieldPureName,
+                    lf.p, constants[i]));
+        }
+        lp.tableMap = tableMap;
+        lp.selectList = selectList;
+        lp.groupByFields = groupByFields;
+        lp.hasAgg = hasAgg;
+        lp.aggOps = aggOps;
+        lp.aggFields = aggFields;
+        lp.oByAsc = oByAsc;
+        lp.hasOrderBy = hasOrderBy;
+        lp.oByField = oByField;
+        lp.limit = limit;
+        lp.offset = offset;
+        lp.query = query;
+        return lp;
+    }
+
+    /** @return the joins, in the order the last physical plan built them in */
+    Vector<LogicalJoinNode> getJoins() {
+        return joins;
+    }
+
+    /** @return the filters, in the order they were added */
+    Vector<LogicalFilterNode> getFilters() {
+        return filters;
+    }
+
+    /** @return the LIMIT added by {@link #addLimit}, or -1 if there is none */
+    int getLimit() {
+        return limit;
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
     /** Get the query text associated with this plan via {@link #setQuery}.
      */
     public String getQuery() {
@@ -186,23 +291,48 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  May be called once per aggregate expression; all
+        aggregates are computed together over the same groups.
         @param op the aggregation operator
-        @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param afield the field to aggregate over, or * for COUNT(*)
+        @param gfield a field to group by, or null to only add the aggregate
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
+        if (afield.equals("*"))
+            afield="null.*";
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
+        if (aggregateIndex(op, afield) < 0) {
+            aggOps.addElement(op);
+            aggFields.addElement(afield);
+        }
         hasAgg = true;
     }
 
+    /** Add a GROUP BY field to the query.  Output groups are keyed on all
+        GROUP BY fields, in the order in which they were added.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** @return the position of the aggregate op(afield) among the aggregates
+        of this plan, or -1 if it has not been added */
+    private int aggregateIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.elementAt(i).equalsIgnoreCase(op)
+                    && aggFields.elementAt(i).equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
         a single ORDER BY field.
         @param field the field to order by
@@ -216,6 +346,20 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT (and optional OFFSET) to the query.  With an ORDER BY this
+        becomes a bounded {@link TopN}; without one, a {@link Limit} that stops
+        pulling from its child once enough tuples have been produced.
+        @param limit the maximum number of tuples to return
+        @param offset the number of leading tuples to skip
+     * @throws ParsingException if limit or offset is negative
+    */
+    public void addLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET must be non-negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -268,9 +412,194 @@ public class LogicalPlan {
         if (s.equals("COUNT")) return Aggregator.Op.COUNT;
         if (s.equals("MIN")) return Aggregator.Op.MIN;
         if (s.equals("MAX")) return Aggregator.Op.MAX;
+        if (s.equals("APPROX_COUNT_DISTINCT")) return Aggregator.Op.APPROX_COUNT_DISTINCT;
+        if (s.equals("APPROX_MEDIAN")) return Aggregator.Op.APPROX_MEDIAN;
+        if (s.equals("APPROX_P90")) return Aggregator.Op.APPROX_P90;
+        if (s.equals("APPROX_P95")) return Aggregator.Op.APPROX_P95;
+        if (s.equals("APPROX_P99")) return Aggregator.Op.APPROX_P99;
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** @return the constant of filter lf as a field of type ftyp */
+    private static Field filterConstant(LogicalFilterNode lf, Type ftyp) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c).intValue());
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /** Choose how to read a table of the plan.  Tables stored in a
+     *  {@link BTreeFile} are read with a {@link BTreeScan} when one of the
+     *  filters on the table compares its key field with a constant and
+     *  descending the tree to the matching leaves is estimated to cost less
+     *  than scanning the whole file; everything else is read with a
+     *  {@link SeqScan}.
+     *  @param t The transaction the scan will run as a part of
+     *  @param table The table to read
+     *  @param file The file the table is stored in
+     *  @param stats The statistics of the table, or null if there are none
+     *  @param indexedFilters Set to which the filter the index scan applies
+     *    is added, so that no separate Filter is built for it
+     *  @return the scan operator for the table
+     */
+    private OpIterator accessPath(TransactionId t, LogicalScanNode table, DbFile file,
+            TableStats stats, Set<LogicalFilterNode> indexedFilters) {
+        if (file instanceof BTreeFile && stats != null) {
+            BTreeFile bf = (BTreeFile) file;
+            TupleDesc td = bf.getTupleDesc();
+            String keyName = td.getFieldName(bf.keyField());
+            LogicalFilterNode best = null;
+            Field bestConst = null;
+            double bestSel = 1.0;
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(table.alias) || !lf.fieldPureName.equals(keyName)
+                        || !isIndexable(lf.p))
+                    continue;
+                Field f;
+                try {
+                    f = filterConstant(lf, td.getFieldType(bf.keyField()));
+                } catch (NumberFormatException e) {
+                    continue; // reported when the filter itself is built
+                }
+                double sel = stats.estimateSelectivity(bf.keyField(), lf.p, f);
+                if (best == null || sel < bestSel) {
+                    best = lf;
+                    bestConst = f;
+                    bestSel = sel;
+                }
+            }
+            if (best != null) {
+                // internal pages always have room for this many children
+                int fanout = BTreeInternalPage.getEntriesPerPage(td.getFieldType(bf.keyField())) + 1;
+                int height = stats.estimateIndexHeight(fanout);
+                if (stats.estimateIndexScanCost(height, bestSel) < stats.estimateScanCost()) {
+                    indexedFilters.add(best);
+                    return new BTreeScan(t, table.t, table.alias,
+                            new IndexPredicate(best.p, bestConst));
+                }
+            }
+        }
+        return new SeqScan(t, file.getId(), table.alias);
+    }
+
+    /** Replace each sequential scan in subplanMap by one that evaluates the
+     *  filters on its table and returns only the fields the rest of the plan
+     *  refers to, so that the file can skip tuples and fields before they are
+     *  decoded.
+     *  @param t The transaction the scans will run as a part of
+     *  @param pushedFilters The predicates of the filters on each table
+     *    alias, over the fields of the table
+     */
+    private void pushDownIntoScans(TransactionId t,
+            Map<String,ArrayList<Predicate>> pushedFilters) {
+        Set<String> needed = referencedFields();
+        for (LogicalScanNode table : tables) {
+            OpIterator subplan = subplanMap.get(table.alias);
+            if (!(subplan instanceof SeqScan))
+                continue;
+            TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+            int[] fields = null;
+            if (needed != null) {
+                ArrayList<Integer> keep = new ArrayList<Integer>();
+                for (int i = 0; i < td.numFields(); i++)
+                    if (needed.contains(table.alias + "." + td.getFieldName(i)))
+                        keep.add(i);
+                // COUNT(*) still needs tuples with at least one field
+                if (keep.isEmpty())
+                    keep.add(0);
+                if (keep.size() < td.numFields()) {
+                    fields = new int[keep.size()];
+                    for (int i = 0; i < fields.length; i++)
+                        fields[i] = keep.get(i);
+                }
+            }
+            ArrayList<Predicate> preds = pushedFilters.get(table.alias);
+            if (fields == null && preds == null)
+                continue;
+            subplanMap.put(table.alias, new SeqScan(t, table.t, table.alias, fields,
+                    preds == null ? null : preds.toArray(new Predicate[preds.size()])));
+        }
+    }
+
+    /** @return the qualified names of the fields the joins, aggregates,
+     *  ordering and select list of this plan refer to, or null if the select
+     *  list includes every field (SELECT *).  Fields only used by filters are
+     *  not included: only sequential scans are projected, and they evaluate
+     *  the filters on their table themselves.
+     */
+    private Set<String> referencedFields() {
+        HashSet<String> needed = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.aggOp == null && si.fname.endsWith(".*"))
+                return null;
+            needed.add(si.fname);
+        }
+        needed.addAll(aggFields);
+        needed.addAll(groupByFields);
+        if (hasOrderBy)
+            needed.add(oByField);
+        for (LogicalJoinNode lj : joins) {
+            needed.add(lj.f1QuantifiedName);
+            needed.add(lj.f2QuantifiedName);
+        }
+        return needed;
+    }
+
+    /** @return a key identifying the filters on the table with the given
+        alias, the same for any query with the same filters on the same
+        table, or null if there are none
+    */
+    String filterKey(String alias) {
+        ArrayList<String> preds = new ArrayList<String>();
+        for (LogicalFilterNode lf : filters)
+            if (lf.tableAlias.equals(alias))
+                preds.add(lf.fieldPureName + lf.p + lf.c);
+        if (preds.isEmpty())
+            return null;
+        Collections.sort(preds);
+        StringBuilder sb = new StringBuilder();
+        for (String p : preds)
+            sb.append(sb.length() == 0 ? "" : " AND ").append(p);
+        return sb.toString();
+    }
+
+    /** If j is a hash join that builds on one of checkedInputs, put a
+        {@link CardinalityCheck} on that input. Only the build side is
+        checked: it is read before the join returns any tuple, so the plan
+        can still be replaced, and counting it as it passes into the hash
+        table costs no memory. A nested loops join streams its inner side.
+    */
+    private void addCardinalityCheck(OpIterator j,
+            IdentityHashMap<OpIterator,String> checkedInputs,
+            Map<String,TableStats> statsMap, Map<String,Double> filterSelectivities) {
+        if (!(j instanceof HashEquiJoin))
+            return;
+        int side = ((HashEquiJoin) j).buildsOnChild2() ? 1 : 0;
+        OpIterator[] children = ((Operator) j).getChildren().clone();
+        String alias = checkedInputs.remove(children[side]);
+        if (alias == null)
+            return;
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(getTableId(alias)));
+        int estimate = s.estimateTableCardinality(filterSelectivities.get(alias));
+        children[side] = new CardinalityCheck(children[side], alias, estimate, s,
+                filterKey(alias), !reoptimized.contains(alias), HashEquiJoin.MAP_SIZE);
+        ((Operator) j).setChildren(children);
+    }
+
+    /** @return true if a B+ tree can find the keys satisfying op directly */
+    private static boolean isIndexable(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -290,22 +619,28 @@ public class LogicalPlan {
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
 
+        HashSet<LogicalFilterNode> indexedFilters = new HashSet<LogicalFilterNode>();
+
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            DbFile file = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 file = Database.getCatalog().getDatabaseFile(table.t);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
-            subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
-            statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+            TableStats stats = baseTableStats.get(baseTableName);
+            subplanMap.put(table.alias, accessPath(t, table, file, stats, indexedFilters));
+            statsMap.put(baseTableName, stats);
             filterSelectivities.put(table.alias, 1.0);
 
         }
 
+        // filters on sequentially scanned tables are evaluated by the scan
+        HashMap<String,ArrayList<Predicate>> pushedFilters = new HashMap<String,ArrayList<Predicate>>();
+
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -323,10 +658,7 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(lf, ftyp);
 
             Predicate p = null;
             try {
@@ -334,7 +666,14 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (subplan instanceof SeqScan) {
+                if (!pushedFilters.containsKey(lf.tableAlias))
+                    pushedFilters.put(lf.tableAlias, new ArrayList<Predicate>());
+                pushedFilters.get(lf.tableAlias).add(p);
+            } else if (!indexedFilters.contains(lf)) {
+                // (the index scan already returns only tuples matching this filter)
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -343,10 +682,30 @@ public class LogicalPlan {
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        // selectivities observed when the same filters ran before replace
+        // the estimates
+        for (LogicalScanNode table : tables) {
+            String key = filterKey(table.alias);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            Double observed = key == null || s == null ? null : s.observedSelectivity(key);
+            if (observed != null)
+                filterSelectivities.put(table.alias, observed);
+        }
+
+        pushDownIntoScans(t, pushedFilters);
+
+        // filtered inputs whose cardinality is checked once they are read
+        IdentityHashMap<OpIterator,String> checkedInputs = new IdentityHashMap<OpIterator,String>();
+        for (LogicalScanNode table : tables) {
+            if (adaptive && filterKey(table.alias) != null)
+                checkedInputs.put(subplanMap.get(table.alias), table.alias);
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        if (!joinsOrdered)
+            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
@@ -383,6 +742,7 @@ public class LogicalPlan {
             
             OpIterator j;
             j = jo.instantiateJoin(lj,plan1,plan2);
+            addCardinalityCheck(j, checkedInputs, statsMap, filterSelectivities);
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -414,28 +774,25 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                int agg = aggregateIndex(si.aggOp, si.fname);
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
                 }
+                outFields.add(groupByFields.size() + agg);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -461,26 +818,114 @@ public class LogicalPlan {
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
+            int[] afields = new int[aggFields.size()];
+            Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+            int[] gfields = new int[groupByFields.size()];
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                for (int i = 0; i < afields.length; i++) {
+                    aops[i] = getAggOp(aggOps.elementAt(i));
+                    if (aggFields.elementAt(i).equals("null.*")) {
+                        if (aops[i] != Aggregator.Op.COUNT)
+                            throw new ParsingException("Only COUNT may be applied to *");
+                        afields[i] = 0;  // any field will do, there are no NULLs
+                    } else {
+                        afields[i] = td.fieldNameToIndex(aggFields.elementAt(i));
+                    }
+                }
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                aggNode = new Aggregate(node, afields, gfields, aops);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
+            int workers = Runtime.getRuntime().availableProcessors();
+            if (gfields.length == 1 && isOrderedOn(node, groupByFields.elementAt(0))) {
+                keepOrder(node);
+                aggNode.setStreaming(true);
+            }
+            else if (workers > 1 && estimateAggregateInput(statsMap, filterSelectivities)
+                    >= PARALLEL_AGGREGATE_THRESHOLD)
+                aggNode.setParallelism(workers);
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && limit >= 0) {
+            node = new TopN(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, limit, offset, node);
+        } else if (hasOrderBy) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        } else if (limit >= 0) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * @return true if plan is known to return its tuples sorted on the field
+     *   with the specified (qualified) name. Scans of a {@link BTreeFile},
+     *   sequential or through the index, are sorted on its key, Filters and CardinalityChecks keep the order
+     *   of their child, nested-loops Joins keep the order of their outer
+     *   child, and HashEquiJoins can keep that of their probe side (see
+     *   {@link #keepOrder}).
+     */
+    static boolean isOrderedOn(OpIterator plan, String field) {
+        if (plan instanceof OrderBy) {
+            return ((OrderBy) plan).getOrderFieldName().equals(field);
+        } else if (plan instanceof BTreeScan) {
+            BTreeScan scan = (BTreeScan) plan;
+            DbFile f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(scan.getTableName()));
+            return f instanceof BTreeFile && field.equals(
+                    plan.getTupleDesc().getFieldName(((BTreeFile) f).keyField()));
+        } else if (plan instanceof SeqScan) {
+            SeqScan scan = (SeqScan) plan;
+            DbFile f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(scan.getTableName()));
+            return f instanceof BTreeFile && field.equals(scan.getAlias() + "."
+                    + f.getTupleDesc().getFieldName(((BTreeFile) f).keyField()));
+        } else if (plan instanceof Filter || plan instanceof Join
+                || plan instanceof CardinalityCheck) {
+            return isOrderedOn(((Operator) plan).getChildren()[0], field);
+        } else if (plan instanceof HashEquiJoin) {
+            return isOrderedOn(((HashEquiJoin) plan).getProbeChild(), field);
+        }
+        return false;
+    }
+
+    /**
+     * Have the HashEquiJoins that {@link #isOrderedOn} found to pass on the
+     * order of plan's input keep it.
+     */
+    private static void keepOrder(OpIterator plan) {
+        if (plan instanceof HashEquiJoin) {
+            ((HashEquiJoin) plan).setKeepProbeOrder(true);
+            keepOrder(((HashEquiJoin) plan).getProbeChild());
+        } else if (plan instanceof Filter || plan instanceof Join
+                || plan instanceof CardinalityCheck) {
+            keepOrder(((Operator) plan).getChildren()[0]);
+        }
+    }
+
+    /**
+     * Estimate the number of tuples flowing into the aggregate. Joins are
+     * assumed not to grow their larger input (as for key/foreign-key joins),
+     * so this is the largest filtered base-table cardinality.
+     */
+    private int estimateAggregateInput(Map<String,TableStats> statsMap,
+            Map<String,Double> filterSelectivities) {
+        int card = 0;
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            if (s == null)
+                continue;
+            card = Math.max(card, s.estimateTableCardinality(
+                    filterSelectivities.get(table.alias)));
+        }
+        return card;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
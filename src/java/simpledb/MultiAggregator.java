@@ -0,0 +1,304 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Knows how to compute several aggregates at once over groups identified by
+ * any number of group-by fields. All aggregates share one hash table, so the
+ * input is read once no matter how many aggregates the query has.
+ * <p>
+ * Integer fields support MIN, MAX, SUM, AVG and COUNT; string fields only
+ * support COUNT. The approximate operators keep a fixed-size sketch per
+ * group instead: APPROX_COUNT_DISTINCT a {@link HyperLogLog} (any field
+ * type), the percentile operators a {@link KllSketch} (integer fields).
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of state slots per aggregate: count, sum, min, max. */
+    private static final int SLOTS = 4;
+
+    private int[] gbFields;
+    private int[] aFields;
+    private Op[] whats;
+    private boolean[] isInt;
+    private boolean hasSketches;
+    private TupleDesc desc;
+    /**
+     * Hash aggregation table, keyed on the group-by fields. Linked so results
+     * come out in first-seen order.
+     */
+    private LinkedHashMap<GroupKey, GroupState> groups;
+
+    /**
+     * Aggregate state of one group: SLOTS longs per aggregate, and a sketch
+     * for each approximate aggregate. AVG is kept as (sum, count) so partials
+     * can be merged.
+     */
+    private static class GroupState implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+        final long[] acc;
+        final Object[] sketches;
+
+        GroupState(long[] acc, Object[] sketches) {
+            this.acc = acc;
+            this.sketches = sketches;
+        }
+    }
+
+    /** The values of the group-by fields of one group. */
+    private static class GroupKey implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+        final Field[] fields;
+
+        GroupKey(Field[] fields) {
+            this.fields = fields;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof GroupKey
+                    && Arrays.equals(fields, ((GroupKey) o).fields);
+        }
+
+        public int hashCode() {
+            return Arrays.hashCode(fields);
+        }
+    }
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indices of the group-by fields in the tuple; an
+     *            empty array if there is no grouping
+     * @param td
+     *            the schema of the tuples that will be merged
+     * @param afields
+     *            the 0-based indices of the aggregate fields in the tuple
+     * @param whats
+     *            the aggregation operator of each aggregate field
+     * @throws IllegalArgumentException
+     *             if afields and whats differ in length, or an operator is not
+     *             supported for the type of its field
+     */
+    public MultiAggregator(int[] gbfields, TupleDesc td, int[] afields, Op[] whats) {
+        if (afields.length != whats.length || afields.length == 0)
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        gbFields = gbfields.clone();
+        aFields = afields.clone();
+        this.whats = whats.clone();
+        isInt = new boolean[afields.length];
+        for (int i = 0; i < afields.length; i++) {
+            isInt[i] = td.getFieldType(afields[i]) == Type.INT_TYPE;
+            switch (whats[i]) {
+            case MIN:
+            case MAX:
+            case SUM:
+            case AVG:
+            case APPROX_MEDIAN:
+            case APPROX_P90:
+            case APPROX_P95:
+            case APPROX_P99:
+                if (!isInt[i])
+                    throw new IllegalArgumentException(whats[i]
+                            + " is not supported on string fields");
+                break;
+            case COUNT:
+            case APPROX_COUNT_DISTINCT:
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported aggregate " + whats[i]);
+            }
+        }
+        Type[] types = new Type[gbfields.length + afields.length];
+        for (int i = 0; i < gbfields.length; i++)
+            types[i] = td.getFieldType(gbfields[i]);
+        for (int i = gbfields.length; i < types.length; i++)
+            types[i] = Type.INT_TYPE;
+        for (Op what : whats)
+            hasSketches |= what.isApproximate();
+        desc = new TupleDesc(types);
+        groups = new LinkedHashMap<>();
+    }
+
+    private GroupKey keyOf(Tuple tup) {
+        Field[] key = new Field[gbFields.length];
+        for (int i = 0; i < gbFields.length; i++)
+            key[i] = tup.getField(gbFields[i]);
+        return new GroupKey(key);
+    }
+
+    private GroupState newState() {
+        long[] s = new long[SLOTS * aFields.length];
+        Object[] sketches = hasSketches ? new Object[aFields.length] : null;
+        for (int i = 0; i < aFields.length; i++) {
+            s[SLOTS * i + 2] = Integer.MAX_VALUE;
+            s[SLOTS * i + 3] = Integer.MIN_VALUE;
+            if (whats[i] == Op.APPROX_COUNT_DISTINCT)
+                sketches[i] = new HyperLogLog();
+            else if (whats[i].isApproximate())
+                sketches[i] = new KllSketch(KllSketch.DEFAULT_K, groups.size());
+        }
+        return new GroupState(s, sketches);
+    }
+
+    /**
+     * Merge a new tuple into the aggregates of its group, creating the group
+     * if it has not been seen before.
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        GroupKey key = keyOf(tup);
+        GroupState g = groups.get(key);
+        if (g == null) {
+            g = newState();
+            groups.put(key, g);
+        }
+        long[] s = g.acc;
+        for (int i = 0, b = 0; i < aFields.length; i++, b += SLOTS) {
+            s[b]++;
+            if (hasSketches && g.sketches[i] != null) {
+                if (g.sketches[i] instanceof HyperLogLog)
+                    ((HyperLogLog) g.sketches[i]).add(tup.getField(aFields[i]));
+                else
+                    ((KllSketch) g.sketches[i]).add(
+                            ((IntField) tup.getField(aFields[i])).getValue());
+            } else if (isInt[i]) {
+                int v = ((IntField) tup.getField(aFields[i])).getValue();
+                s[b + 1] += v;
+                if (v < s[b + 2])
+                    s[b + 2] = v;
+                if (v > s[b + 3])
+                    s[b + 3] = v;
+            }
+        }
+    }
+
+    public void merge(Aggregator partial) {
+        if (!(partial instanceof MultiAggregator))
+            throw new IllegalArgumentException("cannot merge " + partial);
+        MultiAggregator other = (MultiAggregator) partial;
+        if (!Arrays.equals(other.gbFields, gbFields)
+                || !Arrays.equals(other.aFields, aFields)
+                || !Arrays.equals(other.whats, whats))
+            throw new IllegalArgumentException("incompatible partial aggregate");
+        for (Map.Entry<GroupKey, GroupState> e : other.groups.entrySet()) {
+            GroupState g = groups.get(e.getKey());
+            if (g == null) {
+                groups.put(e.getKey(), e.getValue());
+                continue;
+            }
+            long[] s = g.acc;
+            long[] o = e.getValue().acc;
+            for (int b = 0; b < s.length; b += SLOTS) {
+                s[b] += o[b];
+                s[b + 1] += o[b + 1];
+                s[b + 2] = Math.min(s[b + 2], o[b + 2]);
+                s[b + 3] = Math.max(s[b + 3], o[b + 3]);
+            }
+            for (int i = 0; hasSketches && i < aFields.length; i++) {
+                Object sk = e.getValue().sketches[i];
+                if (sk instanceof HyperLogLog)
+                    ((HyperLogLog) g.sketches[i]).merge((HyperLogLog) sk);
+                else if (sk instanceof KllSketch)
+                    ((KllSketch) g.sketches[i]).merge((KllSketch) sk);
+            }
+        }
+    }
+
+    /**
+     * @return the final value of aggregate i given the state of its group
+     */
+    private int aggregateValue(GroupState g, int i) {
+        long[] s = g.acc;
+        int b = SLOTS * i;
+        switch (whats[i]) {
+        case APPROX_COUNT_DISTINCT:
+            return (int) ((HyperLogLog) g.sketches[i]).estimate();
+        case APPROX_MEDIAN:
+        case APPROX_P90:
+        case APPROX_P95:
+        case APPROX_P99:
+            return ((KllSketch) g.sketches[i]).quantile(whats[i].quantile());
+        case MIN:
+            return (int) s[b + 2];
+        case MAX:
+            return (int) s[b + 3];
+        case SUM:
+            return (int) s[b + 1];
+        case AVG:
+            return (int) (s[b + 1] / s[b]);
+        case COUNT:
+            return (int) s[b];
+        default:
+            throw new UnsupportedOperationException("unsupported aggregate " + whats[i]);
+        }
+    }
+
+    public int numGroups() {
+        return groups.size();
+    }
+
+    public boolean containsGroup(Tuple tup) {
+        return groups.containsKey(keyOf(tup));
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples hold the group-by values followed by
+     *         the aggregate values, in the order given to the constructor
+     */
+    public OpIterator iterator() {
+        return new OpIterator() {
+            private static final long serialVersionUID = 1L;
+            private boolean is_open = false;
+            private Iterator<Map.Entry<GroupKey, GroupState>> it;
+
+            public void open() {
+                if (is_open)
+                    throw new IllegalStateException("Operator already open");
+                is_open = true;
+                it = groups.entrySet().iterator();
+            }
+
+            public boolean hasNext() {
+                if (!is_open)
+                    throw new IllegalStateException("Operator not yet open");
+                return it.hasNext();
+            }
+
+            public Tuple next() throws NoSuchElementException {
+                if (!is_open)
+                    throw new IllegalStateException("Operator not yet open");
+                Map.Entry<GroupKey, GroupState> e = it.next();
+                Tuple t = new Tuple(desc);
+                Field[] key = e.getKey().fields;
+                for (int i = 0; i < key.length; i++)
+                    t.setField(i, key[i]);
+                for (int i = 0; i < aFields.length; i++)
+                    t.setField(key.length + i,
+                            new IntField(aggregateValue(e.getValue(), i)));
+                return t;
+            }
+
+            public void rewind() {
+                if (!is_open)
+                    throw new IllegalStateException("Operator not yet open");
+                it = groups.entrySet().iterator();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return desc;
+            }
+
+            public void close() {
+                is_open = false;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,208 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * What actually happened at one node of a query plan while it ran: the
+ * number of tuples it returned, the wall-clock and CPU time spent in its
+ * open, hasNext, next and rewind calls, and the buffer pool hits and misses
+ * of the page requests it made itself.
+ * <p>
+ * Nodes are profiled by {@link #instrument}, which wraps every node of a plan
+ * in an iterator that measures the calls made to it. Times include the time
+ * spent in the node's children, while page requests are attributed to the
+ * innermost node being called, on the thread that runs the query; pages read
+ * by worker threads of parallel operators are not counted.
+ */
+public class OperatorProfile {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /** The node whose call the current thread is in, if it is profiled */
+    private static final ThreadLocal<OperatorProfile> current = new ThreadLocal<OperatorProfile>();
+
+    private long rows;
+    private long wallNanos;
+    private long cpuNanos;
+    private long pageHits;
+    private long pageMisses;
+
+    /** @return the number of tuples returned by the node */
+    public long rows() {
+        return rows;
+    }
+
+    /** @return the wall-clock time spent in the node, in milliseconds */
+    public double wallMillis() {
+        return wallNanos / 1e6;
+    }
+
+    /**
+     * @return the CPU time spent in the node, in milliseconds, or 0 if the
+     *         JVM does not measure the CPU time of threads
+     */
+    public double cpuMillis() {
+        return cpuNanos / 1e6;
+    }
+
+    /** @return the number of pages the node found in the buffer pool */
+    public long pageHits() {
+        return pageHits;
+    }
+
+    /** @return the number of pages the node had to read from disk */
+    public long pageMisses() {
+        return pageMisses;
+    }
+
+    /**
+     * Count a page request of the profiled node the current thread is in, if
+     * any.
+     *
+     * @param hit
+     *            true if the buffer pool held the page
+     */
+    static void pageRequested(boolean hit) {
+        OperatorProfile p = current.get();
+        if (p == null)
+            return;
+        if (hit)
+            p.pageHits++;
+        else
+            p.pageMisses++;
+    }
+
+    public String toString() {
+        return String.format("rows:%d,time:%.2fms,cpu:%.2fms,hit:%d,miss:%d",
+                rows, wallMillis(), cpuMillis(), pageHits, pageMisses);
+    }
+
+    private static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Wrap every node of a plan in an iterator that profiles it. The
+     * children of each operator are replaced by their wrappers; undo this
+     * with {@link #restore} once the plan has run.
+     *
+     * @param plan
+     *            the root of the plan
+     * @param profiles
+     *            receives the profile of every node of the plan
+     * @return the wrapped root, to run in place of plan
+     */
+    public static OpIterator instrument(OpIterator plan,
+            Map<OpIterator, OperatorProfile> profiles) {
+        if (plan instanceof Operator) {
+            Operator o = (Operator) plan;
+            OpIterator[] children = o.getChildren().clone();
+            for (int i = 0; i < children.length; i++)
+                if (children[i] != null)
+                    children[i] = instrument(children[i], profiles);
+            o.setChildren(children);
+        }
+        OperatorProfile profile = new OperatorProfile();
+        profiles.put(plan, profile);
+        return new Profiled(plan, profile);
+    }
+
+    /**
+     * Remove the wrappers {@link #instrument} put into a plan.
+     *
+     * @param plan
+     *            the wrapped root returned by instrument
+     * @return the original root
+     */
+    public static OpIterator restore(OpIterator plan) {
+        if (plan instanceof Profiled)
+            plan = ((Profiled) plan).child;
+        if (plan instanceof Operator) {
+            Operator o = (Operator) plan;
+            OpIterator[] children = o.getChildren().clone();
+            for (int i = 0; i < children.length; i++)
+                if (children[i] != null)
+                    children[i] = restore(children[i]);
+            o.setChildren(children);
+        }
+        return plan;
+    }
+
+    /** Measures the calls made to one node of a plan. */
+    private static class Profiled implements OpIterator {
+        private static final long serialVersionUID = 1L;
+        final OpIterator child;
+        final OperatorProfile profile;
+        private OperatorProfile caller;
+        private long wallStart;
+        private long cpuStart;
+
+        Profiled(OpIterator child, OperatorProfile profile) {
+            this.child = child;
+            this.profile = profile;
+        }
+
+        private void enter() {
+            caller = current.get();
+            current.set(profile);
+            wallStart = System.nanoTime();
+            cpuStart = cpuTime();
+        }
+
+        private void exit() {
+            profile.wallNanos += System.nanoTime() - wallStart;
+            profile.cpuNanos += cpuTime() - cpuStart;
+            current.set(caller);
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            enter();
+            try {
+                child.open();
+            } finally {
+                exit();
+            }
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            enter();
+            try {
+                return child.hasNext();
+            } finally {
+                exit();
+            }
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            enter();
+            try {
+                Tuple t = child.next();
+                profile.rows++;
+                return t;
+            } finally {
+                exit();
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            enter();
+            try {
+                child.rewind();
+            } finally {
+                exit();
+            }
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public void close() {
+            child.close();
+        }
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -12,6 +14,109 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    /**
+     * ZQL has no LIMIT support, so a trailing "LIMIT n [OFFSET m]" is peeled
+     * off the statement text before it is handed to the ZQL parser.
+     */
+    static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d+)(?:\\s+OFFSET\\s+(\\d+))?\\s*(;?)\\s*$",
+            Pattern.CASE_INSENSITIVE);
+
+    private int limit = -1;
+    private int offset = 0;
+
+    /**
+     * A leading "EXPLAIN ANALYZE" runs the query that follows and prints its
+     * plan annotated with what happened at each node instead of its result.
+     */
+    static final Pattern EXPLAIN_ANALYZE = Pattern.compile(
+            "^\\s*EXPLAIN\\s+ANALYZE\\s+", Pattern.CASE_INSENSITIVE);
+
+    private boolean analyze = false;
+
+    /** Plans of earlier SELECT statements, reused for ones like them */
+    private final StatementCache statementCache = new StatementCache(StatementCache.DEFAULT_CAPACITY);
+
+    /** Results of earlier SELECT statements, if enabled with -resultcache */
+    private ResultCache resultCache = null;
+
+    /** Approximate aggregates, registered with ZQL as one-argument functions. */
+    static final String[] APPROX_AGGREGATES = { "approx_count_distinct",
+            "approx_median", "approx_p90", "approx_p95", "approx_p99" };
+
+    static {
+        for (String f : APPROX_AGGREGATES)
+            ZUtils.addCustomFunction(f, 1);
+    }
+
+    /**
+     * Remove a leading EXPLAIN ANALYZE from s, remembering that the next
+     * query is to be analyzed.
+     *
+     * @return s without EXPLAIN ANALYZE
+     */
+    String stripExplainAnalyze(String s) {
+        Matcher m = EXPLAIN_ANALYZE.matcher(s);
+        analyze = m.find();
+        return analyze ? s.substring(m.end()) : s;
+    }
+
+    /**
+     * Remove the trailing LIMIT clause of the first statement in s,
+     * remembering its values so that the next top-level query plan built by
+     * this parser picks them up.
+     *
+     * @return s without its LIMIT clause
+     * @throws simpledb.ParsingException if the limit or offset does not fit
+     *             in an int
+     */
+    String stripLimitClause(String s) throws simpledb.ParsingException {
+        limit = -1;
+        offset = 0;
+        int end = s.indexOf(';') + 1;
+        if (end == 0)
+            end = s.length();
+        Matcher m = LIMIT_CLAUSE.matcher(s.substring(0, end));
+        if (!m.find())
+            return s;
+        limit = parseCount(m.group(1));
+        if (m.group(2) != null)
+            offset = parseCount(m.group(2));
+        return s.substring(0, m.start()) + m.group(3) + s.substring(end);
+    }
+
+    /**
+     * @return the value of the count of a LIMIT or OFFSET clause
+     * @throws simpledb.ParsingException if it is not an int
+     */
+    static int parseCount(String count) throws simpledb.ParsingException {
+        try {
+            return Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("Invalid LIMIT or OFFSET count " + count);
+        }
+    }
+
+    /** Attach (and consume) any pending LIMIT clause to a top-level plan. */
+    private void applyLimitClause(LogicalPlan lp) throws simpledb.ParsingException {
+        if (limit >= 0)
+            lp.addLimit(limit, offset);
+        limit = -1;
+        offset = 0;
+    }
+
+    /**
+     * Throw if a LIMIT clause was stripped from a statement other than a
+     * SELECT, rather than quietly running it on every row.
+     */
+    private void rejectLimitClause(String statement) throws simpledb.ParsingException {
+        if (limit < 0)
+            return;
+        limit = -1;
+        offset = 0;
+        throw new simpledb.ParsingException("LIMIT is only supported on SELECT, not on " + statement);
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -182,23 +287,20 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
+                lp.addGroupBy(groupByField);
             }
 
         }
@@ -207,8 +309,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +319,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField, null);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,13 +340,9 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
-
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
         // sort the data
 
         if (q.getOrderBy() != null) {
@@ -276,15 +371,46 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        applyLimitClause(lp);
+        return handleQueryPlan(lp, tId);
+    }
+
+    /**
+     * Plan a SELECT statement, reusing the plan of an earlier statement that
+     * only differed in its constants if there is one (see {@link StatementCache}).
+     */
+    public Query handlePreparedStatement(StatementCache.Statement st, TransactionId tId)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
+        LogicalPlan lp = statementCache.lookup(st);
+        boolean cached = lp != null;
+        if (lp == null && !statementCache.isUncacheable(st))
+            lp = statementCache.add(st, generateLogicalPlan(tId, st.probe));
+        if (lp == null)
+            lp = generateLogicalPlan(tId, st.text);
+        Query query = handleQueryPlan(lp, tId);
+        if (!cached)
+            statementCache.planned(st, lp);
+        return query;
+    }
+
+    private Query handleQueryPlan(LogicalPlan lp, TransactionId tId)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException {
         Query query = new Query(tId);
 
-        LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setAdaptive(true);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
 
-        if (physicalPlan != null) {
+        if (physicalPlan instanceof Operator && analyze) {
+            // the plan is printed once it has run
+            OperatorCardinality.updateOperatorCardinality((Operator) physicalPlan,
+                    lp.getTableAliasToIdMapping(), TableStats.getStatsMap());
+        } else if (physicalPlan != null) {
             Class<?> c;
             try {
                 c = Class.forName("simpledb.OperatorCardinality");
@@ -323,6 +449,7 @@ public class Parser {
     public Query handleInsertStatement(ZInsert s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        rejectLimitClause("INSERT");
         int tableId;
         try {
             tableId = Database.getCatalog().getTableId(s.getTable()); // will
@@ -397,6 +524,7 @@ public class Parser {
     public Query handleDeleteStatement(ZDelete s, TransactionId tid)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        rejectLimitClause("DELETE");
         int id;
         try {
             id = Database.getCatalog().getTableId(s.getTable()); // will fall
@@ -465,12 +593,13 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimitClause(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                applyLimitClause(lp);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -503,8 +632,21 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                bos.write(buf, 0, n);
+            String stmt = stripExplainAnalyze(bos.toString("UTF-8"));
+            // SELECT statements are parsed by handlePreparedStatement, unless
+            // their plan is cached
+            StatementCache.Statement prepared = StatementCache.parameterize(stmt);
+            ZStatement s = null;
+            if (prepared == null) {
+                stmt = stripLimitClause(stmt);
+                ZqlParser p = new ZqlParser(new ByteArrayInputStream(stmt.getBytes("UTF-8")));
+                s = p.readStatement();
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -517,7 +659,17 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    OpIterator cached = null;
+                    if (prepared != null && resultCache != null && !analyze)
+                        cached = resultCache.get(prepared.getResultKey());
+                    if (cached != null) {
+                        query = new Query(cached, curtrans.getId());
+                    } else if (prepared != null) {
+                        query = handlePreparedStatement(prepared, curtrans.getId());
+                        if (resultCache != null && !analyze)
+                            query.setResultRecorder(resultCache.record(prepared.getResultKey(),
+                                    query.getLogicalPlan().getTableAliasToIdMapping().values()));
+                    } else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
@@ -532,8 +684,13 @@ public class Parser {
                                         + s
                                         + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
                     }
-                    if (query != null)
+                    if (query != null && analyze && (prepared != null || s instanceof ZQuery))
+                        query.explainAnalyze();
+                    else if (query != null)
                         query.execute();
+                    // the cached join order turned out to be a bad one
+                    if (query != null && prepared != null && query.wasReoptimized())
+                        statementCache.invalidate(prepared);
 
                     if (!inUserTrans && curtrans != null) {
                         curtrans.commit();
@@ -581,11 +738,13 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit", "offset",
+            "approx_count_distinct(", "approx_median(", "approx_p90(",
+            "approx_p95(", "approx_p99(", "explain analyze" };
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,10 +754,22 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-resultcache bytes] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
+    /** Where the statistics of the catalog's tables are kept between runs */
+    private File statsFile = null;
+
     protected void shutdown() {
+        if (statsFile != null && TableStats.statisticsChanged()) {
+            try {
+                TableStats.saveStatistics(statsFile);
+            } catch (IOException e) {
+                System.out.println("Could not save table statistics: " + e.getMessage());
+            }
+        }
+        if (resultCache != null)
+            System.out.println("Result cache: " + resultCache);
         System.out.println("Bye");
     }
 
@@ -607,7 +778,10 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        // statistics are computed on first use for tables that changed since
+        // they were saved
+        statsFile = TableStats.statsFileFor(argv[0]);
+        TableStats.loadStatistics(statsFile);
 
         String queryFile = null;
 
@@ -616,6 +790,12 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-resultcache")) {
+                    long bytes = ResultCache.DEFAULT_MAX_BYTES;
+                    if (i + 1 < argv.length && argv[i + 1].matches("\\d+"))
+                        bytes = Long.parseLong(argv[++i]);
+                    resultCache = new ResultCache(bytes);
+                    System.out.println("Result cache enabled, " + bytes + " bytes.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -1,50 +1,113 @@
 package simpledb;
-import java.util.HashMap;
-import java.util.Set;
+
+import java.util.Arrays;
 import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to order a given set of joins.
+ * <p>
+ * A set of joins is a bitmask over the positions of the joins in the
+ * optimizer's join list. The memo is kept in primitive arrays indexed by
+ * that mask: for each set, the cost and cardinality of its best plan, the
+ * join that plan performs last, and which of the other joins build the input
+ * on the side of that join's first table. The full order is recovered by
+ * following the splits down to single joins.
+ */
 public class PlanCache {
-    HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
-    HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
-    HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
-    
+    /** The largest number of joins a PlanCache can hold plans for. */
+    public static final int MAX_JOINS = 20;
+
+    private final double[] bestCosts;
+    private final int[] bestCardinalities;
+    /** Index of the last join of the best plan, or -1 if there is none */
+    private final byte[] lastJoins;
+    /** Whether that join is performed with its inner and outer swapped */
+    private final boolean[] swapped;
+    /** The joins on the side of the first table of that join */
+    private final int[] t1Joins;
+
+    /** Create an empty cache for subsets of numJoins joins.
+        @throws IllegalArgumentException if numJoins exceeds {@link #MAX_JOINS}
+    */
+    public PlanCache(int numJoins) {
+        if (numJoins < 0 || numJoins > MAX_JOINS)
+            throw new IllegalArgumentException("cannot cache plans for " + numJoins + " joins");
+        int n = 1 << numJoins;
+        bestCosts = new double[n];
+        bestCardinalities = new int[n];
+        lastJoins = new byte[n];
+        swapped = new boolean[n];
+        t1Joins = new int[n];
+        Arrays.fill(lastJoins, (byte) -1);
+    }
+
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
         specified join set
         @param s the set of joins for which a new ordering (plan) is being added
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
+        @param lastJoin the join performed last in the plan
+        @param t1Side the joins of s that build the input on the side of the
+          first table of lastJoin; the best plans cached for them and for the
+          other joins of s are the two inputs of lastJoin
+        @param swap true if lastJoin has its inner and outer swapped
     */
-    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
+    void addPlan(long s, double cost, int card, int lastJoin, long t1Side, boolean swap) {
+        int i = (int) s;
+        bestCosts[i] = cost;
+        bestCardinalities[i] = card;
+        lastJoins[i] = (byte) lastJoin;
+        swapped[i] = swap;
+        t1Joins[i] = (int) t1Side;
     }
-    
-    /** Find the best join order in the cache for the specified plan 
+
+    /** @return true if a plan has been cached for the join set s */
+    boolean hasPlan(long s) {
+        return lastJoins[(int) s] >= 0;
+    }
+
+    /** Find the best join order in the cache for the specified plan
         @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+        @param joins the joins whose positions the bits of s refer to
+        @return the best order for s in the cache, or null if there is none
     */
-    Vector<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    Vector<LogicalJoinNode> getOrder(long s, Vector<LogicalJoinNode> joins) {
+        if (!hasPlan(s))
+            return null;
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        addOrder(s, joins, order);
+        return order;
+    }
+
+    /** Append the best order for s to order: the joins of both inputs of
+        its last join, then the last join itself */
+    private void addOrder(long s, Vector<LogicalJoinNode> joins,
+            Vector<LogicalJoinNode> order) {
+        int i = (int) s;
+        int j = lastJoins[i];
+        long t1Side = t1Joins[i];
+        long t2Side = s & ~t1Side & ~(1L << j);
+        if (t1Side != 0)
+            addOrder(t1Side, joins, order);
+        if (t2Side != 0)
+            addOrder(t2Side, joins, order);
+        order.add(swapped[i] ? joins.get(j).swapInnerOuter() : joins.get(j));
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
+
+    /** Find the cost of the best join order in the cache for the specified plan
         @param s the set of joins to look up the best cost for
         @return the cost of the best order for s in the cache
     */
-    double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    double getCost(long s) {
+        return bestCosts[(int) s];
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
+
+    /** Find the cardinality of the best join order in the cache for the specified plan
         @param s the set of joins to look up the best cardinality for
         @return the cardinality of the best order for s in the cache
     */
-    int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    int getCard(long s) {
+        return bestCardinalities[(int) s];
     }
 }
@@ -20,6 +20,12 @@ public class Query implements Serializable {
     transient private LogicalPlan logicalPlan;
     TransactionId tid;
     transient private boolean started = false;
+    /** The profiles of the running plan's nodes, while explainAnalyze runs */
+    transient private Map<OpIterator, OperatorProfile> profiles = null;
+    transient private boolean reoptimized = false;
+    transient private ResultCache.Recorder recorder = null;
+    /** Whether hasNext found the last tuple was returned */
+    transient private boolean exhausted = false;
 
     public TransactionId getTransactionId() {
         return this.tid;
@@ -50,20 +56,66 @@ public class Query implements Serializable {
         tid = t;
     }
 
+    /**
+     * Open the plan. If a {@link CardinalityCheck} in it finds its input was
+     * badly misestimated, the plan is closed and built again from the logical
+     * plan with what the check found (see {@link LogicalPlan#reoptimize}),
+     * until one opens.
+     */
     public void start() throws IOException, DbException,
             TransactionAbortedException {
-        op.open();
+        while (true) {
+            try {
+                op.open();
+                break;
+            } catch (ReoptimizeException e) {
+                if (logicalPlan == null)
+                    throw e;
+                op.close();
+                OpIterator plan;
+                try {
+                    plan = logicalPlan.reoptimize(tid, TableStats.getStatsMap(), e);
+                } catch (ParsingException pe) {
+                    throw new DbException("cannot re-optimize query: " + pe.getMessage());
+                }
+                if (profiles != null) {
+                    if (plan instanceof Operator)
+                        OperatorCardinality.updateOperatorCardinality((Operator) plan,
+                                logicalPlan.getTableAliasToIdMapping(), TableStats.getStatsMap());
+                    profiles.clear();
+                    plan = OperatorProfile.instrument(plan, profiles);
+                }
+                op = plan;
+                reoptimized = true;
+            }
+        }
 
         started = true;
     }
 
+    /**
+     * Have the tuples returned by {@link #next} recorded, to cache the result
+     * once all of them were returned and the query is closed.
+     */
+    public void setResultRecorder(ResultCache.Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /** @return true if the plan was rebuilt by {@link #start} */
+    public boolean wasReoptimized() {
+        return reoptimized;
+    }
+
     public TupleDesc getOutputTupleDesc() {
         return this.op.getTupleDesc();
     }
 
     /** @return true if there are more tuples remaining. */
     public boolean hasNext() throws DbException, TransactionAbortedException {
-        return op.hasNext();
+        boolean more = op.hasNext();
+        if (!more)
+            exhausted = true;
+        return more;
     }
 
     /**
@@ -83,13 +135,20 @@ public class Query implements Serializable {
         if (!started)
             throw new DbException("Database not started.");
 
-        return op.next();
+        Tuple t = op.next();
+        if (recorder != null)
+            recorder.add(t);
+        return t;
     }
 
     /** Close the iterator */
     public void close() throws IOException {
         op.close();
         started = false;
+        if (recorder != null) {
+            recorder.finish(op.getTupleDesc(), exhausted);
+            recorder = null;
+        }
     }
 
     public void execute() throws IOException, DbException, TransactionAbortedException {
@@ -115,4 +174,32 @@ public class Query implements Serializable {
         System.out.println("\n " + cnt + " rows.");
         this.close();
     }
+
+    /**
+     * Run the query without printing its result, then print its plan with
+     * the estimated cardinality of each node next to what actually happened
+     * there (see {@link OperatorProfile}). If the query is re-optimized while
+     * it starts, the plan printed is the one that ran.
+     */
+    public void explainAnalyze() throws IOException, DbException,
+            TransactionAbortedException {
+        profiles = new IdentityHashMap<OpIterator, OperatorProfile>();
+        op = OperatorProfile.instrument(op, profiles);
+        long start = System.nanoTime();
+        int cnt = 0;
+        try {
+            this.start();
+            while (this.hasNext()) {
+                this.next();
+                cnt++;
+            }
+            this.close();
+        } finally {
+            op = OperatorProfile.restore(op);
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        System.out.println(new QueryPlanVisualizer().getQueryPlanTree(op, profiles));
+        profiles = null;
+        System.out.println(String.format(" %d rows in %.2f ms.", cnt, millis));
+    }
 }
@@ -3,6 +3,7 @@ package simpledb;
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Map;
 import simpledb.TupleDesc.TDItem;
 
 public class QueryPlanVisualizer {
@@ -13,7 +14,11 @@ public class QueryPlanVisualizer {
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index scan";
     static final String ORDERBY = "o";
+    static final String TOPN = "top";
+    static final String LIMIT = "limit";
+    static final String CHECK = "check";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
 
@@ -39,6 +44,15 @@ public class QueryPlanVisualizer {
         return 2;
     }
 
+    /** What actually happened at each node, or null to only show estimates */
+    private Map<OpIterator, OperatorProfile> profiles = null;
+
+    /** @return text followed by the profile of node, if there is one */
+    private String annotate(OpIterator node, String text) {
+        OperatorProfile p = profiles == null ? null : profiles.get(node);
+        return p == null ? text : text + "," + p;
+    }
+
     private static class SubTreeDescriptor {
         int width;
         int upBarPosition;
@@ -65,24 +79,48 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof BTreeScan) {
+            String scan = SCAN;
+            String tableName, alias, cond = "";
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                if (s.getPredicates() != null) {
+                    TupleDesc td = Database.getCatalog().getTupleDesc(
+                            Database.getCatalog().getTableId(tableName));
+                    for (Predicate p : s.getPredicates())
+                        cond += "," + alias + "." + td.getFieldName(p.getField())
+                                + p.getOp() + p.getOperand();
+                }
+            } else {
+                BTreeScan s = (BTreeScan) queryPlan;
+                scan = INDEX_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                IndexPredicate ipred = s.getIndexPredicate();
+                if (ipred != null) {
+                    BTreeFile f = (BTreeFile) Database.getCatalog()
+                            .getDatabaseFile(Database.getCatalog().getTableId(tableName));
+                    cond = "," + s.getTupleDesc().getFieldName(f.keyField())
+                            + ipred.getOp() + ipred.getField();
+                }
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias + cond);
+            thisNode.text = annotate(queryPlan, thisNode.text);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -116,6 +154,7 @@ public class QueryPlanVisualizer {
                         + children[0].getTupleDesc().numFields());
                 thisNode.text = String.format("%1$s(%2$s),card:%3$d", JOIN,
                         field1 + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = annotate(queryPlan, thisNode.text);
                 int upBarShift = parentUpperBarStartShift;
                 if (JOIN.length() / 2 > parentUpperBarStartShift)
                     upBarShift = JOIN.length() / 2;
@@ -145,6 +184,7 @@ public class QueryPlanVisualizer {
                         + children[0].getTupleDesc().numFields());
                 thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
                         + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = annotate(queryPlan, thisNode.text);
                 int upBarShift = parentUpperBarStartShift;
                 if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
                     upBarShift = HASH_JOIN.length() / 2;
@@ -171,15 +211,25 @@ public class QueryPlanVisualizer {
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
+                String aggs = "";
+                for (int i = 0; i < a.numAggregates(); i++) {
+                    aggs += (i == 0 ? "" : ", ") + a.aggregateOp(i) + "("
+                            + a.aggregateFieldName(i) + ")";
+                }
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
+                    thisNode.text = annotate(queryPlan, thisNode.text);
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    String groups = a.groupFieldName(0);
+                    for (int i = 1; i < a.numGroupFields(); i++) {
+                        groups += "," + a.groupFieldName(i);
+                    }
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
+                    thisNode.text = annotate(queryPlan, thisNode.text);
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -203,6 +253,7 @@ public class QueryPlanVisualizer {
                         .getTupleDesc().getFieldName(p.getField())
                         + p.getOp()
                         + p.getOperand(),f.getEstimatedCardinality());
+                thisNode.text = annotate(queryPlan, thisNode.text);
                 int upBarShift = parentUpperBarStartShift;
                 if (SELECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = SELECT.length() / 2;
@@ -224,6 +275,7 @@ public class QueryPlanVisualizer {
                         ORDERBY,
                         children[0].getTupleDesc().getFieldName(
                                 o.getOrderByField()),o.getEstimatedCardinality());
+                thisNode.text = annotate(queryPlan, thisNode.text);
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
@@ -238,6 +290,61 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof TopN || plan instanceof Limit) {
+                String name;
+                if (plan instanceof TopN) {
+                    TopN t = (TopN) plan;
+                    name = TOPN;
+                    thisNode.text = String.format(
+                            "%1$s(%2$s,%3$d+%4$d),card:%5$d",
+                            TOPN,
+                            children[0].getTupleDesc().getFieldName(
+                                    t.getOrderByField()), t.getOffset(),
+                            t.getLimit(), t.getEstimatedCardinality());
+                    thisNode.text = annotate(queryPlan, thisNode.text);
+                } else {
+                    Limit l = (Limit) plan;
+                    name = LIMIT;
+                    thisNode.text = String.format("%1$s(%2$d+%3$d),card:%4$d",
+                            LIMIT, l.getOffset(), l.getLimit(),
+                            l.getEstimatedCardinality());
+                    thisNode.text = annotate(queryPlan, thisNode.text);
+                }
+                int upBarShift = parentUpperBarStartShift;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - name.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            } else if (plan instanceof CardinalityCheck) {
+                CardinalityCheck c = (CardinalityCheck) plan;
+                thisNode.text = String.format("%1$s(%2$s%3$s),card:%4$d",
+                        CHECK, c.getAlias(),
+                        c.isAdaptive() ? ",adaptive" : "",
+                        c.getEstimatedCardinality());
+                thisNode.text = annotate(queryPlan, thisNode.text);
+                int upBarShift = parentUpperBarStartShift;
+                if (CHECK.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = CHECK.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - CHECK.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 String fields = "";
@@ -246,6 +353,7 @@ public class QueryPlanVisualizer {
                     fields += it.next().fieldName + ",";
                 fields = fields.substring(0, fields.length() - 1);
                 thisNode.text = String.format("%1$s(%2$s),card:%3$d", PROJECT, fields,p.getEstimatedCardinality());
+                thisNode.text = annotate(queryPlan, thisNode.text);
                 int upBarShift = parentUpperBarStartShift;
                 if (PROJECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = PROJECT.length() / 2;
@@ -272,6 +380,7 @@ public class QueryPlanVisualizer {
                 } 
 
                 thisNode.text = String.format("%1$s,card:%2$d", name,card);
+                thisNode.text = annotate(queryPlan, thisNode.text);
                 int upBarShift = parentUpperBarStartShift;
                 if (name.length() / 2 > parentUpperBarStartShift)
                     upBarShift = name.length() / 2;
@@ -307,6 +416,7 @@ public class QueryPlanVisualizer {
                 } 
                 String oldName = plan.getChildren()[0].getTupleDesc().getFieldName(fieldIdx);
                 thisNode.text = String.format("%1$s,%2$s->%3$s,card:%4$d", RENAME,oldName,newName,plan.getEstimatedCardinality());
+                thisNode.text = annotate(queryPlan, thisNode.text);
                 int upBarShift = parentUpperBarStartShift;
                 if (RENAME.length() / 2 > parentUpperBarStartShift)
                     upBarShift = RENAME.length() / 2;
@@ -390,6 +500,21 @@ public class QueryPlanVisualizer {
         return sb.reverse().toString();
     }
 
+    /**
+     * @return the plan tree with what actually happened at each node next to
+     *         its estimated cardinality
+     * @see OperatorProfile#instrument
+     */
+    public String getQueryPlanTree(OpIterator physicalPlan,
+            Map<OpIterator, OperatorProfile> profiles) {
+        this.profiles = profiles;
+        try {
+            return getQueryPlanTree(physicalPlan);
+        } finally {
+            this.profiles = null;
+        }
+    }
+
     public void printQueryPlanTree(OpIterator physicalPlan, PrintStream out) {
         if (out == null)
             out = System.out;
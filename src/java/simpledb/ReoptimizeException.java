@@ -0,0 +1,33 @@
+package simpledb;
+
+/**
+ * Thrown by a {@link CardinalityCheck} whose input turned out much larger or
+ * smaller than the optimizer estimated, to have the query planned again.
+ */
+public class ReoptimizeException extends DbException {
+    private static final long serialVersionUID = 1L;
+
+    private final String alias;
+
+    /**
+     * @param alias
+     *            the alias of the table whose input was misestimated
+     * @param estimated
+     *            the estimated number of tuples of the input
+     * @param observed
+     *            the number of tuples read from it
+     * @param exhausted
+     *            true if those were all of its tuples, false if it has more
+     */
+    public ReoptimizeException(String alias, int estimated, int observed,
+            boolean exhausted) {
+        super("input " + alias + " has " + (exhausted ? "" : "at least ")
+                + observed + " tuples, " + estimated + " estimated");
+        this.alias = alias;
+    }
+
+    /** @return the alias of the table whose input was misestimated */
+    public String getAlias() {
+        return alias;
+    }
+}
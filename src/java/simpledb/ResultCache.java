@@ -0,0 +1,245 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the results of SELECT statements, so a statement that is run again
+ * before any table it reads has changed is answered from memory without
+ * planning it or reading any page.
+ * <p>
+ * Every table has a version number that {@link BufferPool#insertTuple} and
+ * {@link BufferPool#deleteTuple} increment (and so every {@link Insert} and
+ * {@link Delete}). A result is cached along with the versions of the tables
+ * its query read, and is only served while they are all unchanged. Results
+ * are kept up to a total size in bytes, evicting the least recently used.
+ * <p>
+ * A result is only cached once the query has returned all of its tuples, and
+ * only if no table it reads changed while it ran.
+ */
+public class ResultCache {
+
+    /** The default total size of the cached results, in bytes. */
+    public static final long DEFAULT_MAX_BYTES = 16L << 20;
+
+    /** Estimated size of a cached tuple beyond its fields */
+    private static final int TUPLE_OVERHEAD = 32;
+
+    private static final ConcurrentHashMap<Integer, AtomicLong> versions = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    private static AtomicLong counter(int tableid) {
+        AtomicLong v = versions.get(tableid);
+        if (v == null) {
+            AtomicLong fresh = new AtomicLong();
+            v = versions.putIfAbsent(tableid, fresh);
+            if (v == null)
+                v = fresh;
+        }
+        return v;
+    }
+
+    /**
+     * Increment the version of a table, because a tuple was inserted into
+     * it or deleted from it.
+     */
+    static void tableModified(int tableid) {
+        counter(tableid).incrementAndGet();
+    }
+
+    /** @return the current version of a table */
+    public static long version(int tableid) {
+        return counter(tableid).get();
+    }
+
+    private static class Entry {
+        final TupleDesc td;
+        final List<Tuple> tuples;
+        final long bytes;
+        final Catalog catalog;
+        final int[] tableIds;
+        final long[] tableVersions;
+
+        Entry(TupleDesc td, List<Tuple> tuples, long bytes, Catalog catalog,
+                int[] tableIds, long[] tableVersions) {
+            this.td = td;
+            this.tuples = tuples;
+            this.bytes = bytes;
+            this.catalog = catalog;
+            this.tableIds = tableIds;
+            this.tableVersions = tableVersions;
+        }
+
+        boolean isValid() {
+            if (Database.getCatalog() != catalog)
+                return false;
+            for (int i = 0; i < tableIds.length; i++)
+                if (version(tableIds[i]) != tableVersions[i])
+                    return false;
+            return true;
+        }
+    }
+
+    /**
+     * Collects the result of a query that missed the cache, and caches it
+     * once the query has returned all of its tuples. See
+     * {@link Query#setResultRecorder}.
+     */
+    public class Recorder {
+        private final String key;
+        private final Catalog catalog;
+        private final int[] tableIds;
+        private final long[] tableVersions;
+        private ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        private long bytes = 0;
+
+        Recorder(String key, Collection<Integer> tables) {
+            this.key = key;
+            this.catalog = Database.getCatalog();
+            tableIds = new int[tables.size()];
+            tableVersions = new long[tables.size()];
+            int i = 0;
+            for (Integer id : tables) {
+                tableIds[i] = id;
+                tableVersions[i] = version(id);
+                i++;
+            }
+        }
+
+        /** Record the next tuple of the result. */
+        public void add(Tuple t) {
+            if (tuples == null)
+                return;
+            bytes += t.getTupleDesc().getSize() + TUPLE_OVERHEAD;
+            if (bytes > maxBytes)
+                tuples = null; // too large to ever be cached
+            else
+                tuples.add(t);
+        }
+
+        /**
+         * Cache the recorded result, if the query returned all of its
+         * tuples and the tables it read did not change meanwhile.
+         *
+         * @param td
+         *            the schema of the result
+         * @param complete
+         *            true if the query returned all of its tuples
+         */
+        public void finish(TupleDesc td, boolean complete) {
+            if (tuples == null || !complete)
+                return;
+            for (int i = 0; i < tableIds.length; i++)
+                if (version(tableIds[i]) != tableVersions[i])
+                    return;
+            put(key, new Entry(td, tuples, bytes, catalog, tableIds, tableVersions));
+            tuples = null;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxBytes
+     *            the largest total size of the cached results, in bytes
+     */
+    public ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param key
+     *            the normalized text of a statement, constants included
+     * @return an iterator over the cached result of the statement, which
+     *         reads no pages, or null if there is no up to date result
+     */
+    public synchronized OpIterator get(String key) {
+        Entry e = entries.get(key);
+        if (e != null && !e.isValid()) {
+            remove(key);
+            e = null;
+        }
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new TupleIterator(e.td, e.tuples);
+    }
+
+    /**
+     * Start recording the result of a statement that missed the cache.
+     *
+     * @param key
+     *            the normalized text of the statement, constants included
+     * @param tables
+     *            the ids of the tables the statement reads
+     */
+    public Recorder record(String key, Collection<Integer> tables) {
+        return new Recorder(key, tables);
+    }
+
+    private synchronized void put(String key, Entry e) {
+        remove(key);
+        entries.put(key, e);
+        bytes += e.bytes;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            bytes -= eldest.bytes;
+            evictions++;
+        }
+    }
+
+    private void remove(String key) {
+        Entry e = entries.remove(key);
+        if (e != null)
+            bytes -= e.bytes;
+    }
+
+    /** Drop all cached results. */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /** @return the number of results cached */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the total estimated size of the cached results, in bytes */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /** @return the number of results evicted to make room for others */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /** @return the fraction of lookups answered from the cache */
+    public synchronized double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    public synchronized String toString() {
+        return String.format("hits:%d,misses:%d,hit rate:%.1f%%,results:%d,bytes:%d,evictions:%d",
+                hits, misses, 100 * hitRate(), entries.size(), bytes, evictions);
+    }
+}
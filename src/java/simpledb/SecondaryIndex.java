@@ -0,0 +1,168 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * SecondaryIndex maps the values of one field of a HeapFile table to the
+ * record ids of the tuples holding them. Its entries are stored in a
+ * BTreeFile as (key, page number, slot number) tuples keyed on the key.
+ * <p>
+ * An index is registered with {@link Catalog#addIndex}, after which
+ * {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple} keep it
+ * up to date, and {@link IndexScan} reads the table through it.
+ */
+public class SecondaryIndex {
+
+    private final int tableId;
+    private final int field;
+    private final BTreeFile file;
+
+    /**
+     * Open the index stored in f on a field of a table.
+     *
+     * @param f the file holding the entries of the index
+     * @param tableId the id of the indexed table, which must be a HeapFile
+     * @param field the index of the indexed field of the table
+     */
+    public SecondaryIndex(File f, int tableId, int field) {
+        DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(table instanceof HeapFile))
+            throw new IllegalArgumentException("secondary indexes are only supported on heap files");
+        this.tableId = tableId;
+        this.field = field;
+        this.file = new BTreeFile(f, 0,
+                getTupleDesc(table.getTupleDesc().getFieldType(field)));
+    }
+
+    /**
+     * Build an index over the tuples a table holds, replacing any contents
+     * of f. The entries are sorted and packed into the index with a
+     * {@link BTreeBulkLoader}, so tuples must not be inserted into or
+     * deleted from the table until the index is added to the Catalog.
+     *
+     * @param tid the transaction reading the table
+     * @param tableId the id of the table to index, which must be a HeapFile
+     * @param field the index of the field to index
+     * @param f the file to hold the entries of the index
+     */
+    public static SecondaryIndex build(TransactionId tid, int tableId, int field, File f)
+            throws DbException, IOException, TransactionAbortedException {
+        final SecondaryIndex index = new SecondaryIndex(f, tableId, field);
+        final DbFileIterator tuples = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        DbFileIterator entries = new AbstractDbFileIterator() {
+            public void open() throws DbException, TransactionAbortedException {
+                tuples.open();
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                tuples.rewind();
+            }
+
+            public void close() {
+                super.close();
+                tuples.close();
+            }
+
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                return tuples.hasNext() ? index.entry(tuples.next()) : null;
+            }
+        };
+        new BTreeBulkLoader(index.file.getTupleDesc(), 0).load(entries, f);
+        return index;
+    }
+
+    /**
+     * @return the schema of the entries of an index on a field of the given
+     *         type: the key, then the page and slot number of its tuple
+     */
+    public static TupleDesc getTupleDesc(Type keyType) {
+        return new TupleDesc(new Type[]{keyType, Type.INT_TYPE, Type.INT_TYPE},
+                new String[]{"key", "page", "slot"});
+    }
+
+    /** @return the BTreeFile holding the entries of this index */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    /** @return the id of the indexed table */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the index of the indexed field of the table */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * @return the entry of this index pointing to t, which must have a
+     *         record id
+     */
+    private Tuple entry(Tuple t) {
+        RecordId rid = t.getRecordId();
+        Tuple e = new Tuple(file.getTupleDesc());
+        e.setField(0, t.getField(field));
+        e.setField(1, new IntField(rid.getPageId().getPageNumber()));
+        e.setField(2, new IntField(rid.getTupleNumber()));
+        return e;
+    }
+
+    /**
+     * @return the record id of the tuple an entry of this index points to
+     */
+    public RecordId getRecordId(Tuple entry) {
+        return new RecordId(new HeapPageId(tableId,
+                ((IntField) entry.getField(1)).getValue()),
+                ((IntField) entry.getField(2)).getValue());
+    }
+
+    /**
+     * @return an iterator over the entries of this index whose keys satisfy
+     *         ipred, or over all of them in key order if ipred is null
+     */
+    public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+        return ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+    }
+
+    /**
+     * Add the entry for a tuple just inserted into the table.
+     *
+     * @param tid the transaction inserting the tuple
+     * @param t the tuple, with the record id it was inserted at
+     */
+    void insertEntry(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, file.getId(), entry(t));
+    }
+
+    /**
+     * Remove the entry for a tuple just deleted from the table.
+     *
+     * @param tid the transaction deleting the tuple
+     * @param t the tuple
+     * @param rid the record id the tuple was deleted from
+     * @throws DbException if this index has no entry for the tuple
+     */
+    void deleteEntry(TransactionId tid, Tuple t, RecordId rid)
+            throws DbException, IOException, TransactionAbortedException {
+        Field key = t.getField(field);
+        Tuple target = null;
+        DbFileIterator it = file.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, key));
+        it.open();
+        try {
+            while (target == null && it.hasNext()) {
+                Tuple e = it.next();
+                if (rid.equals(getRecordId(e)))
+                    target = e;
+            }
+        } finally {
+            it.close();
+        }
+        if (target == null)
+            throw new DbException("no entry for " + key + " at " + rid + " in index");
+        Database.getBufferPool().deleteTuple(tid, target);
+    }
+}
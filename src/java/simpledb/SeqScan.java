@@ -15,6 +15,8 @@ public class SeqScan implements OpIterator {
     private int tableId;
     private String tableAlias;
     private DbFile dbFile;
+    private int[] fields;
+    private Predicate[] predicates;
     private DbFileIterator iter;
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -40,6 +42,32 @@ public class SeqScan implements OpIterator {
         dbFile =  Database.getCatalog().getDatabaseFile(tableId);
     }
 
+    /**
+     * Creates a sequential scan that returns only the tuples satisfying a
+     * set of predicates, holding only some of their fields. Both are handed
+     * to {@link DbFile#iterator(TransactionId, int[], Predicate[])}, so the
+     * file can drop tuples before decoding them.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table (see above)
+     * @param fields
+     *            the indices of the fields of the table to return, in order,
+     *            or null for all of them
+     * @param predicates
+     *            predicates over the fields of the table that every returned
+     *            tuple must satisfy, or null
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias,
+            int[] fields, Predicate[] predicates) {
+        this(tid, tableid, tableAlias);
+        this.fields = fields;
+        this.predicates = predicates;
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
@@ -58,6 +86,21 @@ public class SeqScan implements OpIterator {
         return tableAlias;
     }
 
+    /**
+     * @return the indices of the table's fields this scan returns, or null
+     *         if it returns all of them
+     */
+    public int[] getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the predicates evaluated by the scan itself, or null
+     */
+    public Predicate[] getPredicates() {
+        return predicates;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -74,6 +117,8 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.fields = null;
+        this.predicates = null;
         if (iter != null) {
             iter.close();
         }
@@ -89,7 +134,10 @@ public class SeqScan implements OpIterator {
         if (iter != null) {
             throw new DbException("already be opened");
         }
-        iter = dbFile.iterator(tid);
+        if (fields == null && predicates == null)
+            iter = dbFile.iterator(tid);
+        else
+            iter = dbFile.iterator(tid, fields, predicates);
         iter.open();
     }
 
@@ -106,6 +154,8 @@ public class SeqScan implements OpIterator {
     public TupleDesc getTupleDesc() {
         // some code goes here
         TupleDesc desc = dbFile.getTupleDesc();
+        if (fields != null)
+            desc = desc.project(fields);
         Iterator<TupleDesc.TDItem> iter = desc.iterator();
         Type[] types = new Type[desc.numFields()];
         String[] names = new String[desc.numFields()];
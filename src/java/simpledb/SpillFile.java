@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples used by operators that have to
+ * move intermediate data out of the heap. Tuples are appended with
+ * {@link #add}, and once {@link #finish} has been called the file can be
+ * read back, in insertion order, through {@link #iterator}.
+ * <p>
+ * Tuples are stored in the same fixed-width format HeapPage uses for its
+ * slots, so every tuple occupies exactly td.getSize() bytes. Spill files
+ * bypass the BufferPool: they are private to one operator and never
+ * shared between transactions.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File f;
+    private DataOutputStream out;
+    private int numTuples = 0;
+
+    /**
+     * Creates a new, empty spill file in the default temporary directory.
+     *
+     * @param td
+     *            the schema of the tuples that will be stored
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        f = File.createTempFile("simpledb", ".spill");
+        f.deleteOnExit();
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(f)));
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples added to this file
+     */
+    public int numTuples() {
+        return numTuples;
+    }
+
+    /**
+     * @return the number of bytes occupied by the tuples in this file
+     */
+    public long sizeInBytes() {
+        return (long) numTuples * td.getSize();
+    }
+
+    /**
+     * Append a tuple to the file.
+     *
+     * @throws IllegalStateException
+     *             if {@link #finish} has already been called
+     */
+    public void add(Tuple t) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("spill file already finished");
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        numTuples++;
+    }
+
+    /**
+     * Flush buffered tuples and make the file readable. Calling this more
+     * than once has no effect.
+     */
+    public void finish() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /** Remove the file from disk. */
+    public void delete() {
+        try {
+            finish();
+        } catch (IOException e) {
+            // the file is going away anyway
+        }
+        f.delete();
+    }
+
+    /**
+     * @return an OpIterator over the tuples of this file, in the order in
+     *         which they were added
+     */
+    public OpIterator iterator() {
+        return new OpIterator() {
+
+            private static final long serialVersionUID = 1L;
+            private transient DataInputStream in;
+            private int pos;
+
+            public void open() throws DbException {
+                if (out != null)
+                    throw new IllegalStateException("spill file not finished");
+                try {
+                    in = new DataInputStream(new BufferedInputStream(
+                            new FileInputStream(f)));
+                } catch (FileNotFoundException e) {
+                    throw new DbException(e.toString());
+                }
+                pos = 0;
+            }
+
+            public boolean hasNext() {
+                if (in == null)
+                    throw new IllegalStateException("iterator not yet open");
+                return pos < numTuples;
+            }
+
+            public Tuple next() throws DbException {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = new Tuple(td);
+                try {
+                    for (int i = 0; i < td.numFields(); i++)
+                        t.setField(i, td.getFieldType(i).parse(in));
+                } catch (java.text.ParseException e) {
+                    throw new DbException(e.toString());
+                }
+                pos++;
+                return t;
+            }
+
+            public void rewind() throws DbException {
+                close();
+                open();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            public void close() {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // nothing useful to do
+                    }
+                    in = null;
+                }
+            }
+        };
+    }
+}
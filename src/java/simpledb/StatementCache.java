@@ -0,0 +1,347 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Caches the logical plans of SELECT statements, keyed by their text with
+ * every constant replaced by a placeholder. A statement that only differs
+ * from an earlier one in its constants skips ZQL parsing, building the
+ * logical plan and ordering its joins: the cached plan is copied with the
+ * new constants (see {@link LogicalPlan#bind}) and its joins are built in the
+ * order chosen for the first statement, like a prepared statement's generic
+ * plan. Access paths and join implementations are still chosen for the
+ * actual constants.
+ * <p>
+ * A cached plan is dropped when it is next looked up after the catalog, a
+ * table it reads or the statistics of such a table were replaced, or when
+ * {@link #invalidate} is called for it. Statements with subqueries, whose
+ * plans are built while parsing, are never cached.
+ * <p>
+ * This caches whole statements across queries, unlike {@link PlanCache},
+ * which keeps the best plans of subsets of joins while one query's joins are
+ * ordered.
+ */
+public class StatementCache {
+
+    /** The default number of statements whose plans are kept. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** Numeric constants are parsed as this plus their index */
+    private static final int PROBE_BASE = 1000000000;
+
+    /**
+     * The text of a SELECT statement split into a cache key and the
+     * constants it contains.
+     */
+    public static class Statement {
+        final String text;
+        final String key;
+        final String[] params;
+        /** The text with each constant replaced by one that identifies it */
+        final String probe;
+
+        Statement(String text, String key, String[] params, String probe) {
+            this.text = text;
+            this.key = key;
+            this.params = params;
+            this.probe = probe;
+        }
+
+        /** @return the normalized text the statement is cached under */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the normalized text with its constants, which the result
+         *         of the statement is cached under by {@link ResultCache}
+         */
+        public String getResultKey() {
+            StringBuilder sb = new StringBuilder(key);
+            for (String p : params)
+                sb.append('\0').append(p);
+            return sb.toString();
+        }
+    }
+
+    private static class Entry {
+        /** The plan of the probe text, or null if it cannot be cached */
+        final LogicalPlan template;
+        /** The index of the constant of each filter of the template */
+        final int[] filterSlots;
+        final int limitSlot;
+        final int offsetSlot;
+
+        // set once the first copy is planned
+        Vector<LogicalJoinNode> joins = null;
+        Catalog catalog;
+        int[] tableIds;
+        String[] tableNames;
+        TableStats[] stats;
+
+        Entry(LogicalPlan template, int[] filterSlots, int limitSlot, int offsetSlot) {
+            this.template = template;
+            this.filterSlots = filterSlots;
+            this.limitSlot = limitSlot;
+            this.offsetSlot = offsetSlot;
+        }
+
+        /** @return true if the tables the plan reads and their statistics are unchanged */
+        boolean isValid() {
+            Catalog c = Database.getCatalog();
+            if (c != catalog)
+                return false;
+            Map<String, TableStats> statsMap = TableStats.getStatsMap();
+            for (int i = 0; i < tableIds.length; i++) {
+                try {
+                    if (c.getTableId(tableNames[i]) != tableIds[i])
+                        return false;
+                } catch (NoSuchElementException e) {
+                    return false;
+                }
+                if (statsMap.get(tableNames[i]) != stats[i])
+                    return false;
+            }
+            return true;
+        }
+
+        LogicalPlan bind(String[] params) throws ParsingException {
+            String[] constants = new String[filterSlots.length];
+            for (int i = 0; i < constants.length; i++)
+                constants[i] = params[filterSlots[i]];
+            int limit = limitSlot < 0 ? template.getLimit() : Parser.parseCount(params[limitSlot]);
+            int offset = offsetSlot < 0 ? template.getOffset() : Parser.parseCount(params[offsetSlot]);
+            return template.bind(constants, limit, offset, joins);
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries;
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * @param capacity
+     *            the number of statements whose plans are kept; the least
+     *            recently used is dropped to make room
+     */
+    public StatementCache(final int capacity) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$';
+    }
+
+    /**
+     * Split the text of a statement into its constants and the rest.
+     * Whitespace is collapsed, string constants become '?' and numeric
+     * constants (including the LIMIT clause) become ? in the key.
+     *
+     * @return the statement, or null if it is not a single SELECT statement
+     *         without subqueries
+     */
+    public static Statement parameterize(String text) {
+        String trimmed = text.trim();
+        if (!trimmed.regionMatches(true, 0, "select", 0, 6))
+            return null;
+        StringBuilder key = new StringBuilder();
+        StringBuilder probe = new StringBuilder();
+        ArrayList<String> params = new ArrayList<String>();
+        int n = trimmed.length();
+        int i = 0;
+        while (i < n) {
+            char c = trimmed.charAt(i);
+            if (Character.isWhitespace(c)) {
+                while (i < n && Character.isWhitespace(trimmed.charAt(i)))
+                    i++;
+                key.append(' ');
+                probe.append(' ');
+            } else if (c == '\'') {
+                // '' inside a string is a quote
+                int j = i + 1;
+                while (j < n && (trimmed.charAt(j) != '\''
+                        || (j + 1 < n && trimmed.charAt(j + 1) == '\'')))
+                    j += trimmed.charAt(j) == '\'' ? 2 : 1;
+                if (j >= n)
+                    return null;
+                key.append("'?'");
+                probe.append("'?").append(params.size()).append('\'');
+                params.add(trimmed.substring(i + 1, j));
+                i = j + 1;
+            } else if (Character.isDigit(c)
+                    && (i == 0 || !isIdentifierChar(trimmed.charAt(i - 1)))) {
+                int j = i;
+                while (j < n && (Character.isDigit(trimmed.charAt(j)) || trimmed.charAt(j) == '.'))
+                    j++;
+                key.append('?');
+                probe.append(PROBE_BASE + params.size());
+                params.add(trimmed.substring(i, j));
+                i = j;
+            } else if (isIdentifierChar(c)) {
+                int j = i;
+                while (j < n && isIdentifierChar(trimmed.charAt(j)))
+                    j++;
+                String word = trimmed.substring(i, j);
+                if (i > 0 && word.equalsIgnoreCase("select"))
+                    return null;
+                key.append(word);
+                probe.append(word);
+                i = j;
+            } else {
+                key.append(c);
+                probe.append(c);
+                i++;
+            }
+        }
+        return new Statement(text, key.toString(),
+                params.toArray(new String[params.size()]), probe.toString());
+    }
+
+    /**
+     * @return a plan of the statement built from a cached plan, or null if
+     *         none is cached or the cached one is out of date
+     * @throws ParsingException if its LIMIT or OFFSET count is not an int
+     */
+    public synchronized LogicalPlan lookup(Statement st) throws ParsingException {
+        Entry e = entries.get(st.key);
+        if (e != null && e.template != null && e.joins != null) {
+            if (e.isValid()) {
+                hits++;
+                LogicalPlan lp = e.bind(st.params);
+                lp.setQuery(st.text);
+                return lp;
+            }
+            entries.remove(st.key);
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * @return true if a plan built from the probe text of the statement would
+     *         not be a plan of the statement, so it must be parsed as it is
+     */
+    public synchronized boolean isUncacheable(Statement st) {
+        Entry e = entries.get(st.key);
+        return e != null && e.template == null;
+    }
+
+    /**
+     * Cache the plan of the statement's probe text.
+     *
+     * @param probePlan
+     *            the logical plan of the probe text of st
+     * @return the plan of st, or null if the plan cannot be cached because
+     *         some of its constants are not filter constants or LIMIT
+     *         clauses
+     * @throws ParsingException if its LIMIT or OFFSET count is not an int
+     */
+    public synchronized LogicalPlan add(Statement st, LogicalPlan probePlan)
+            throws ParsingException {
+        int[] used = new int[st.params.length];
+        Vector<LogicalFilterNode> filters = probePlan.getFilters();
+        int[] filterSlots = new int[filters.size()];
+        for (int i = 0; i < filterSlots.length; i++)
+            filterSlots[i] = slotOf(filters.get(i).c, st, used);
+        int limitSlot = probePlan.getLimit() < 0 ? -1
+                : slotOf(String.valueOf(probePlan.getLimit()), st, used);
+        int offsetSlot = probePlan.getLimit() < 0 ? -1
+                : slotOf(String.valueOf(probePlan.getOffset()), st, used);
+        boolean mapped = true;
+        for (int i = 0; i < filterSlots.length; i++)
+            mapped &= filterSlots[i] >= 0;
+        if (probePlan.getLimit() >= 0)
+            mapped &= limitSlot >= 0 && (offsetSlot >= 0 || probePlan.getOffset() == 0);
+        for (int u : used)
+            mapped &= u == 1;
+        if (!mapped) {
+            entries.put(st.key, new Entry(null, null, -1, -1));
+            return null;
+        }
+        Entry e = new Entry(probePlan, filterSlots, limitSlot, offsetSlot);
+        entries.put(st.key, e);
+        LogicalPlan lp = e.bind(st.params);
+        lp.setQuery(st.text);
+        return lp;
+    }
+
+    /** @return the index of the constant that probe stands for, or -1 */
+    private static int slotOf(String probe, Statement st, int[] used) {
+        int slot = -1;
+        if (probe.startsWith("?"))
+            try {
+                slot = Integer.parseInt(probe.substring(1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        else
+            try {
+                slot = Integer.parseInt(probe) - PROBE_BASE;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        if (slot < 0 || slot >= st.params.length)
+            return -1;
+        used[slot]++;
+        return slot;
+    }
+
+    /**
+     * Record the join order of the first plan built from the cached plan of
+     * a statement, along with the tables it reads and their statistics, so
+     * that later copies reuse the order for as long as those stay the same.
+     *
+     * @param lp
+     *            a plan returned by {@link #add} whose physical plan was built
+     */
+    public synchronized void planned(Statement st, LogicalPlan lp) {
+        Entry e = entries.get(st.key);
+        if (e == null || e.template == null || e.joins != null)
+            return;
+        Catalog c = Database.getCatalog();
+        Map<String, Integer> tables = lp.getTableAliasToIdMapping();
+        e.catalog = c;
+        e.tableIds = new int[tables.size()];
+        e.tableNames = new String[tables.size()];
+        e.stats = new TableStats[tables.size()];
+        int i = 0;
+        for (Integer id : tables.values()) {
+            e.tableIds[i] = id;
+            e.tableNames[i] = c.getTableName(id);
+            e.stats[i] = TableStats.getStatsMap().get(e.tableNames[i]);
+            i++;
+        }
+        e.joins = new Vector<LogicalJoinNode>(lp.getJoins());
+    }
+
+    /** Drop the cached plan of a statement, if any. */
+    public synchronized void invalidate(Statement st) {
+        entries.remove(st.key);
+    }
+
+    /** Drop all cached plans. */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /** @return the number of statements cached */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the number of lookups that found an up to date plan */
+    public synchronized int hits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that did not */
+    public synchronized int misses() {
+        return misses;
+    }
+}
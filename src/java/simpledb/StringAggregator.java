@@ -2,9 +2,6 @@ package simpledb;
 
 import java.util.*;
 
-import static simpledb.Aggregator.Op.AVG;
-import static simpledb.Aggregator.Op.COUNT;
-
 /**
  * Knows how to compute some aggregate over a set of StringFields.
  */
@@ -16,10 +13,19 @@ public class StringAggregator implements Aggregator {
     private Type gbFieldType;
     private int aField;
     private Op what;
-    private List<Tuple> tuples;
-    private Map<Field,Integer> f2cnt;
-    private int cnt = 0;
     private TupleDesc desc;
+    /**
+     * Hash aggregation table, keyed on the group-by field (or on null when
+     * there is no grouping). Linked so results come out in first-seen order.
+     */
+    private LinkedHashMap<Field, Group> groups;
+
+    /** Running COUNT of one group. */
+    private static class Group implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+        int count = 0;
+    }
+
     /**
      * Aggregate constructor
      * @param gbfield the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
@@ -38,8 +44,7 @@ public class StringAggregator implements Aggregator {
         gbFieldType = gbfieldtype;
         aField = afield;
         this.what = what;
-        tuples = new ArrayList<>();
-        f2cnt = new HashMap<>();
+        groups = new LinkedHashMap<>();
         if (gbfield == NO_GROUPING) {
             desc = new TupleDesc(new Type[]{Type.INT_TYPE});
         } else {
@@ -53,30 +58,38 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        boolean found = false;
-        if (gbFieldType != null && gbField != NO_GROUPING) {
-            Field gb = tup.getField(gbField);
-            if (!f2cnt.containsKey(gb)) {
-                f2cnt.put(gb,0);
-            }
-            f2cnt.put(gb,f2cnt.get(gb)+1);
-            for (int i = 0;i < tuples.size();i++){
-                if (tuples.get(i).getField(gbField).equals(gb)) {
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
-                tuples.add(tup);
-            }
-        } else {
-            cnt++;
-            if (tuples.size() == 0) {
-                tuples.add(tup);
-            }
+        Field key = gbField == NO_GROUPING ? null : tup.getField(gbField);
+        Group g = groups.get(key);
+        if (g == null) {
+            g = new Group();
+            groups.put(key, g);
+        }
+        g.count++;
+    }
+
+    public void merge(Aggregator partial) {
+        if (!(partial instanceof StringAggregator))
+            throw new IllegalArgumentException("cannot merge " + partial);
+        StringAggregator other = (StringAggregator) partial;
+        if (other.gbField != gbField || other.aField != aField)
+            throw new IllegalArgumentException("incompatible partial aggregate");
+        for (Map.Entry<Field, Group> e : other.groups.entrySet()) {
+            Group g = groups.get(e.getKey());
+            if (g == null)
+                groups.put(e.getKey(), e.getValue());
+            else
+                g.count += e.getValue().count;
         }
     }
 
+    public int numGroups() {
+        return groups.size();
+    }
+
+    public boolean containsGroup(Tuple tup) {
+        return groups.containsKey(gbField == NO_GROUPING ? null : tup.getField(gbField));
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
@@ -89,13 +102,14 @@ public class StringAggregator implements Aggregator {
         // some code goes here
         return new OpIterator() {
             private Boolean is_open = false;
-            private int pos = 0;
+            private Iterator<Map.Entry<Field, Group>> it;
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 if (is_open) {
                     throw new IllegalStateException("Operator already open");
                 }
                 is_open = true;
+                it = groups.entrySet().iterator();
             }
 
             @Override
@@ -103,10 +117,7 @@ public class StringAggregator implements Aggregator {
                 if (!is_open) {
                     throw new IllegalStateException("Operator not yet open");
                 }
-                if (pos < tuples.size()) {
-                    return true;
-                }
-                return false;
+                return it.hasNext();
             }
 
             @Override
@@ -114,21 +125,16 @@ public class StringAggregator implements Aggregator {
                 if (!is_open) {
                     throw new IllegalStateException("Operator not yet open");
                 }
-                if (pos < tuples.size()) {
-                    Tuple tuple = tuples.get(pos);
-                    Tuple newTuple = new Tuple(getTupleDesc());
-                    if (what == COUNT) {
-                        if (gbFieldType != null && gbField != NO_GROUPING) {
-                            newTuple.setField(0,tuple.getField(gbField));
-                            newTuple.setField(1, new IntField(f2cnt.get(newTuple.getField(0))));
-                        } else {
-                            newTuple.setField(0, new IntField(cnt));
-                        }
-                    }
-                    pos++;
-                    return newTuple;
+                Map.Entry<Field, Group> e = it.next();
+                Tuple newTuple = new Tuple(getTupleDesc());
+                IntField v = new IntField(e.getValue().count);
+                if (gbField != NO_GROUPING) {
+                    newTuple.setField(0, e.getKey());
+                    newTuple.setField(1, v);
+                } else {
+                    newTuple.setField(0, v);
                 }
-                throw new NoSuchElementException();
+                return newTuple;
             }
 
             @Override
@@ -136,7 +142,7 @@ public class StringAggregator implements Aggregator {
                 if (!is_open) {
                     throw new IllegalStateException("Operator not yet open");
                 }
-                pos = 0;
+                it = groups.entrySet().iterator();
             }
 
             @Override
@@ -1,11 +1,18 @@
 package simpledb;
 
+import java.io.Serializable;
+
 /**
  * A class to represent a fixed-width histogram over a single String-based
  * field.
  */
-public class StringHistogram {
+public class StringHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    /** The fixed-width histogram values are added to, or null */
     final IntHistogram hist;
+    /** The equi-depth histogram built from a set of values, or null */
+    final EquiDepthHistogram depth;
 
     /**
      * Create a new StringHistogram with a specified number of buckets.
@@ -18,6 +25,26 @@ public class StringHistogram {
      */
     public StringHistogram(int buckets) {
         hist = new IntHistogram(buckets, minVal(), maxVal());
+        depth = null;
+    }
+
+    /**
+     * Create a new StringHistogram of the given values, as an
+     * {@link EquiDepthHistogram} of their integer conversions. Its most
+     * common values are those of the strings, up to their first four
+     * characters.
+     * 
+     * @param buckets
+     *            the largest number of buckets
+     * @param values
+     *            the values to histogram
+     */
+    public StringHistogram(int buckets, String[] values) {
+        int[] codes = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+            codes[i] = stringToInt(values[i]);
+        hist = null;
+        depth = new EquiDepthHistogram(buckets, codes);
     }
 
     /**
@@ -62,7 +89,19 @@ public class StringHistogram {
     /** Add a new value to thte histogram */
     public void addValue(String s) {
         int val = stringToInt(s);
-        hist.addValue(val);
+        if (depth != null)
+            depth.addValue(val);
+        else
+            hist.addValue(val);
+    }
+
+    /** Remove a value added by {@link #addValue} from the histogram */
+    public void removeValue(String s) {
+        int val = stringToInt(s);
+        if (depth != null)
+            depth.removeValue(val);
+        else
+            hist.removeValue(val);
     }
 
     /**
@@ -76,6 +115,8 @@ public class StringHistogram {
      */
     public double estimateSelectivity(Predicate.Op op, String s) {
         int val = stringToInt(s);
+        if (depth != null)
+            return depth.estimateSelectivity(op, val);
         return hist.estimateSelectivity(op, val);
     }
 
@@ -87,6 +128,8 @@ public class StringHistogram {
      *         efficient optimization
      * */
     public double avgSelectivity() {
+        if (depth != null)
+            return depth.avgSelectivity();
         return hist.avgSelectivity();
     }
 }
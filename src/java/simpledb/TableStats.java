@@ -1,10 +1,37 @@
 package simpledb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -12,9 +39,40 @@ import java.util.concurrent.ConcurrentHashMap;
  * 
  * This class is not needed in implementing lab1 and lab2.
  */
-public class TableStats {
+public class TableStats implements Serializable {
 
-    private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
+    private static final long serialVersionUID = 3L;
+
+    /** Tables whose statistics are computed the first time they are needed */
+    private static final Set<String> staleTables = ConcurrentHashMap.newKeySet();
+
+    /** Whether statistics were computed since they were last saved */
+    private static volatile boolean statsChanged = false;
+
+    /**
+     * The statistics of each table, keyed by table name. Looking up a stale
+     * table computes its statistics on the spot.
+     */
+    private static class StatsMap extends ConcurrentHashMap<String, TableStats> {
+        private static final long serialVersionUID = 1L;
+
+        public TableStats get(Object key) {
+            TableStats s = super.get(key);
+            if (s == null && staleTables.contains(key)) {
+                s = computeIfAbsent((String) key, new Function<String, TableStats>() {
+                    public TableStats apply(String name) {
+                        statsChanged = true;
+                        return new TableStats(Database.getCatalog().getTableId(name),
+                                IOCOSTPERPAGE);
+                    }
+                });
+                staleTables.remove(key);
+            }
+            return s;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, TableStats> statsMap = new StatsMap();
 
     static final int IOCOSTPERPAGE = 1000;
 
@@ -24,6 +82,8 @@ public class TableStats {
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        staleTables.remove(tablename);
+        statsChanged = true;
     }
     
     public static void setStatsMap(HashMap<String,TableStats> s)
@@ -48,16 +108,216 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Compute statistics for every table in the catalog. The tables are
+     * scanned in parallel, see {@link #sampleTables}.
+     */
     public static void computeStatistics() {
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        List<DbFile> files = new ArrayList<DbFile>();
+        while (tableIt.hasNext())
+            files.add(Database.getCatalog().getDatabaseFile(tableIt.next()));
 
         System.out.println("Computing table stats.");
+        staleTables.clear();
+        sampleTables(files, DEFAULT_SAMPLE_SIZE, new SampleListener() {
+            public void tableDone(DbFile file, Sample sample) {
+                setTableStats(Database.getCatalog().getTableName(file.getId()),
+                        new TableStats(file, IOCOSTPERPAGE, sample));
+            }
+        });
+        System.out.println("Done.");
+    }
+
+    /**
+     * Fixed number of modifications a table takes before it is re-analyzed,
+     * on top of {@link #REANALYZE_RATIO} of its tuples.
+     */
+    static final int REANALYZE_THRESHOLD = 50;
+
+    /**
+     * Fraction of the tuples counted at the last analysis that must be
+     * inserted or deleted before the statistics of a table are recomputed.
+     */
+    static final double REANALYZE_RATIO = 0.1;
+
+    /** Recomputes the statistics of modified tables in the background */
+    private static final ExecutorService reanalyzer = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-reanalyze");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Update the statistics of a table after t was inserted into it, and
+     * schedule a re-analysis of the table if it has changed enough since its
+     * statistics were computed. Does nothing for tables whose statistics
+     * have not been computed yet.
+     * 
+     * @see BufferPool#insertTuple
+     */
+    static void tupleInserted(int tableid, Tuple t) {
+        String name = Database.getCatalog().getTableName(tableid);
+        TableStats s = staleTables.contains(name) ? null : statsMap.get(name);
+        if (s != null) {
+            s.addTuple(t);
+            maybeReanalyze(tableid, name, s);
+        }
+    }
+
+    /**
+     * Update the statistics of a table after t was deleted from it.
+     * 
+     * @see #tupleInserted
+     * @see BufferPool#deleteTuple
+     */
+    static void tupleDeleted(int tableid, Tuple t) {
+        String name = Database.getCatalog().getTableName(tableid);
+        TableStats s = staleTables.contains(name) ? null : statsMap.get(name);
+        if (s != null) {
+            s.removeTuple(t);
+            maybeReanalyze(tableid, name, s);
+        }
+    }
+
+    private static void maybeReanalyze(final int tableid, final String name,
+            final TableStats s) {
+        if (!s.claimReanalysis())
+            return;
+        reanalyzer.submit(new Runnable() {
+            public void run() {
+                TableStats fresh = new TableStats(tableid, s.ioCostPerPage);
+                // unless the statistics were replaced in the meantime
+                if (statsMap.replace(name, s, fresh))
+                    statsChanged = true;
+            }
+        });
+    }
+
+    /**
+     * @return the file in which {@link #saveStatistics} keeps the statistics
+     *         of the tables of the given catalog: the catalog file name with
+     *         its extension replaced by ".stats", in the same directory
+     */
+    public static File statsFileFor(String catalogFile) {
+        File f = new File(catalogFile).getAbsoluteFile();
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0)
+            name = name.substring(0, dot);
+        return new File(f.getParentFile(), name + ".stats");
+    }
+
+    /** Saved statistics of one table, with the state of its file at the time */
+    private static class SavedStats implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final long[] signature;
+        final TableStats stats;
+
+        SavedStats(long[] signature, TableStats stats) {
+            this.signature = signature;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * @return the length and modification time of the file backing f, or
+     *         null if f is not stored in a single file we know of
+     */
+    private static long[] fileSignature(DbFile f) {
+        File file;
+        if (f instanceof HeapFile)
+            file = ((HeapFile) f).getFile();
+        else if (f instanceof BTreeFile)
+            file = ((BTreeFile) f).getFile();
+        else
+            return null;
+        return new long[] { file.length(), file.lastModified() };
+    }
+
+    /**
+     * Write the statistics of every table that has them to f, together with
+     * the length and modification time of each table's file. The file is
+     * replaced atomically, so a crash leaves the previous version intact.
+     */
+    public static void saveStatistics(File f) throws IOException {
+        HashMap<String, SavedStats> saved = new HashMap<String, SavedStats>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats s = statsMap.containsKey(name) ? statsMap.get(name) : null;
+            long[] signature = fileSignature(Database.getCatalog().getDatabaseFile(tableid));
+            if (s != null && signature != null)
+                saved.put(name, new SavedStats(signature, s));
         }
-        System.out.println("Done.");
+        File tmp = new File(f.getPath() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeObject(saved);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        statsChanged = false;
+    }
+
+    /**
+     * Replace the statistics of every table in the catalog by those saved in
+     * f by {@link #saveStatistics}. Tables whose file has changed since (in
+     * length or modification time), and tables f has nothing for, are marked
+     * stale: their statistics are computed the first time they are looked
+     * up. An unreadable or missing file leaves every table stale.
+     */
+    public static void loadStatistics(File f) {
+        Map<?, ?> saved = Collections.emptyMap();
+        if (f.exists()) {
+            try {
+                ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+                        new FileInputStream(f)));
+                try {
+                    saved = (Map<?, ?>) in.readObject();
+                } finally {
+                    in.close();
+                }
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                System.out.println("Ignoring unreadable statistics file " + f + ": " + e);
+            }
+        }
+        statsMap.clear();
+        staleTables.clear();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            String name = Database.getCatalog().getTableName(tableid);
+            Object s = saved.get(name);
+            long[] signature = fileSignature(Database.getCatalog().getDatabaseFile(tableid));
+            if (s instanceof SavedStats && signature != null
+                    && Arrays.equals(((SavedStats) s).signature, signature)) {
+                statsMap.put(name, ((SavedStats) s).stats);
+            } else {
+                staleTables.add(name);
+            }
+        }
+        statsChanged = false;
+    }
+
+    /**
+     * @return true if statistics were computed since they were last saved or
+     *         loaded
+     */
+    public static boolean statisticsChanged() {
+        return statsChanged;
+    }
+
+    /** @return true if the statistics of the table will be computed on first use */
+    static boolean isStale(String tablename) {
+        return staleTables.contains(tablename);
     }
 
     /**
@@ -66,13 +326,42 @@ public class TableStats {
      * histograms.
      */
     static final int NUM_HIST_BINS = 100;
+
+    /**
+     * Number of tuples sampled from each table to build its histograms.
+     * Smaller tables are histogrammed exactly.
+     */
+    static final int DEFAULT_SAMPLE_SIZE = 30000;
+
+    /** Number of pages of a HeapFile scanned by one statistics task. */
+    static final int PAGES_PER_TASK = 64;
+
+    /** Number of observed filter selectivities kept per table. */
+    static final int MAX_FEEDBACK = 64;
+
     private int ioCostPerPage;
     private double scanCost;
+    private int numPages;
     private int mins[];
     private int maxs[];
     private TupleDesc desc;
     private Object histograms[];
+    /** Distinct values of each field */
+    private HyperLogLog sketches[];
     private int totalTuples;
+    /** Fraction of the tuples of the table that the histograms hold */
+    private double sampleRate;
+    /** Number of tuples when the statistics were computed */
+    private int analyzedTuples;
+    /** Tuples inserted or deleted since the statistics were computed */
+    private int modifications;
+    private transient boolean reanalyzing;
+    /**
+     * Selectivities observed while running queries, by their filters, least
+     * recently used first
+     */
+    private LinkedHashMap<String, Double> feedback =
+            new LinkedHashMap<String, Double>(16, 0.75f, true);
 
     /**
      * Create a new TableStats object, that keeps track of statistics on each
@@ -85,76 +374,404 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
+        this(tableid, ioCostPerPage, DEFAULT_SAMPLE_SIZE);
+    }
+
+    /**
+     * Create a new TableStats object from one scan of the table. Tuple counts
+     * and the bounds of each field are exact; histograms are built from a
+     * uniform random sample of sampleSize tuples.
+     * 
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO.
+     * @param sampleSize
+     *            The number of tuples to build histograms from
+     */
+    public TableStats(int tableid, int ioCostPerPage, int sampleSize) {
         // some code goes here
+        if (sampleSize < 1)
+            throw new IllegalArgumentException("sample size must be positive");
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        final Sample[] sample = new Sample[1];
+        sampleTables(Collections.singletonList(file), sampleSize, new SampleListener() {
+            public void tableDone(DbFile f, Sample s) {
+                sample[0] = s;
+            }
+        });
+        init(file, ioCostPerPage, sample[0]);
+    }
+
+    private TableStats(DbFile file, int ioCostPerPage, Sample sample) {
+        init(file, ioCostPerPage, sample);
+    }
+
+    private void init(DbFile file, int ioCostPerPage, Sample sample) {
         this.ioCostPerPage = ioCostPerPage;
-        HeapFile heapFile = (HeapFile)Database.getCatalog().getDatabaseFile(tableid);
-        desc = heapFile.getTupleDesc();
-        scanCost = ioCostPerPage * heapFile.numPages();
+        desc = file.getTupleDesc();
+        totalTuples = sample.count;
+        analyzedTuples = totalTuples;
+        numPages = numPages(file, totalTuples);
+        scanCost = ioCostPerPage * numPages;
+        sampleRate = totalTuples == 0 ? 1.0 : (double) sample.size / totalTuples;
 
         int numFields = desc.numFields();
         mins = new int[numFields];
         maxs = new int[numFields];
-        LinkedList<Integer> intFieldList = new LinkedList<>();
-        LinkedList<Integer> stringFieldList = new LinkedList<>();
         histograms = new Object[numFields];
-        for (int i = 0;i <numFields;i++) {
+        sketches = sample.sketches;
+        for (int i = 0; i < numFields; i++) {
             if (desc.getFieldType(i) == Type.STRING_TYPE) {
-                histograms[i] = new StringHistogram(NUM_HIST_BINS);
-                stringFieldList.add(i);
+                String[] values = new String[sample.size];
+                for (int j = 0; j < sample.size; j++)
+                    values[j] = ((StringField) sample.tuples[j].getField(i)).getValue();
+                histograms[i] = new StringHistogram(NUM_HIST_BINS, values);
             } else {
-                intFieldList.add(i);
+                // an empty table keeps the bounds [0, 0]
+                if (totalTuples > 0) {
+                    mins[i] = sample.mins[i];
+                    maxs[i] = sample.maxs[i];
+                }
+                int[] values = new int[sample.size];
+                for (int j = 0; j < sample.size; j++)
+                    values[j] = ((IntField) sample.tuples[j].getField(i)).getValue();
+                histograms[i] = new EquiDepthHistogram(NUM_HIST_BINS, values);
             }
         }
-        TransactionId tid = new TransactionId();
-        DbFileIterator iter = heapFile.iterator(tid);
-        try {
-            iter.open();
-            // find max and min values
-            while (iter.hasNext()) {
-                Tuple t = iter.next();
-                totalTuples++;
-                for (int i = 0;i <numFields;i++) {
-                    if (t.getField(i).getType() == Type.STRING_TYPE) {
-                        ((StringHistogram)histograms[i]).addValue(((StringField)t.getField(i)).getValue());
-                        continue;
-                    }
-                    int v = ((IntField)t.getField(i)).getValue();
-                    if (mins[i] > v) {
+    }
+
+    /**
+     * Account for a tuple inserted into the table. The tuple count and the
+     * bounds of each field are updated exactly. Since the histograms are
+     * built from a sample of the table, the tuple is added to them with the
+     * probability that the sample would have held it.
+     * <p>
+     * Values beyond the range of a histogram widen its first or last
+     * bucket; the drift this causes, like that of inserts made by
+     * transactions that later abort, is corrected by re-analysis.
+     * <p>
+     * Inserting threads update the statistics while queries are planned with
+     * them, so the estimates are computed under the same lock.
+     */
+    synchronized void addTuple(Tuple t) {
+        totalTuples++;
+        modifications++;
+        updatePages();
+        boolean sampled = ThreadLocalRandom.current().nextDouble() < sampleRate;
+        for (int i = 0; i < histograms.length; i++) {
+            sketches[i].add(t.getField(i));
+            if (histograms[i] instanceof EquiDepthHistogram) {
+                int v = ((IntField) t.getField(i)).getValue();
+                if (totalTuples == 1) {
+                    mins[i] = v;
+                    maxs[i] = v;
+                } else {
+                    mins[i] = Math.min(mins[i], v);
+                    maxs[i] = Math.max(maxs[i], v);
+                }
+                if (sampled)
+                    ((EquiDepthHistogram) histograms[i]).addValue(v);
+            } else if (sampled) {
+                ((StringHistogram) histograms[i]).addValue(
+                        ((StringField) t.getField(i)).getValue());
+            }
+        }
+    }
+
+    /**
+     * Account for a tuple deleted from the table. The bounds of the fields
+     * and their distinct value counts are left as they are; the tuple is
+     * removed from the histograms with the probability that the sample held
+     * it.
+     * 
+     * @see #addTuple
+     */
+    synchronized void removeTuple(Tuple t) {
+        totalTuples = Math.max(0, totalTuples - 1);
+        modifications++;
+        updatePages();
+        if (ThreadLocalRandom.current().nextDouble() >= sampleRate)
+            return;
+        for (int i = 0; i < histograms.length; i++) {
+            if (histograms[i] instanceof EquiDepthHistogram)
+                ((EquiDepthHistogram) histograms[i]).removeValue(
+                        ((IntField) t.getField(i)).getValue());
+            else
+                ((StringHistogram) histograms[i]).removeValue(
+                        ((StringField) t.getField(i)).getValue());
+        }
+    }
+
+    /** Grow the page count if the tuples no longer fit in it */
+    private void updatePages() {
+        int perPage = Math.max(1, BufferPool.getPageSize() / desc.getSize());
+        int needed = (totalTuples + perPage - 1) / perPage;
+        if (needed > numPages) {
+            numPages = needed;
+            scanCost = ioCostPerPage * numPages;
+        }
+    }
+
+    /**
+     * @return true if the table has taken enough modifications to be
+     *         re-analyzed and no re-analysis was claimed yet
+     */
+    private synchronized boolean claimReanalysis() {
+        if (reanalyzing || modifications <= REANALYZE_THRESHOLD
+                + REANALYZE_RATIO * analyzedTuples)
+            return false;
+        reanalyzing = true;
+        return true;
+    }
+
+    /**
+     * Remember the selectivity a set of filters was observed to have on the
+     * table while a query ran. The feedback is kept (and saved) with these
+     * statistics, and dropped when they are recomputed. Only the
+     * {@link #MAX_FEEDBACK} most recently used selectivities are kept, since
+     * every filter constant gives another key.
+     * 
+     * @param filterKey
+     *            identifies the filters; the same filters must always give the
+     *            same key, see {@link LogicalPlan#filterKey}
+     * @param selectivity
+     *            the fraction of the tuples of the table that passed them
+     */
+    synchronized void recordSelectivity(String filterKey, double selectivity) {
+        feedback.put(filterKey, selectivity);
+        if (feedback.size() > MAX_FEEDBACK) {
+            Iterator<String> eldest = feedback.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @return the selectivity recorded for the filters by
+     *         {@link #recordSelectivity}, or null if there is none
+     */
+    synchronized Double observedSelectivity(String filterKey) {
+        return feedback.get(filterKey);
+    }
+
+    /**
+     * @return the number of tuples inserted or deleted since the statistics
+     *         were computed
+     */
+    synchronized int modifications() {
+        return modifications;
+    }
+
+    /**
+     * What one scan of (part of) a table gathers: the number of tuples, the
+     * bounds of each integer field, a sketch of the distinct values of each
+     * field, and a uniform random sample of the tuples, kept by reservoir
+     * sampling.
+     */
+    private static class Sample {
+        final int capacity;
+        final Random rand;
+        final int[] mins;
+        final int[] maxs;
+        final HyperLogLog[] sketches;
+        Tuple[] tuples;
+        int size = 0;
+        int count = 0;
+
+        Sample(TupleDesc td, int capacity, long seed) {
+            this.capacity = capacity;
+            this.rand = new Random(seed);
+            mins = new int[td.numFields()];
+            maxs = new int[td.numFields()];
+            Arrays.fill(mins, Integer.MAX_VALUE);
+            Arrays.fill(maxs, Integer.MIN_VALUE);
+            sketches = new HyperLogLog[td.numFields()];
+            for (int i = 0; i < sketches.length; i++)
+                sketches[i] = new HyperLogLog();
+            tuples = new Tuple[Math.min(capacity, 1024)];
+        }
+
+        void add(Tuple t) {
+            count++;
+            for (int i = 0; i < mins.length; i++) {
+                Field f = t.getField(i);
+                sketches[i].add(f);
+                if (f.getType() == Type.INT_TYPE) {
+                    int v = ((IntField) f).getValue();
+                    if (v < mins[i])
                         mins[i] = v;
-                    }
-                    if (maxs[i] < v) {
+                    if (v > maxs[i])
                         maxs[i] = v;
-                    }
                 }
             }
-            // there still remains int fields to process
-            if (intFieldList.size() > 0) {
-                iter.rewind();
-                for (Integer i : intFieldList) {
-                    histograms[i] = new IntHistogram(NUM_HIST_BINS, mins[i], maxs[i]);
-                }
-                while (iter.hasNext()) {
-                    Tuple t = iter.next();
-                    for (Integer i : intFieldList) {
-                        ((IntHistogram)histograms[i]).addValue(((IntField)t.getField(i)).getValue());
-                    }
+            if (size < capacity) {
+                if (size == tuples.length)
+                    tuples = Arrays.copyOf(tuples, Math.min(capacity, 2 * size));
+                tuples[size++] = t;
+            } else {
+                int j = rand.nextInt(count);
+                if (j < capacity)
+                    tuples[j] = t;
+            }
+        }
+
+        /**
+         * Merge the sample of another, disjoint part of the table into this
+         * one. Each tuple of the merged sample is drawn from one of the two
+         * samples with probability proportional to the number of tuples of
+         * its part not yet represented, so the result is again a uniform
+         * sample of both parts together.
+         */
+        void merge(Sample other) {
+            for (int i = 0; i < mins.length; i++) {
+                mins[i] = Math.min(mins[i], other.mins[i]);
+                maxs[i] = Math.max(maxs[i], other.maxs[i]);
+                sketches[i].merge(other.sketches[i]);
+            }
+            int n = Math.min(capacity, size + other.size);
+            Tuple[] merged = new Tuple[n];
+            long left1 = count, left2 = other.count;
+            int avail1 = size, avail2 = other.size;
+            for (int k = 0; k < n; k++) {
+                boolean first = avail2 == 0 || (avail1 > 0
+                        && rand.nextDouble() * (left1 + left2) < left1);
+                // take a random tuple not taken yet (partial Fisher-Yates)
+                if (first) {
+                    int j = rand.nextInt(avail1--);
+                    merged[k] = tuples[j];
+                    tuples[j] = tuples[avail1];
+                    left1--;
+                } else {
+                    int j = rand.nextInt(avail2--);
+                    merged[k] = other.tuples[j];
+                    other.tuples[j] = other.tuples[avail2];
+                    left2--;
                 }
             }
-            iter.close();
-        } catch (DbException e) {
+            tuples = merged;
+            size = n;
+            count += other.count;
+        }
+    }
 
-        } catch (TransactionAbortedException e) {
+    /** Receives the sample of each table once all of it has been scanned. */
+    private interface SampleListener {
+        void tableDone(DbFile file, Sample sample);
+    }
+
+    /**
+     * Scan the given tables once each, in parallel, and hand the sample of
+     * every table to listener as soon as its scan is complete (on the calling
+     * thread). HeapFiles are split into ranges of {@link #PAGES_PER_TASK}
+     * pages that are scanned in parallel; their pages are read straight from
+     * disk unless the buffer pool holds them, so statistics scans do not
+     * flush the buffer pool. Other files are scanned by their own iterator.
+     * Only a bounded number of ranges is in flight at once, which bounds the
+     * memory held by partial samples.
+     */
+    private static void sampleTables(List<DbFile> files, int sampleSize,
+            SampleListener listener) {
+        List<Callable<Sample>> tasks = new ArrayList<Callable<Sample>>();
+        List<DbFile> taskFiles = new ArrayList<DbFile>();
+        Map<Integer, Integer> remaining = new HashMap<Integer, Integer>();
+        for (DbFile f : files) {
+            int n = 0;
+            if (f instanceof HeapFile) {
+                int pages = ((HeapFile) f).numPages();
+                for (int from = 0; from < pages; from += PAGES_PER_TASK, n++)
+                    tasks.add(scanPages((HeapFile) f, from,
+                            Math.min(pages, from + PAGES_PER_TASK), sampleSize));
+            } else {
+                tasks.add(scanFile(f, sampleSize));
+                n++;
+            }
+            for (int i = 0; i < n; i++)
+                taskFiles.add(f);
+            if (n == 0) {
+                listener.tableDone(f, new Sample(f.getTupleDesc(), sampleSize, f.getId()));
+                continue;
+            }
+            remaining.put(f.getId(), n);
+        }
+        if (tasks.isEmpty())
+            return;
 
+        int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        CompletionService<Sample> done = new ExecutorCompletionService<Sample>(workers);
+        Map<Future<Sample>, DbFile> inFlight = new HashMap<Future<Sample>, DbFile>();
+        Map<Integer, Sample> partial = new HashMap<Integer, Sample>();
+        int next = 0;
+        try {
+            while (next < tasks.size() || !inFlight.isEmpty()) {
+                while (next < tasks.size() && inFlight.size() < 2 * threads) {
+                    inFlight.put(done.submit(tasks.get(next)), taskFiles.get(next));
+                    next++;
+                }
+                Future<Sample> f = done.take();
+                DbFile file = inFlight.remove(f);
+                Sample s = f.get();
+                Sample merged = partial.get(file.getId());
+                if (merged == null)
+                    merged = s;
+                else
+                    merged.merge(s);
+                int left = remaining.get(file.getId()) - 1;
+                remaining.put(file.getId(), left);
+                if (left == 0) {
+                    partial.remove(file.getId());
+                    listener.tableDone(file, merged);
+                } else {
+                    partial.put(file.getId(), merged);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("statistics scan failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
         }
     }
 
+    /** @return a task sampling pages [from, to) of a HeapFile */
+    private static Callable<Sample> scanPages(final HeapFile file,
+            final int from, final int to, final int sampleSize) {
+        return new Callable<Sample>() {
+            public Sample call() {
+                Sample s = new Sample(file.getTupleDesc(), sampleSize,
+                        31L * file.getId() + from);
+                for (int p = from; p < to; p++) {
+                    HeapPageId pid = new HeapPageId(file.getId(), p);
+                    Page page = Database.getBufferPool().getCachedPage(pid);
+                    if (page == null)
+                        page = file.readPage(pid);
+                    Iterator<Tuple> it = ((HeapPage) page).iterator();
+                    while (it.hasNext())
+                        s.add(it.next());
+                }
+                return s;
+            }
+        };
+    }
+
+    /** @return a task sampling a whole file through its iterator */
+    private static Callable<Sample> scanFile(final DbFile file, final int sampleSize) {
+        return new Callable<Sample>() {
+            public Sample call() throws DbException, TransactionAbortedException {
+                Sample s = new Sample(file.getTupleDesc(), sampleSize, file.getId());
+                DbFileIterator it = file.iterator(new TransactionId());
+                it.open();
+                while (it.hasNext())
+                    s.add(it.next());
+                it.close();
+                return s;
+            }
+        };
+    }
+
     /**
      * Estimates the cost of sequentially scanning the file, given that the cost
      * to read a page is costPerPageIO. You can assume that there are no seeks
@@ -167,11 +784,57 @@ public class TableStats {
      * 
      * @return The estimated cost of scanning the table.
      */
-    public double estimateScanCost() {
+    public synchronized double estimateScanCost() {
         // some code goes here
         return scanCost;
     }
 
+    /**
+     * Estimates the number of levels of a B+ tree index on the table, counting
+     * the leaves, from the number of pages of the table, without reading the
+     * index.
+     * 
+     * @param fanout
+     *            the number of children of an internal page of the index
+     * @return The estimated height of the index.
+     */
+    public synchronized int estimateIndexHeight(int fanout) {
+        int height = 1;
+        for (int pages = numPages; pages > 1; pages = (pages + fanout - 1) / fanout)
+            height++;
+        return height;
+    }
+
+    /**
+     * Estimates the cost of an index scan that descends a B+ tree of the
+     * given height and then reads the leaf pages that hold a fraction
+     * selectivity of the tuples, at the same cost per page as
+     * {@link #estimateScanCost}.
+     * 
+     * @param height
+     *            the number of levels of the index, counting the leaves
+     * @param selectivity
+     *            the fraction of the tuples the scan returns
+     * @return The estimated cost of the index scan.
+     */
+    public synchronized double estimateIndexScanCost(int height, double selectivity) {
+        double leaves = Math.max(1, Math.ceil(selectivity * numPages));
+        return ioCostPerPage * (Math.max(0, height - 1) + leaves);
+    }
+
+    /**
+     * @return the number of pages of a HeapFile or BTreeFile; for other
+     *         files, the number of pages numTuples tuples fill
+     */
+    static int numPages(DbFile f, int numTuples) {
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).numPages();
+        if (f instanceof BTreeFile)
+            return ((BTreeFile) f).numPages();
+        int perPage = Math.max(1, BufferPool.getPageSize() / f.getTupleDesc().getSize());
+        return (numTuples + perPage - 1) / perPage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -181,7 +844,7 @@ public class TableStats {
      * @return The estimated cardinality of the scan with the specified
      *         selectivityFactor
      */
-    public int estimateTableCardinality(double selectivityFactor) {
+    public synchronized int estimateTableCardinality(double selectivityFactor) {
         // some code goes here
         return (int)(totalTuples * selectivityFactor);
     }
@@ -198,7 +861,23 @@ public class TableStats {
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+        switch (op) {
+        case EQUALS:
+            return 1.0 / Math.max(1, numDistinct(field));
+        case NOT_EQUALS:
+            return 1.0 - 1.0 / Math.max(1, numDistinct(field));
+        default:
+            return 1.0;
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values of the field, from a
+     *         HyperLogLog sketch of every value scanned or inserted; at most
+     *         the number of tuples
+     */
+    public synchronized int numDistinct(int field) {
+        return (int) Math.min(sketches[field].estimate(), totalTuples);
     }
 
     /**
@@ -214,18 +893,18 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      *         predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
         if (desc.getFieldType(field) == Type.STRING_TYPE) {
             return ((StringHistogram)histograms[field]).estimateSelectivity(op,((StringField)constant).getValue());
         }
-        return ((IntHistogram)histograms[field]).estimateSelectivity(op,((IntField)constant).getValue());
+        return ((EquiDepthHistogram)histograms[field]).estimateSelectivity(op,((IntField)constant).getValue());
     }
 
     /**
      * return the total number of tuples in this table
      * */
-    public int totalTuples() {
+    public synchronized int totalTuples() {
         // some code goes here
         return totalTuples;
     }
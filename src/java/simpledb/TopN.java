@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT. Unlike
+ * {@link OrderBy}, it never materializes the whole input: it keeps a bounded
+ * heap of the best (offset + limit) tuples seen so far, so memory is O(N) and
+ * run time is O(input * log N).
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private TupleDesc td;
+    private ArrayList<Tuple> topTups = new ArrayList<Tuple>();
+    private int orderByField;
+    private String orderByFieldName;
+    private boolean asc;
+    private int limit;
+    private int offset;
+    private Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the maximum number of tuples to return.
+     * @param offset
+     *            the number of leading tuples (in sort order) to skip.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, int offset,
+            OpIterator child) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("limit and offset must be non-negative");
+        this.child = child;
+        td = child.getTupleDesc();
+        this.orderByField = orderbyField;
+        this.orderByFieldName = td.getFieldName(orderbyField);
+        this.asc = asc;
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    public TopN(int orderbyField, boolean asc, int limit, OpIterator child) {
+        this(orderbyField, asc, limit, 0, child);
+    }
+
+    public boolean isASC() {
+        return this.asc;
+    }
+
+    public int getOrderByField() {
+        return this.orderByField;
+    }
+
+    public String getOrderFieldName() {
+        return this.orderByFieldName;
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public int getOffset() {
+        return this.offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        topTups.clear();
+        // LIMIT 2147483647 OFFSET 1 does not fit in an int
+        int n = (int) Math.min((long) limit + offset, Integer.MAX_VALUE);
+        if (n > 0) {
+            // the heap is ordered "worst first" so the root is the tuple to
+            // evict when a better one arrives
+            Comparator<Tuple> cmp = new Comparator<Tuple>() {
+                public int compare(Tuple o1, Tuple o2) {
+                    Field t1 = o1.getField(orderByField);
+                    Field t2 = o2.getField(orderByField);
+                    if (t1.compare(Predicate.Op.EQUALS, t2))
+                        return 0;
+                    if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                        return asc ? 1 : -1;
+                    return asc ? -1 : 1;
+                }
+            };
+            // the limit may be far larger than the input, so let the heap grow
+            PriorityQueue<Tuple> heap = new PriorityQueue<Tuple>(Math.min(n, 1024),
+                    Collections.reverseOrder(cmp));
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (heap.size() < n) {
+                    heap.add(t);
+                } else if (cmp.compare(t, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(t);
+                }
+            }
+            topTups.addAll(heap);
+            Collections.sort(topTups, cmp);
+            if (offset > 0)
+                topTups.subList(0, Math.min(offset, topTups.size())).clear();
+        }
+        it = topTups.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        it = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = topTups.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the retained tuples in
+     * order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext()) {
+            return it.next();
+        } else
+            return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -183,6 +183,24 @@ public class TupleDesc implements Serializable {
         return new TupleDesc(typeAr.toArray(new Type[typeAr.size()]), fieldAr.toArray(new String[fieldAr.size()]));
     }
 
+    /**
+     * Create a new TupleDesc holding some of the fields of this one.
+     *
+     * @param fields
+     *            the indices of the fields to keep, in the order they should
+     *            appear in the new TupleDesc
+     * @return the new TupleDesc
+     */
+    public TupleDesc project(int[] fields) {
+        Type[] typeAr = new Type[fields.length];
+        String[] fieldAr = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            typeAr[i] = getFieldType(fields[i]);
+            fieldAr[i] = getFieldName(fields[i]);
+        }
+        return new TupleDesc(typeAr, fieldAr);
+    }
+
     /**
      * Compares the specified object with this TupleDesc for equality. Two
      * TupleDescs are considered equal if they have the same number of items
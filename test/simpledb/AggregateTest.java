@@ -176,6 +176,128 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for an Aggregate whose groups exceed its in-memory budget and
+   * must be spilled to disk and aggregated partition by partition
+   */
+  @Test public void spillingGroupBy() throws Exception {
+    int groups = 500;
+    int[] data = new int[groups * 4 * width1];
+    int[] expected = new int[groups * width1];
+    for (int i = 0; i < groups * 4; i++) {
+      data[i * width1] = i % groups;
+      data[i * width1 + 1] = i;
+    }
+    for (int g = 0; g < groups; g++) {
+      expected[g * width1] = g;
+      expected[g * width1 + 1] = g + 3 * groups;
+    }
+    Aggregate op = new Aggregate(TestUtil.createTupleList(width1, data), 1, 0,
+        Aggregator.Op.MAX, 7);
+    op.open();
+    assertTrue(op.hasSpilled());
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, expected), op);
+
+    // every group comes out exactly once, also after a rewind
+    op.rewind();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(groups, count);
+    op.close();
+  }
+
+  /**
+   * Unit test for an Aggregate computing several aggregates over two group
+   * by fields in one pass, with a budget small enough to force spilling
+   */
+  @Test public void multiAggregateGroupBy() throws Exception {
+    int rows = 600;
+    int[] data = new int[rows * width1];
+    for (int i = 0; i < rows; i++) {
+      data[i * width1] = i % 10;
+      data[i * width1 + 1] = i % 6;
+    }
+    // the two keys repeat together every 30 rows, giving 30 groups of 20
+    int[] expected = new int[30 * 4];
+    for (int g = 0; g < 30; g++) {
+      expected[g * 4] = g % 10;
+      expected[g * 4 + 1] = g % 6;
+      expected[g * 4 + 2] = 20;
+      expected[g * 4 + 3] = g % 6;
+    }
+    Aggregate op = new Aggregate(TestUtil.createTupleList(width1, data),
+        new int[] { 0, 1 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.MAX }, 4);
+    // group fields come first, followed by the aggregates
+    assertEquals(4, op.getTupleDesc().numFields());
+    op.open();
+    assertTrue(op.hasSpilled());
+    TestUtil.matchAllTuples(TestUtil.createTupleList(4, expected), op);
+    op.close();
+  }
+
+  /**
+   * Unit test for a streaming Aggregate over input sorted on the group field,
+   * which returns each group without reading the rest of the input
+   */
+  @Test public void streamingGroupBy() throws Exception {
+    TestUtil.MockScan scan = new TestUtil.MockScan(0, 1000000, width1);
+    Aggregate op = new Aggregate(scan, 1, 0, Aggregator.Op.SUM);
+    op.setStreaming(true);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width1,
+        new int[] { 0, 0, 1, 1, 2, 2 });
+    expected.open();
+    for (int i = 0; i < 3; i++)
+      assertTrue(TestUtil.compareTuples(expected.next(), op.next()));
+    // only one tuple past the last group returned has been read
+    assertEquals(4, ((IntField) scan.next().getField(0)).getValue());
+    op.close();
+
+    op = new Aggregate(scan1, 1, 0, Aggregator.Op.AVG);
+    op.setStreaming(true);
+    op.open();
+    avg.open();
+    TestUtil.matchAllTuples(avg, op);
+    op.rewind();
+    avg.rewind();
+    TestUtil.compareDbIterators(avg, op);
+  }
+
+  /**
+   * Unit test for an Aggregate that aggregates in parallel worker threads
+   * and merges their partial results
+   */
+  @Test public void parallelGroupBy() throws Exception {
+    int groups = 100;
+    int rows = 50 * Aggregate.BATCH_SIZE;
+    int[] data = new int[rows * width1];
+    for (int i = 0; i < rows; i++) {
+      data[i * width1] = i % groups;
+      data[i * width1 + 1] = i % 7;
+    }
+    Aggregate serial = new Aggregate(TestUtil.createTupleList(width1, data), 1, 0,
+        Aggregator.Op.AVG);
+    Aggregate parallel = new Aggregate(TestUtil.createTupleList(width1, data), 1, 0,
+        Aggregator.Op.AVG);
+    parallel.setParallelism(4);
+    serial.open();
+    parallel.open();
+    TestUtil.matchAllTuples(serial, parallel);
+
+    parallel.rewind();
+    int count = 0;
+    while (parallel.hasNext()) {
+      parallel.next();
+      count++;
+    }
+    assertEquals(groups, count);
+    parallel.close();
+  }
+
   /**
    * JUnit suite target
    */
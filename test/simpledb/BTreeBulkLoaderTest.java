@@ -0,0 +1,161 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private BTreeFile load(HeapFile hf, BTreeBulkLoader loader) throws Exception {
+		File bFile = File.createTempFile("bulk", ".dat");
+		bFile.deleteOnExit();
+		BTreeFile bf = loader.load(hf.iterator(tid), bFile);
+		Database.getCatalog().addTable(bf);
+		return bf;
+	}
+
+	private static HashMap<ArrayList<Integer>, Integer> counts(List<ArrayList<Integer>> tuples) {
+		HashMap<ArrayList<Integer>, Integer> counts = new HashMap<ArrayList<Integer>, Integer>();
+		for(ArrayList<Integer> t : tuples) {
+			Integer c = counts.get(t);
+			counts.put(t, c == null ? 1 : c + 1);
+		}
+		return counts;
+	}
+
+	/**
+	 * Load more runs than are merged at once, so the runs are merged in
+	 * several passes, into a tree of three levels
+	 */
+	@Test
+	public void loadMultiPassTest() throws Exception {
+		BufferPool.setPageSize(512);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 20000, 1000, null, tuples);
+		BTreeBulkLoader loader = new BTreeBulkLoader(hf.getTupleDesc(), 1);
+		loader.setRunSize(500);
+		loader.setMergeFanIn(4);
+		loader.setParallelism(3);
+		BTreeFile bf = load(hf, loader);
+
+		ArrayList<ArrayList<Integer>> loaded = new ArrayList<ArrayList<Integer>>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int prev = Integer.MIN_VALUE;
+		while(it.hasNext()) {
+			ArrayList<Integer> t = BTreeUtility.tupleToList(it.next());
+			assertTrue(prev <= t.get(1));
+			prev = t.get(1);
+			loaded.add(t);
+		}
+		it.close();
+		assertEquals(counts(tuples), counts(loaded));
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, root.getChildId(0).pgcateg());
+
+		int key = tuples.get(0).get(1);
+		int matching = 0;
+		for(ArrayList<Integer> t : tuples) {
+			if(t.get(1) == key) {
+				matching++;
+			}
+		}
+		it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		while(it.hasNext()) {
+			assertEquals(key, ((IntField) it.next().getField(1)).getValue());
+			matching--;
+		}
+		it.close();
+		assertEquals(0, matching);
+	}
+
+	/**
+	 * Pages are only filled up to the fill factor, so inserts fit into the
+	 * pages without splitting them
+	 */
+	@Test
+	public void fillFactorTest() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10000, null, tuples);
+		BTreeBulkLoader loader = new BTreeBulkLoader(hf.getTupleDesc(), 0);
+		int full = load(hf, loader).numPages();
+
+		loader.setFillFactor(0.75);
+		BTreeFile bf = load(hf, loader);
+		assertTrue(bf.numPages() > full);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		BTreeLeafPage first = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				new BTreePageId(bf.getId(), 1, BTreePageId.LEAF), Permissions.READ_ONLY);
+		int maxTuples = first.getMaxTuples();
+		assertTrue(first.getNumTuples() <= (int) (maxTuples * 0.75) + 1);
+		assertTrue(first.getNumTuples() >= maxTuples / 2);
+
+		int pages = bf.numPages();
+		for(int i = 0; i < maxTuples / 5; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		}
+		assertEquals(pages, bf.numPages());
+	}
+
+	/**
+	 * Loading no tuples gives an empty tree that can be inserted into
+	 */
+	@Test
+	public void emptyTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		BTreeFile bf = load(hf, new BTreeBulkLoader(hf.getTupleDesc(), 0));
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(5, 2));
+		it = bf.iterator(tid);
+		it.open();
+		assertTrue(it.hasNext());
+		it.next();
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
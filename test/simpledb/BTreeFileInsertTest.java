@@ -132,6 +132,50 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 				entriesPerPage/2 - 1 == otherPage.getNumEntries());
 	}    
 
+	@Test
+	public void testSplitLeafPageWithEqualKeys() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		int entriesPerPage = BTreeUtility.getNumEntriesPerPage();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3 + entriesPerPage);
+		int tableid = empty.getId();
+		int keyField = 0;
+
+		// create a full parent page whose keys are all equal, and its parent
+		BTreePageId grandparentId = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+		BTreeInternalPage grandparent = new BTreeInternalPage(grandparentId,
+				BTreeInternalPage.createEmptyPageData(), keyField);
+		BTreePageId parentId = new BTreePageId(tableid, 2, BTreePageId.INTERNAL);
+		BTreeInternalPage parent = BTreeUtility.createRandomInternalPage(parentId, keyField, BTreePageId.LEAF,
+				5, 6, 3);
+		parent.setParentId(grandparentId);
+
+		// create a full leaf page with the same key, which splitting the parent moves
+		// to the new half
+		int childIndex = parent.getNumEntries() - parent.getNumEntriesToSplit();
+		BTreePageId leafId = new BTreePageId(tableid, 3 + childIndex, BTreePageId.LEAF);
+		BTreeLeafPage leaf = BTreeUtility.createRandomLeafPage(leafId, 2, keyField, 5, 6);
+		leaf.setParentId(parentId);
+
+		Field field = new IntField(5);
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		dirtypages.put(grandparentId, grandparent);
+		dirtypages.put(parentId, parent);
+		dirtypages.put(leafId, leaf);
+		empty.splitLeafPage(tid, dirtypages, leaf, field);
+		assertEquals(1, grandparent.getNumEntries());
+		assertFalse(parentId.equals(leaf.getParentId()));
+
+		// the entry for the new leaf page is in the half holding the page split
+		BTreeInternalPage half = (BTreeInternalPage) dirtypages.get(leaf.getParentId());
+		BTreeLeafPage newLeaf = (BTreeLeafPage) dirtypages.get(leaf.getRightSiblingId());
+		assertEquals(half.getId(), newLeaf.getParentId());
+		BTreeEntry first = half.iterator().next();
+		assertEquals(leafId, first.getLeftChild());
+		assertEquals(newLeaf.getId(), first.getRightChild());
+	}
+
 	@Test
 	public void testReusePage() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
@@ -0,0 +1,207 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeKeyCompressionTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private BTreeFile bf;
+
+	/**
+	 * Set up an empty B+ tree keyed on the string field of (string, int) tuples
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		bf = new BTreeFile(f, 0, new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE}));
+		Database.getCatalog().addTable(bf);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private Tuple tuple(String key, int value) {
+		Tuple t = new Tuple(bf.getTupleDesc());
+		t.setField(0, new StringField(key, Type.STRING_LEN));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	private static String key(int i) {
+		return String.format("customer-%08d", i);
+	}
+
+	private ArrayList<String> scan() throws Exception {
+		ArrayList<String> keys = new ArrayList<String>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			String key = ((StringField) t.getField(0)).getValue();
+			assertEquals(key, key(((IntField) t.getField(1)).getValue()));
+			keys.add(key);
+		}
+		it.close();
+		return keys;
+	}
+
+	@Test public void separator() {
+		assertEquals(new StringField("apr", Type.STRING_LEN), BTreeInternalPage.separator(
+				new StringField("apple", Type.STRING_LEN), new StringField("apricot", Type.STRING_LEN)));
+		assertEquals(new StringField("ab", Type.STRING_LEN), BTreeInternalPage.separator(
+				new StringField("a", Type.STRING_LEN), new StringField("abc", Type.STRING_LEN)));
+		assertEquals(new StringField("same", Type.STRING_LEN), BTreeInternalPage.separator(
+				new StringField("same", Type.STRING_LEN), new StringField("same", Type.STRING_LEN)));
+		assertEquals(new IntField(7), BTreeInternalPage.separator(new IntField(3), new IntField(7)));
+	}
+
+	/**
+	 * A leaf page with compressed keys writes out the bytes it was read from
+	 */
+	@Test public void leafPageData() throws Exception {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < 100; i++) {
+			tuples.add(tuple(key(i * 37), i * 37));
+		}
+		tuples.add(tuple("", -1));
+		Collections.sort(tuples, new BTreeFileEncoder.TupleComparator(0));
+		byte[] data = BTreeLeafPage.createCompressedPageData(bf.getTupleDesc(), 0, tuples);
+		BTreeLeafPage page = new BTreeLeafPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF), data, 0);
+		assertEquals(101, page.getNumTuples());
+		assertArrayEquals(data, page.getPageData());
+
+		Iterator<Tuple> it = page.iterator();
+		for(Tuple t : tuples) {
+			Tuple read = it.next();
+			assertEquals(t.getField(0), read.getField(0));
+			assertEquals(t.getField(1), read.getField(1));
+		}
+		assertFalse(it.hasNext());
+		assertFalse(page.isFull());
+	}
+
+	/**
+	 * Keys with long common prefixes give leaves and internal pages many more
+	 * tuples and entries than fit with full keys, and a shallower tree
+	 */
+	@Test public void insertAndDelete() throws Exception {
+		int n = 20000;
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for(int i = 0; i < n; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, new Random(49));
+		for(int i : order) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(key(i), i));
+		}
+
+		ArrayList<String> keys = scan();
+		assertEquals(n, keys.size());
+		for(int i = 0; i < n; i++) {
+			assertEquals(key(i), keys.get(i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		// with full keys, an internal page has at most 31 children and 20000
+		// tuples take at least three levels
+		assertEquals(2, bf.height(tid));
+		assertTrue(bf.fanout(tid) > 31);
+
+		// delete every key but one in ten
+		ArrayList<Tuple> deleting = new ArrayList<Tuple>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(((IntField) t.getField(1)).getValue() % 10 != 0) {
+				deleting.add(t);
+			}
+		}
+		it.close();
+		for(Tuple t : deleting) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		keys = scan();
+		assertEquals(n / 10, keys.size());
+		for(int i = 0; i < n / 10; i++) {
+			assertEquals(key(i * 10), keys.get(i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(2, bf.height(tid));
+	}
+
+	/**
+	 * Long keys without common prefixes fill small leaves quickly, but have
+	 * short separators, so internal pages are split, merged and redistributed
+	 * too
+	 */
+	@Test public void longKeysSmallPages() throws Exception {
+		BufferPool.setPageSize(1024);
+		setUp();
+		int n = 20000;
+		HashMap<String, Integer> expected = new HashMap<String, Integer>();
+		for(int i = 0; i < n; i++) {
+			String key = String.format("%08x-padded-out-to-forty-characters", (i * 2654435761L) & 0xffffffffL);
+			expected.put(key, i);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(key, i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(3, bf.height(tid));
+
+		ArrayList<Tuple> deleting = new ArrayList<Tuple>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		String prev = "";
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			String key = ((StringField) t.getField(0)).getValue();
+			assertTrue(prev.compareTo(key) < 0);
+			assertEquals(expected.get(key), (Integer) ((IntField) t.getField(1)).getValue());
+			prev = key;
+			if(deleting.size() < n - 100) {
+				deleting.add(t);
+			}
+		}
+		it.close();
+		Collections.shuffle(deleting, new Random(49));
+		for(Tuple t : deleting) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(2, bf.height(tid));
+		it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(100, count);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeKeyCompressionTest.class);
+	}
+}
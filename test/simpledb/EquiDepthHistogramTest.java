@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.Predicate.Op;
+
+public class EquiDepthHistogramTest {
+
+	/**
+	 * Zipfian values over [1, n]: value k occurs with probability
+	 * proportional to 1/k.
+	 */
+	private static int[] zipf(int count, int n, long seed) {
+		double[] cdf = new double[n];
+		double sum = 0;
+		for (int k = 1; k <= n; k++) {
+			sum += 1.0 / k;
+			cdf[k - 1] = sum;
+		}
+		Random rand = new Random(seed);
+		int[] values = new int[count];
+		for (int i = 0; i < count; i++) {
+			double u = rand.nextDouble() * sum;
+			int lo = 0, hi = n - 1;
+			while (lo < hi) {
+				int mid = (lo + hi) / 2;
+				if (cdf[mid] < u)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			values[i] = lo + 1;
+		}
+		return values;
+	}
+
+	private static double exact(int[] values, Op op, int v) {
+		int n = 0;
+		for (int x : values)
+			if (new IntField(x).compare(op, new IntField(v)))
+				n++;
+		return (double) n / values.length;
+	}
+
+	/**
+	 * On a skewed column, the frequent values are counted exactly and both
+	 * point and range estimates stay close to the truth.
+	 */
+	@Test public void skewedValuesTest() {
+		int[] values = zipf(20000, 10000, 1);
+		EquiDepthHistogram h = new EquiDepthHistogram(100, values);
+		Assert.assertTrue(h.numMcvs() > 0);
+		Assert.assertTrue(h.numBuckets() <= 100);
+
+		// the most common values have exact counts
+		for (int v = 1; v <= 5; v++)
+			Assert.assertEquals(exact(values, Op.EQUALS, v),
+					h.estimateSelectivity(Op.EQUALS, v), 1e-9);
+		// rare values are not mistaken for common ones
+		Assert.assertTrue(h.estimateSelectivity(Op.EQUALS, 5000) < 0.001);
+
+		for (int v : new int[] { 2, 10, 100, 1000, 5000 }) {
+			Assert.assertEquals(exact(values, Op.LESS_THAN, v),
+					h.estimateSelectivity(Op.LESS_THAN, v), 0.02);
+			Assert.assertEquals(exact(values, Op.GREATER_THAN_OR_EQ, v),
+					h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, v), 0.02);
+			Assert.assertEquals(exact(values, Op.GREATER_THAN, v),
+					h.estimateSelectivity(Op.GREATER_THAN, v), 0.02);
+		}
+	}
+
+	/**
+	 * Predicates against values outside the histogram's range.
+	 */
+	@Test public void outOfRangeTest() {
+		int[] values = new int[1000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i % 100;
+		EquiDepthHistogram h = new EquiDepthHistogram(10, values);
+
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, -5), 0.001);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, 200), 0.001);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.NOT_EQUALS, 200), 0.001);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, -5), 0.001);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN, 200), 0.001);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.GREATER_THAN, -5), 0.001);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.GREATER_THAN, 99), 0.001);
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN, 50), 0.02);
+		Assert.assertEquals(0.01, h.estimateSelectivity(Op.EQUALS, 42), 0.002);
+	}
+
+	/**
+	 * Added and removed values update the counts, and values beyond the
+	 * range widen the edge buckets.
+	 */
+	@Test public void addRemoveTest() {
+		int[] values = new int[1000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i % 100;
+		EquiDepthHistogram h = new EquiDepthHistogram(10, values);
+
+		for (int i = 0; i < 1000; i++)
+			h.addValue(150);
+		// the widened last bucket spreads its values over [90, 150]
+		Assert.assertTrue(h.estimateSelectivity(Op.GREATER_THAN, 99) > 0.3);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, 150), 0.001);
+		Assert.assertEquals(0.45, h.estimateSelectivity(Op.LESS_THAN, 90), 0.02);
+
+		for (int i = 0; i < 1000; i++)
+			h.removeValue(150);
+		// bucket boundaries stay where they are
+		Assert.assertEquals(0.9, h.estimateSelectivity(Op.LESS_THAN, 90), 0.001);
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN, 50), 0.02);
+		Assert.assertTrue(h.estimateSelectivity(Op.GREATER_THAN, 99) < 0.1);
+	}
+
+	/**
+	 * An empty histogram estimates nothing matches, and grows as values are
+	 * added.
+	 */
+	@Test public void emptyTest() {
+		EquiDepthHistogram h = new EquiDepthHistogram(10, new int[0]);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, 3), 0.001);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.NOT_EQUALS, 3), 0.001);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, 3), 0.001);
+
+		h.addValue(3);
+		h.addValue(7);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, 7), 0.001);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, 0), 0.001);
+	}
+}
@@ -121,6 +121,41 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.iterator() with pushed-down predicates and
+     * fields: only matching tuples come back, holding only the given fields,
+     * including from pages where nothing matches.
+     */
+    @Test
+    public void testIteratorPushdown() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile file = SystemTestUtil.createRandomHeapFile(3, 2000, 1000,
+                null, tuples);
+        Predicate[] preds = new Predicate[] {
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(900)),
+                new Predicate(2, Predicate.Op.LESS_THAN_OR_EQ, new IntField(500)) };
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) > 900 && t.get(2) <= 500)
+                expected.add(t.get(1));
+
+        DbFileIterator it = file.iterator(tid, new int[] { 1 }, preds);
+        it.open();
+        ArrayList<Integer> actual = new ArrayList<Integer>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(1, t.getTupleDesc().numFields());
+            assertNotNull(t.getRecordId());
+            actual.add(((IntField) t.getField(0)).getValue());
+        }
+        it.rewind();
+        assertEquals(!expected.isEmpty(), it.hasNext());
+        it.close();
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
     /**
      * JUnit suite target
      */
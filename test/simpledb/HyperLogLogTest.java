@@ -0,0 +1,39 @@
+package simpledb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+	/**
+	 * The estimate should be within a few percent of the true number of
+	 * distinct values, however often each value repeats.
+	 */
+	@Test public void estimateTest() {
+		HyperLogLog h = new HyperLogLog();
+		for (int c = 0; c < 1000000; c++) {
+			h.add(new IntField(c % 50000));
+		}
+		Assert.assertEquals(50000, h.estimate(), 50000 * 0.05);
+
+		HyperLogLog small = new HyperLogLog();
+		for (int c = 0; c < 100; c++) {
+			small.add(new StringField("v" + (c % 10), Type.STRING_LEN));
+		}
+		Assert.assertEquals(10, small.estimate());
+	}
+
+	/**
+	 * Merging two sketches should estimate the size of the union.
+	 */
+	@Test public void mergeTest() {
+		HyperLogLog a = new HyperLogLog();
+		HyperLogLog b = new HyperLogLog();
+		for (int c = 0; c < 30000; c++) {
+			a.add(new IntField(c));
+			b.add(new IntField(c + 20000));
+		}
+		a.merge(b);
+		Assert.assertEquals(50000, a.estimate(), 50000 * 0.05);
+	}
+}
@@ -126,6 +126,25 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator.merge() of two partial avg aggregates
+   */
+  @Test public void mergePartials() throws Exception {
+    scan1.open();
+    IntegerAggregator first = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    IntegerAggregator rest = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    first.mergeTupleIntoGroup(scan1.next());
+    while (scan1.hasNext())
+      rest.mergeTupleIntoGroup(scan1.next());
+
+    // the average of the merged (sum, count) pairs, not of the two averages
+    first.merge(rest);
+    OpIterator it = first.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, 4, 3, 4, 5, 7 }), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for OpIterator behaviour
    */
@@ -178,6 +197,34 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * IntegerAggregator groups 1M rows into 100k groups within the timeout;
+   * with a linear scan over existing groups this never finishes.
+   */
+  @Test(timeout=30000) public void highCardinalityGroupBy() throws Exception {
+    final int rows = 1000000;
+    final int groups = 100000;
+    TupleDesc td = Utility.getTupleDesc(width1);
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+
+    for (int i = 0; i < rows; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i % groups));
+      t.setField(1, new IntField(1));
+      agg.mergeTupleIntoGroup(t);
+    }
+
+    OpIterator it = agg.iterator();
+    it.open();
+    int count = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      assertEquals(rows / groups, ((IntField) t.getField(1)).getValue());
+      count++;
+    }
+    assertEquals(groups, count);
+  }
+
   /**
    * JUnit suite target
    */
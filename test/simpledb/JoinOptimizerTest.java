@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 import org.junit.Assert;
@@ -265,6 +266,34 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
     }
 
+    /**
+     * Equi-joins on non-key fields are estimated from the number of distinct
+     * values of the join fields: |R||S| / max(ndv(R), ndv(S)).
+     */
+    @Test
+    public void estimateJoinCardinalityFromDistinctValues() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                        + " t2 WHERE t1.c3 = t2.c4;"),
+                new Vector<LogicalJoinNode>());
+
+        // both fields take the 20 values in [0, 20)
+        Assert.assertEquals(20, stats1.numDistinct(3), 1);
+        Assert.assertEquals(20, stats2.numDistinct(4), 1);
+        int cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c3", "c4", Predicate.Op.EQUALS), 1000, 10000, false, false,
+                TableStats.getStatsMap());
+        Assert.assertEquals(1000 * 10000 / 20, cardinality, 1000 * 10000 / 20 / 10);
+
+        // a filtered side cannot have more distinct values than tuples
+        cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c3", "c4", Predicate.Op.EQUALS), 5, 10000, false, false,
+                TableStats.getStatsMap());
+        Assert.assertEquals(5 * 10000 / 20, cardinality, 5 * 10000 / 20 / 10);
+    }
+
     /**
      * Determine whether the orderJoins implementation is doing a reasonable job
      * of ordering joins, and not taking an unreasonable amount of time to do so
@@ -621,4 +650,213 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Add tables t0 ... t(count-1) of varying sizes, with two columns each,
+     * to the catalog, and put their statistics and a selectivity of 1 into
+     * the given maps
+     */
+    private static void addTables(int count, int ioCost,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws IOException,
+            DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile first = SystemTestUtil.createRandomHeapFile(2, 100,
+                Integer.MAX_VALUE, null, tuples, "c");
+        for (int i = 0; i < count; i++) {
+            // vary the table sizes so that the order matters
+            ArrayList<ArrayList<Integer>> t = new ArrayList<ArrayList<Integer>>(
+                    tuples.subList(0, 10 + (i * 37) % 90));
+            HeapFile hf = i == 0 ? first : createDuplicateHeapFile(t, 2, "c");
+            Database.getCatalog().addTable(hf, "t" + i);
+            stats.put("t" + i, new TableStats(hf.getId(), ioCost));
+            filterSelectivities.put("t" + i, 1.0);
+        }
+    }
+
+    /**
+     * @return an optimizer for n shuffled joins over tables t0 ... tn, either
+     *         a chain (t0-t1, t1-t2, ...) or a star centered on t0
+     */
+    private static JoinOptimizer chainJoin(int n, boolean star)
+            throws ParsingException {
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        StringBuilder from = new StringBuilder("t0");
+        StringBuilder where = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            String t1 = star ? "t0" : "t" + i;
+            nodes.add(new LogicalJoinNode(t1, "t" + (i + 1), "c0", "c0",
+                    Predicate.Op.EQUALS));
+            from.append(", t").append(i + 1);
+            where.append(i == 0 ? "" : " AND ").append(t1).append(".c0 = t")
+                    .append(i + 1).append(".c0");
+        }
+        Collections.shuffle(nodes);
+        return new JoinOptimizer(new Parser().generateLogicalPlan(
+                new TransactionId(), "SELECT COUNT(t0.c0) FROM " + from
+                        + " WHERE " + where + ";"), nodes);
+    }
+
+    /**
+     * Check that executing the joins in order, each combining the subplans
+     * that contain its two tables, ends with a single plan over all tables
+     */
+    private static void assertJoinsAllTables(Vector<LogicalJoinNode> order,
+            int numTables) {
+        HashMap<String, HashSet<String>> subplans = new HashMap<String, HashSet<String>>();
+        for (LogicalJoinNode jn : order) {
+            HashSet<String> s1 = subplans.get(jn.t1Alias);
+            HashSet<String> s2 = subplans.get(jn.t2Alias);
+            HashSet<String> joined = new HashSet<String>();
+            joined.add(jn.t1Alias);
+            joined.add(jn.t2Alias);
+            if (s1 != null)
+                joined.addAll(s1);
+            if (s2 != null)
+                joined.addAll(s2);
+            for (String t : joined)
+                subplans.put(t, joined);
+        }
+        Assert.assertEquals(numTables,
+                subplans.get(order.lastElement().t1Alias).size());
+    }
+
+    /**
+     * Time the planning of chain joins of growing size. The dynamic program
+     * visits 2^n subsets of n joins, so a 12-way join should still be planned
+     * in milliseconds.
+     */
+    @Test(timeout = 60000)
+    public void planningTimeTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        final int IO_COST = 103;
+        final int MAX_JOINS = 16;
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        addTables(MAX_JOINS + 1, IO_COST, stats, filterSelectivities);
+
+        for (int n = 4; n <= MAX_JOINS; n += 4) {
+            JoinOptimizer j = chainJoin(n, false);
+
+            // the first run warms up the JIT
+            j.orderJoins(stats, filterSelectivities, false);
+            long start = System.nanoTime();
+            Vector<LogicalJoinNode> result = j.orderJoins(stats,
+                    filterSelectivities, false);
+            long ms = (System.nanoTime() - start) / 1000000;
+
+            Assert.assertEquals(n, result.size());
+            assertJoinsAllTables(result, n + 1);
+            if (n <= 12)
+                Assert.assertTrue("planning took " + ms + " ms", ms < 1000);
+        }
+    }
+
+    /**
+     * Compare the greedy fallback with the dynamic program on queries small
+     * enough for both, and make sure it plans large queries quickly.
+     */
+    @Test(timeout = 60000)
+    public void greedyOrderJoinsTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        final int IO_COST = 103;
+        final int BIG_JOINS = 60;
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        addTables(BIG_JOINS + 1, IO_COST, stats, filterSelectivities);
+
+        for (boolean star : new boolean[] { false, true }) {
+            for (int n = 2; n <= 12; n += 2) {
+                JoinOptimizer j = chainJoin(n, star);
+                double dpCost = j.estimatePlanCost(
+                        j.orderJoins(stats, filterSelectivities, false), stats,
+                        filterSelectivities);
+                j.setMaxDpJoins(0);
+                Vector<LogicalJoinNode> result = j.orderJoins(stats,
+                        filterSelectivities, false);
+                double greedyCost = j.estimatePlanCost(result, stats,
+                        filterSelectivities);
+
+                Assert.assertEquals(n, result.size());
+                // DP is optimal; greedy should not be far off
+                Assert.assertTrue(greedyCost >= dpCost * (1 - 1e-9));
+                Assert.assertTrue(greedyCost <= 1.5 * dpCost);
+            }
+        }
+
+        JoinOptimizer j = chainJoin(BIG_JOINS, false);
+        Assert.assertTrue(BIG_JOINS > j.getMaxDpJoins());
+        long start = System.nanoTime();
+        Vector<LogicalJoinNode> result = j.orderJoins(stats,
+                filterSelectivities, false);
+        long ms = (System.nanoTime() - start) / 1000000;
+        Assert.assertEquals(BIG_JOINS, result.size());
+        // estimatePlanCost rejects orders that are not connected left-deep plans
+        j.estimatePlanCost(result, stats, filterSelectivities);
+        Assert.assertTrue("planning took " + ms + " ms", ms < 1000);
+    }
+
+    /**
+     * Plan a snowflake query: a large fact table f joined to dimensions d1 and
+     * d2, each of which is joined to a further dimension. Hash joins should
+     * build on the small dimensions rather than the fact table, and the best
+     * plan joins the dimensions with each other before probing them with the
+     * fact table, which takes a bushy tree.
+     */
+    @Test
+    public void snowflakeJoinTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        final int IO_COST = 103;
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        String[] names = { "f", "d1", "d2", "e1", "e2" };
+        for (String name : names) {
+            HeapFile hf = SystemTestUtil.createRandomHeapFile(2,
+                    name.equals("f") ? 5000 : 100, 100, null,
+                    new ArrayList<ArrayList<Integer>>(), "c");
+            Database.getCatalog().addTable(hf, name);
+            stats.put(name, new TableStats(hf.getId(), IO_COST));
+        }
+
+        LogicalPlan lp = new Parser().generateLogicalPlan(new TransactionId(),
+                "SELECT f.c0 FROM f, d1, d2, e1, e2 WHERE f.c0 = d1.c0 AND "
+                        + "f.c1 = d2.c0 AND d1.c1 = e1.c0 AND d2.c1 = e2.c0;");
+        OpIterator plan = lp.physicalPlan(new TransactionId(), stats, false);
+
+        ArrayList<HashEquiJoin> hashJoins = new ArrayList<HashEquiJoin>();
+        findHashJoins(plan, hashJoins);
+        Assert.assertEquals(4, hashJoins.size());
+        boolean bushy = false;
+        for (HashEquiJoin j : hashJoins) {
+            OpIterator[] children = j.getChildren();
+            OpIterator build = children[j.buildsOnChild2() ? 1 : 0];
+            Assert.assertFalse(scansTable(build, "f"));
+            ArrayList<HashEquiJoin> below1 = new ArrayList<HashEquiJoin>();
+            ArrayList<HashEquiJoin> below2 = new ArrayList<HashEquiJoin>();
+            findHashJoins(children[0], below1);
+            findHashJoins(children[1], below2);
+            bushy |= !below1.isEmpty() && !below2.isEmpty();
+        }
+        Assert.assertTrue(bushy);
+    }
+
+    private static void findHashJoins(OpIterator plan,
+            ArrayList<HashEquiJoin> joins) {
+        if (plan instanceof HashEquiJoin)
+            joins.add((HashEquiJoin) plan);
+        if (plan instanceof Operator)
+            for (OpIterator child : ((Operator) plan).getChildren())
+                findHashJoins(child, joins);
+    }
+
+    private static boolean scansTable(OpIterator plan, String alias) {
+        if (plan instanceof SeqScan)
+            return ((SeqScan) plan).getAlias().equals(alias);
+        if (plan instanceof Operator)
+            for (OpIterator child : ((Operator) plan).getChildren())
+                if (scansTable(child, alias))
+                    return true;
+        return false;
+    }
 }
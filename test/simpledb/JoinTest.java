@@ -107,6 +107,30 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for HashEquiJoin building on either child, and its rewind()
+   */
+  @Test public void hashEquiJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    for (boolean buildOnChild2 : new boolean[] { false, true }) {
+      HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2, buildOnChild2);
+      assertEquals(buildOnChild2, op.buildsOnChild2());
+      assertEquals(Utility.getTupleDesc(width1 + width2), op.getTupleDesc());
+      op.open();
+      eqJoin.open();
+      TestUtil.matchAllTuples(eqJoin, op);
+      op.rewind();
+      int count = 0;
+      while (op.hasNext()) {
+        op.next();
+        count++;
+      }
+      assertEquals(3, count);
+      op.close();
+      eqJoin.close();
+    }
+  }
+
   /**
    * JUnit suite target
    */
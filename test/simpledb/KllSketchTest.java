@@ -0,0 +1,39 @@
+package simpledb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KllSketchTest {
+
+	/**
+	 * Quantiles of a uniform stream should be within about 1% (in rank) of
+	 * the exact answer, while the sketch retains only a small sample.
+	 */
+	@Test public void quantileTest() {
+		KllSketch s = new KllSketch();
+		int n = 1000000;
+		for (int c = 0; c < n; c++) {
+			s.add((int) ((c * 7919L) % n));	// every value once, shuffled
+		}
+		Assert.assertTrue(s.retained() < 2000);
+		Assert.assertEquals(n / 2, s.quantile(0.5), n * 0.02);
+		Assert.assertEquals(n * 0.99, s.quantile(0.99), n * 0.02);
+		Assert.assertEquals(n * 0.1, s.quantile(0.1), n * 0.02);
+	}
+
+	/**
+	 * Merging sketches of two halves of a stream should answer like a sketch
+	 * of the whole stream.
+	 */
+	@Test public void mergeTest() {
+		KllSketch low = new KllSketch(KllSketch.DEFAULT_K, 1);
+		KllSketch high = new KllSketch(KllSketch.DEFAULT_K, 2);
+		for (int c = 0; c < 100000; c++) {
+			low.add(c);
+			high.add(c + 100000);
+		}
+		low.merge(high);
+		Assert.assertEquals(100000, low.quantile(0.5), 200000 * 0.02);
+		Assert.assertEquals(190000, low.quantile(0.95), 200000 * 0.02);
+	}
+}
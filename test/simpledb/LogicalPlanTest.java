@@ -0,0 +1,282 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+
+    private static final int IO_COST = 71;
+    private static final int ROWS = 20000;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HashMap<String, TableStats> stats;
+
+    /**
+     * Create a B+ tree table "bt" with integer fields c0 and c1, keyed on c0
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile unnamed = BTreeUtility.createRandomBTreeFile(2, ROWS,
+                ROWS / 2, null, tuples, 0);
+        BTreeFile bf = new BTreeFile(unnamed.getFile(), 0,
+                Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(bf, "bt");
+        stats = new HashMap<String, TableStats>();
+        stats.put("bt", new TableStats(bf.getId(), IO_COST));
+    }
+
+    private OpIterator plan(String query) throws ParsingException {
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, query);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    private static OpIterator findScan(OpIterator plan) {
+        while (plan instanceof Operator)
+            plan = ((Operator) plan).getChildren()[0];
+        return plan;
+    }
+
+    private static boolean hasFilter(OpIterator plan) {
+        for (; plan instanceof Operator; plan = ((Operator) plan).getChildren()[0])
+            if (plan instanceof Filter)
+                return true;
+        return false;
+    }
+
+    /**
+     * An equality filter on the key of a B+ tree matches a few tuples, so it
+     * should be answered by descending the index instead of scanning the file.
+     */
+    @Test
+    public void indexScanForSelectiveKeyFilter() throws Exception {
+        int key = tuples.get(ROWS / 3).get(0);
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) == key)
+                expected++;
+
+        OpIterator plan = plan("SELECT * FROM bt WHERE bt.c0 = " + key + ";");
+        OpIterator scan = findScan(plan);
+        Assert.assertTrue(scan instanceof BTreeScan);
+        IndexPredicate ipred = ((BTreeScan) scan).getIndexPredicate();
+        Assert.assertEquals(Predicate.Op.EQUALS, ipred.getOp());
+        Assert.assertEquals(new IntField(key), ipred.getField());
+        Assert.assertFalse(hasFilter(plan));
+        Assert.assertEquals(expected, TestUtil.countTuples(plan));
+    }
+
+    /**
+     * Filters that match most of the table, or that are not on the key, are
+     * cheaper to evaluate over a sequential scan.
+     */
+    @Test
+    public void seqScanForUnselectiveFilters() throws Exception {
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) > 100)
+                expected++;
+        OpIterator plan = plan("SELECT * FROM bt WHERE bt.c0 > 100;");
+        Assert.assertTrue(findScan(plan) instanceof SeqScan);
+        Assert.assertEquals(expected, TestUtil.countTuples(plan));
+
+        plan = plan("SELECT * FROM bt WHERE bt.c1 = 5;");
+        Assert.assertTrue(findScan(plan) instanceof SeqScan);
+    }
+
+    /**
+     * Filters on a sequentially scanned table are evaluated by the scan, which
+     * also returns only the fields the rest of the query needs.
+     */
+    @Test
+    public void pushDownIntoSeqScan() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 2000, 100, null,
+                tuples, "h");
+        Database.getCatalog().addTable(hf, "ht");
+        stats.put("ht", new TableStats(hf.getId(), IO_COST));
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) < 30 && t.get(1) >= 50)
+                expected++;
+
+        OpIterator plan = plan("SELECT ht.h2 FROM ht WHERE ht.h0 < 30 AND ht.h1 >= 50;");
+        Assert.assertFalse(hasFilter(plan));
+        SeqScan scan = (SeqScan) findScan(plan);
+        Assert.assertEquals(2, scan.getPredicates().length);
+        Assert.assertArrayEquals(new int[] { 2 }, scan.getFields());
+        Assert.assertEquals(1, scan.getTupleDesc().numFields());
+        Assert.assertEquals("ht.h2", scan.getTupleDesc().getFieldName(0));
+        Assert.assertEquals(expected, TestUtil.countTuples(plan));
+
+        // every field is needed by SELECT *
+        scan = (SeqScan) findScan(plan("SELECT * FROM ht WHERE ht.h0 < 30;"));
+        Assert.assertNull(scan.getFields());
+    }
+
+    private static OpIterator find(OpIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return plan;
+        if (plan instanceof Operator)
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                OpIterator found = child == null ? null : find(child, c);
+                if (found != null)
+                    return found;
+            }
+        return null;
+    }
+
+    /**
+     * A hash join can keep the order of its probe side, so an aggregate
+     * grouped on the key of the B+ tree that probes it streams.
+     */
+    @Test
+    public void streamingAggregateOverHashJoin() throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, ROWS / 2, null,
+                rows, "h");
+        Database.getCatalog().addTable(hf, "ht");
+        stats.put("ht", new TableStats(hf.getId(), IO_COST));
+        HashSet<Integer> joined = new HashSet<Integer>();
+        for (ArrayList<Integer> r : rows)
+            joined.add(r.get(0));
+        HashSet<Integer> expected = new HashSet<Integer>();
+        for (ArrayList<Integer> t : tuples)
+            if (joined.contains(t.get(0)))
+                expected.add(t.get(0));
+
+        OpIterator plan = plan("SELECT bt.c0, COUNT(ht.h1) FROM bt, ht "
+                + "WHERE bt.c0 = ht.h0 GROUP BY bt.c0;");
+        HashEquiJoin join = (HashEquiJoin) find(plan, HashEquiJoin.class);
+        SeqScan probe = (SeqScan) find(join.getProbeChild(), SeqScan.class);
+        Assert.assertEquals("bt", probe.getAlias());
+        Assert.assertTrue(((Aggregate) find(plan, Aggregate.class)).isStreaming());
+        Assert.assertEquals(expected.size(), TestUtil.countTuples(plan));
+    }
+
+    /**
+     * An instrumented plan records what happened at each node, and is
+     * restored to its original shape afterwards.
+     */
+    @Test
+    public void explainAnalyzeProfilesEveryNode() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3000, 100, null,
+                tuples, "h");
+        Database.getCatalog().addTable(hf, "ht");
+        stats.put("ht", new TableStats(hf.getId(), IO_COST));
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) < 30)
+                expected++;
+
+        OpIterator plan = plan("SELECT ht.h1 FROM ht WHERE ht.h0 < 30;");
+        OpIterator scan = findScan(plan);
+        IdentityHashMap<OpIterator, OperatorProfile> profiles = new IdentityHashMap<OpIterator, OperatorProfile>();
+        OpIterator instrumented = OperatorProfile.instrument(plan, profiles);
+        Assert.assertEquals(expected, TestUtil.countTuples(instrumented));
+        Assert.assertSame(plan, OperatorProfile.restore(instrumented));
+        Assert.assertSame(scan, findScan(plan));
+
+        Assert.assertEquals(expected, profiles.get(plan).rows());
+        Assert.assertEquals(expected, profiles.get(scan).rows());
+        Assert.assertEquals(hf.numPages(), profiles.get(scan).pageHits()
+                + profiles.get(scan).pageMisses());
+        Assert.assertEquals(0, profiles.get(plan).pageHits() + profiles.get(plan).pageMisses());
+        Assert.assertTrue(profiles.get(plan).wallMillis() >= profiles.get(scan).wallMillis());
+
+        String tree = new QueryPlanVisualizer().getQueryPlanTree(plan, profiles);
+        Assert.assertTrue(tree.contains("rows:" + expected));
+        Assert.assertFalse(new QueryPlanVisualizer().getQueryPlanTree(plan).contains("rows:"));
+
+        Parser p = new Parser();
+        Assert.assertEquals("SELECT * FROM t;", p.stripExplainAnalyze("explain  analyze SELECT * FROM t;"));
+        Assert.assertEquals("SELECT * FROM t;", p.stripExplainAnalyze("SELECT * FROM t;"));
+    }
+
+    private static boolean hasCheck(OpIterator plan, boolean adaptive) {
+        if (plan instanceof CardinalityCheck
+                && ((CardinalityCheck) plan).isAdaptive() == adaptive)
+            return true;
+        if (plan instanceof Operator)
+            for (OpIterator child : ((Operator) plan).getChildren())
+                if (child != null && hasCheck(child, adaptive))
+                    return true;
+        return false;
+    }
+
+    /**
+     * Filters on correlated columns are estimated as if independent, so the
+     * filtered table looks far smaller than it is. The cardinality check on
+     * the hash join build side it feeds catches this, the query is planned
+     * again, and the next plan with the same filters uses the observed
+     * selectivity.
+     */
+    @Test
+    public void adaptivePlanReoptimizesMisestimatedInput() throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 2000; i++) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            for (int f = 0; f < 3; f++)
+                row.add(i % 1000);
+            rows.add(row);
+        }
+        File fa = File.createTempFile("table", ".dat");
+        File fb = File.createTempFile("table", ".dat");
+        fa.deleteOnExit();
+        fb.deleteOnExit();
+        HeapFileEncoder.convert(rows, fa, BufferPool.getPageSize(), 3);
+        HeapFileEncoder.convert(rows, fb, BufferPool.getPageSize(), 3);
+        HeapFile a = Utility.openHeapFile(3, "a", fa);
+        HeapFile b = Utility.openHeapFile(3, "b", fb);
+        Database.getCatalog().addTable(a, "ta");
+        Database.getCatalog().addTable(b, "tb");
+        TableStats.setTableStats("ta", new TableStats(a.getId(), IO_COST));
+        TableStats.setTableStats("tb", new TableStats(b.getId(), IO_COST));
+        String sql = "SELECT ta.a0, tb.b1 FROM ta, tb WHERE ta.a0 = tb.b0 "
+                + "AND ta.a0 < 200 AND ta.a1 < 200 AND ta.a2 < 200;";
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        lp.setAdaptive(true);
+        OpIterator first = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        Assert.assertTrue(hasCheck(first, true));
+        Query q = new Query(first, tid);
+        q.setLogicalPlan(lp);
+        q.start();
+        Assert.assertNotSame(first, q.getPhysicalPlan());
+        Assert.assertFalse(hasCheck(q.getPhysicalPlan(), true));
+        Assert.assertTrue(hasCheck(q.getPhysicalPlan(), false));
+        int n = 0;
+        while (q.hasNext()) {
+            q.next();
+            n++;
+        }
+        q.close();
+        // 400 tuples of ta pass, each joining two tuples of tb
+        Assert.assertEquals(800, n);
+
+        TableStats s = TableStats.getTableStats("ta");
+        Assert.assertEquals(0.2, s.observedSelectivity(lp.filterKey("ta")), 1e-9);
+        LogicalPlan again = new Parser().generateLogicalPlan(tid, sql);
+        again.setAdaptive(true);
+        Assert.assertEquals(lp.filterKey("ta"), again.filterKey("ta"));
+        q = new Query(again.physicalPlan(tid, TableStats.getStatsMap(), false), tid);
+        q.setLogicalPlan(again);
+        OpIterator planned = q.getPhysicalPlan();
+        q.start();
+        Assert.assertSame(planned, q.getPhysicalPlan());
+        q.close();
+        Assert.assertNull(lp.filterKey("tb"));
+    }
+}
@@ -0,0 +1,98 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class MultiAggregatorTest extends SimpleDbTestBase {
+
+  int width1 = 3;
+  OpIterator scan1;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleList() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 1, 2,
+                    1, 1, 4,
+                    1, 2, 6,
+                    3, 1, 2,
+                    3, 1, 4,
+                    1, 2, 8,
+                    5, 5, 7 });
+  }
+
+  /**
+   * Test MultiAggregator over several aggregates and a composite group key
+   */
+  @Test public void mergeCompositeKey() throws Exception {
+    scan1.open();
+    MultiAggregator agg = new MultiAggregator(new int[] { 0, 1 },
+        Utility.getTupleDesc(width1), new int[] { 2, 2, 2, 2 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT,
+            Aggregator.Op.MAX, Aggregator.Op.AVG });
+    while (scan1.hasNext())
+      agg.mergeTupleIntoGroup(scan1.next());
+    assertEquals(4, agg.numGroups());
+
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(6,
+        new int[] { 1, 1, 6, 2, 4, 3,
+                    1, 2, 14, 2, 8, 7,
+                    3, 1, 6, 2, 4, 3,
+                    5, 5, 7, 1, 7, 7 }), it);
+  }
+
+  /**
+   * Test MultiAggregator.merge() and containsGroup()
+   */
+  @Test public void mergePartials() throws Exception {
+    scan1.open();
+    int[] gb = new int[] { 0, 1 };
+    int[] af = new int[] { 2, 2 };
+    Aggregator.Op[] ops = new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.AVG };
+    TupleDesc td = Utility.getTupleDesc(width1);
+    MultiAggregator first = new MultiAggregator(gb, td, af, ops);
+    MultiAggregator rest = new MultiAggregator(gb, td, af, ops);
+    Tuple t = scan1.next();
+    first.mergeTupleIntoGroup(t);
+    while (scan1.hasNext())
+      rest.mergeTupleIntoGroup(scan1.next());
+    assertTrue(rest.containsGroup(t));
+    assertFalse(first.containsGroup(Utility.getHeapTuple(new int[] { 5, 5, 0 })));
+
+    first.merge(rest);
+    OpIterator it = first.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(4,
+        new int[] { 1, 1, 2, 3,
+                    1, 2, 6, 7,
+                    3, 1, 2, 3,
+                    5, 5, 7, 7 }), it);
+  }
+
+  /**
+   * MIN, MAX, SUM and AVG are not supported on string fields
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void stringSumRejected() {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+    new MultiAggregator(new int[] { 0 }, td, new int[] { 1, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM });
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(MultiAggregatorTest.class);
+  }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ResultCacheTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 500, null, tuples);
+        Database.getCatalog().addTable(hf, "ht");
+        tid = new TransactionId();
+    }
+
+    /** Run a scan of the table, recording its result in cache under key */
+    private int run(ResultCache cache, String key, int limit) throws Exception {
+        Query q = new Query(new SeqScan(tid, hf.getId(), "ht"), tid);
+        q.setResultRecorder(cache.record(key, Collections.singleton(hf.getId())));
+        q.start();
+        int n = 0;
+        while (n < limit && q.hasNext()) {
+            q.next();
+            n++;
+        }
+        q.close();
+        return n;
+    }
+
+    /**
+     * A complete result is served until a tuple is inserted into its table.
+     */
+    @Test
+    public void invalidateOnInsertTest() throws Exception {
+        ResultCache cache = new ResultCache(ResultCache.DEFAULT_MAX_BYTES);
+        Assert.assertNull(cache.get("q"));
+        Assert.assertEquals(500, run(cache, "q", Integer.MAX_VALUE));
+
+        OpIterator cached = cache.get("q");
+        Assert.assertNotNull(cached);
+        Assert.assertEquals(500, TestUtil.countTuples(cached));
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(0.5, cache.hitRate(), 1e-9);
+
+        long version = ResultCache.version(hf.getId());
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(7, 2));
+        Assert.assertEquals(version + 1, ResultCache.version(hf.getId()));
+        Assert.assertNull(cache.get("q"));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.bytes());
+    }
+
+    /**
+     * Results the query did not return all of are not cached, and the least
+     * recently used results are evicted to stay within the size limit.
+     */
+    @Test
+    public void partialAndEvictionTest() throws Exception {
+        long resultBytes = 500L * (hf.getTupleDesc().getSize() + 32);
+        ResultCache cache = new ResultCache(2 * resultBytes);
+        run(cache, "partial", 10);
+        Assert.assertNull(cache.get("partial"));
+
+        run(cache, "a", Integer.MAX_VALUE);
+        run(cache, "b", Integer.MAX_VALUE);
+        Assert.assertEquals(2 * resultBytes, cache.bytes());
+        Assert.assertNotNull(cache.get("a"));
+        run(cache, "c", Integer.MAX_VALUE);
+        // b was the least recently used
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertNotNull(cache.get("c"));
+        Assert.assertEquals(1, cache.evictions());
+
+        // a result larger than the whole cache is never kept
+        ResultCache small = new ResultCache(resultBytes / 2);
+        run(small, "a", Integer.MAX_VALUE);
+        Assert.assertEquals(0, small.size());
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+    private TransactionId tid;
+    private SecondaryIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 5000, 100, null, tuples);
+        Database.getCatalog().addTable(hf, "t");
+        tid = new TransactionId();
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        index = SecondaryIndex.build(tid, hf.getId(), 1, f);
+        Database.getCatalog().addIndex(index);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private int expected(Op op, int value) {
+        int n = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (new IntField(t.get(1)).compare(op, new IntField(value)))
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Run an index scan, checking that it returns only matching tuples, in
+     * record id order
+     */
+    private int scan(Op op, int value) throws Exception {
+        IndexScan scan = new IndexScan(tid, index, "t",
+                new IndexPredicate(op, new IntField(value)));
+        scan.open();
+        int n = 0;
+        RecordId prev = null;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            Assert.assertTrue(t.getField(1).compare(op, new IntField(value)));
+            RecordId rid = t.getRecordId();
+            if (prev != null) {
+                int prevPage = prev.getPageId().getPageNumber();
+                int page = rid.getPageId().getPageNumber();
+                Assert.assertTrue(prevPage < page
+                        || (prevPage == page && prev.getTupleNumber() < rid.getTupleNumber()));
+            }
+            prev = rid;
+            n++;
+        }
+        scan.close();
+        return n;
+    }
+
+    @Test
+    public void scanTest() throws Exception {
+        Assert.assertSame(index, Database.getCatalog().getIndex(hf.getId(), 1));
+        Assert.assertNull(Database.getCatalog().getIndex(hf.getId(), 0));
+        Assert.assertEquals(expected(Op.EQUALS, 42), scan(Op.EQUALS, 42));
+        Assert.assertEquals(expected(Op.LESS_THAN, 10), scan(Op.LESS_THAN, 10));
+        Assert.assertEquals(expected(Op.GREATER_THAN_OR_EQ, 90), scan(Op.GREATER_THAN_OR_EQ, 90));
+
+        IndexScan all = new IndexScan(tid, index, "t", null);
+        all.open();
+        int n = 0;
+        while (all.hasNext()) {
+            all.next();
+            n++;
+        }
+        Assert.assertEquals(tuples.size(), n);
+        Assert.assertEquals("t." + hf.getTupleDesc().getFieldName(1), all.getTupleDesc().getFieldName(1));
+        all.close();
+    }
+
+    /**
+     * Inserting and deleting tuples through the BufferPool updates the index
+     */
+    @Test
+    public void maintenanceTest() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{i, 500}));
+        }
+        Assert.assertEquals(10, scan(Op.EQUALS, 500));
+
+        IndexScan scan = new IndexScan(tid, index, "t", new IndexPredicate(Op.EQUALS, new IntField(42)));
+        scan.open();
+        ArrayList<Tuple> deleting = new ArrayList<Tuple>();
+        while (scan.hasNext()) {
+            deleting.add(scan.next());
+        }
+        scan.close();
+        Assert.assertEquals(expected(Op.EQUALS, 42), deleting.size());
+        for (Tuple t : deleting) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Assert.assertEquals(0, scan(Op.EQUALS, 42));
+        Assert.assertEquals(expected(Op.EQUALS, 43), scan(Op.EQUALS, 43));
+        Assert.assertEquals(10, scan(Op.EQUALS, 500));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
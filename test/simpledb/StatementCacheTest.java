@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class StatementCacheTest extends SimpleDbTestBase {
+
+    private static final int IO_COST = 71;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+
+    /**
+     * Create a heap table "ht" with integer fields h0 and h1
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, tuples, "h");
+        Database.getCatalog().addTable(hf, "ht");
+        TableStats.setTableStats("ht", new TableStats(hf.getId(), IO_COST));
+    }
+
+    private int matching(int bound) {
+        int n = 0;
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) < bound)
+                n++;
+        return n;
+    }
+
+    /**
+     * Statements that differ only in their constants and whitespace share a
+     * key; other statements are not cached at all.
+     */
+    @Test
+    public void parameterizeTest() {
+        StatementCache.Statement a = StatementCache.parameterize(
+                "SELECT t1.a FROM t t1 WHERE t1.a < 10 AND t1.b = 'x''y' LIMIT 5;");
+        StatementCache.Statement b = StatementCache.parameterize(
+                "SELECT t1.a  FROM t t1\nWHERE t1.a < 300 AND t1.b = 'z' LIMIT 7;");
+        Assert.assertEquals(a.getKey(), b.getKey());
+        Assert.assertEquals("SELECT t1.a FROM t t1 WHERE t1.a < ? AND t1.b = '?' LIMIT ?;",
+                a.getKey());
+        Assert.assertArrayEquals(new String[] { "10", "x''y", "5" }, a.params);
+
+        Assert.assertFalse(a.getKey().equals(StatementCache.parameterize(
+                "SELECT t1.a FROM t t1 WHERE t1.a < '10' AND t1.b = 'x' LIMIT 5;").getKey()));
+        Assert.assertNull(StatementCache.parameterize("INSERT INTO t VALUES (1, 2);"));
+        Assert.assertNull(StatementCache.parameterize(
+                "SELECT t.a FROM t WHERE t.a = (SELECT MAX(s.a) FROM s);"));
+        Assert.assertNull(StatementCache.parameterize("SELECT t.a FROM t WHERE t.b = 'x;"));
+    }
+
+    /**
+     * A cached plan is reused with new constants, and dropped once the
+     * statistics of its table are replaced.
+     */
+    @Test
+    public void cachedPlanTest() throws Exception {
+        TransactionId tid = new TransactionId();
+        StatementCache cache = new StatementCache(StatementCache.DEFAULT_CAPACITY);
+        Parser p = new Parser();
+
+        StatementCache.Statement first = StatementCache.parameterize(
+                "SELECT ht.h1 FROM ht WHERE ht.h0 < 30;");
+        Assert.assertNull(cache.lookup(first));
+        LogicalPlan lp = cache.add(first, p.generateLogicalPlan(tid, first.probe));
+        Assert.assertEquals("30", lp.getFilters().get(0).c);
+        Assert.assertEquals(matching(30), TestUtil.countTuples(lp.physicalPlan(tid,
+                TableStats.getStatsMap(), false)));
+        cache.planned(first, lp);
+
+        StatementCache.Statement second = StatementCache.parameterize(
+                "SELECT ht.h1 FROM ht WHERE ht.h0 < 70;");
+        LogicalPlan cached = cache.lookup(second);
+        Assert.assertNotNull(cached);
+        Assert.assertEquals("70", cached.getFilters().get(0).c);
+        Assert.assertEquals(matching(70), TestUtil.countTuples(cached.physicalPlan(tid,
+                TableStats.getStatsMap(), false)));
+        // the cached plan itself is unchanged
+        Assert.assertEquals(matching(30), TestUtil.countTuples(cache.lookup(first).physicalPlan(tid,
+                TableStats.getStatsMap(), false)));
+        Assert.assertEquals(2, cache.hits());
+
+        TableStats.setTableStats("ht", new TableStats(hf.getId(), IO_COST));
+        Assert.assertNull(cache.lookup(second));
+        Assert.assertEquals(0, cache.size());
+
+        // LIMIT and OFFSET are constants as well
+        StatementCache.Statement limit = StatementCache.parameterize(
+                "SELECT ht.h1 FROM ht WHERE ht.h0 < 30 LIMIT 5 OFFSET 2;");
+        LogicalPlan limited = cache.add(limit, p.generateLogicalPlan(tid, limit.probe));
+        Assert.assertEquals(5, limited.getLimit());
+        Assert.assertEquals(2, limited.getOffset());
+    }
+}
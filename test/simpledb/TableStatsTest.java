@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -151,4 +152,185 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Histograms built from a sample much smaller than the table give about
+	 * the same selectivities as exact ones, while the tuple count stays exact.
+	 */
+	@Test public void sampledStatisticsTest() {
+		TableStats exact = new TableStats(this.tableId, IO_COST);
+		TableStats s = new TableStats(this.tableId, IO_COST, 2000);
+		Assert.assertEquals(10200, s.totalTuples());
+		for (int col = 0; col < 10; col++) {
+			for (int v = 0; v <= 32; v += 4) {
+				Field f = new IntField(v);
+				Assert.assertEquals(exact.estimateSelectivity(col, Predicate.Op.LESS_THAN, f),
+						s.estimateSelectivity(col, Predicate.Op.LESS_THAN, f), 0.05);
+				Assert.assertEquals(exact.estimateSelectivity(col, Predicate.Op.EQUALS, f),
+						s.estimateSelectivity(col, Predicate.Op.EQUALS, f), 0.02);
+			}
+		}
+	}
+
+	/**
+	 * Statistics can be computed for files other than HeapFiles.
+	 */
+	@Test public void btreeFileStatisticsTest() throws Exception {
+		ArrayList<ArrayList<Integer>> btreeTuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, 100, null, btreeTuples, 0);
+		TableStats s = new TableStats(bf.getId(), IO_COST);
+		Assert.assertEquals(5000, s.totalTuples());
+		Assert.assertEquals(bf.numPages() * IO_COST, s.estimateScanCost(), 0.001);
+		int below = 0;
+		for (ArrayList<Integer> t : btreeTuples)
+			if (t.get(1) < 50)
+				below++;
+		Assert.assertEquals(below / 5000.0,
+				s.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(50)), 0.03);
+
+		// the height of the index is estimated from its pages
+		int fanout = BTreeInternalPage.getEntriesPerPage(Type.INT_TYPE) + 1;
+		TransactionId tid = new TransactionId();
+		Assert.assertEquals(bf.height(tid), s.estimateIndexHeight(fanout));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * computeStatistics() registers statistics for every table in the catalog.
+	 */
+	@Test public void computeStatisticsTest() throws Exception {
+		HeapFile other = SystemTestUtil.createRandomHeapFile(3, 3000, 32, null, null);
+		String otherName = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(other, otherName);
+		TableStats.computeStatistics();
+		Assert.assertEquals(10200, TableStats.getTableStats(tableName).totalTuples());
+		Assert.assertEquals(3000, TableStats.getTableStats(otherName).totalTuples());
+	}
+
+	/**
+	 * Saved statistics are reused on load for tables whose file is unchanged;
+	 * the others are recomputed when they are first looked up.
+	 */
+	@Test public void saveAndLoadStatisticsTest() throws Exception {
+		HeapFile other = SystemTestUtil.createRandomHeapFile(3, 3000, 32, null, null);
+		String otherName = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(other, otherName);
+		TableStats.computeStatistics();
+		TableStats before = TableStats.getTableStats(tableName);
+
+		File statsFile = File.createTempFile("table", ".stats");
+		statsFile.deleteOnExit();
+		TableStats.saveStatistics(statsFile);
+		Assert.assertFalse(TableStats.statisticsChanged());
+		Assert.assertTrue(other.getFile().setLastModified(other.getFile().lastModified() - 10000));
+		TableStats.loadStatistics(statsFile);
+
+		Assert.assertFalse(TableStats.isStale(tableName));
+		TableStats after = TableStats.getTableStats(tableName);
+		Assert.assertNotSame(before, after);
+		Assert.assertEquals(before.totalTuples(), after.totalTuples());
+		Assert.assertEquals(before.estimateScanCost(), after.estimateScanCost(), 0.001);
+		for (int v = 0; v <= 32; v += 4) {
+			Field f = new IntField(v);
+			Assert.assertEquals(before.estimateSelectivity(3, Predicate.Op.LESS_THAN, f),
+					after.estimateSelectivity(3, Predicate.Op.LESS_THAN, f), 0.0);
+		}
+
+		Assert.assertTrue(TableStats.isStale(otherName));
+		Assert.assertEquals(3000, TableStats.getTableStats(otherName).totalTuples());
+		Assert.assertFalse(TableStats.isStale(otherName));
+		Assert.assertTrue(TableStats.statisticsChanged());
+	}
+
+	/**
+	 * A missing statistics file leaves every table to be computed on first use.
+	 */
+	@Test public void loadMissingStatisticsTest() throws Exception {
+		File missing = new File(File.createTempFile("table", ".stats").getPath() + ".missing");
+		TableStats.loadStatistics(missing);
+		Assert.assertTrue(TableStats.isStale(tableName));
+		Assert.assertEquals(10200, TableStats.getTableStats(tableName).totalTuples());
+		Assert.assertEquals(new File("/a/b/catalog.stats"), TableStats.statsFileFor("/a/b/catalog.txt"));
+	}
+
+	/**
+	 * Inserts and deletes through the buffer pool update the statistics of a
+	 * table, and enough of them make it be re-analyzed in the background.
+	 */
+	@Test public void incrementalStatisticsTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, 32, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+		TableStats.setTableStats(name, s);
+		double before = s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(5));
+
+		TransactionId tid = new TransactionId();
+		ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+		for (int i = 0; i < 40; i++) {
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(5));
+			t.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+			inserted.add(t);
+		}
+		Assert.assertSame(s, TableStats.getTableStats(name));
+		Assert.assertEquals(140, s.totalTuples());
+		Assert.assertEquals(40, s.modifications());
+		Assert.assertTrue(s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(5)) > before);
+
+		for (int i = 0; i < 10; i++)
+			Database.getBufferPool().deleteTuple(tid, inserted.get(i));
+		Assert.assertEquals(130, s.totalTuples());
+
+		// past 50 + 10% of the 100 analyzed tuples
+		for (int i = 10; i < 21; i++)
+			Database.getBufferPool().deleteTuple(tid, inserted.get(i));
+		long deadline = System.currentTimeMillis() + 10000;
+		while (TableStats.getTableStats(name) == s && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		TableStats fresh = TableStats.getTableStats(name);
+		Assert.assertNotSame(s, fresh);
+		Assert.assertEquals(119, fresh.totalTuples());
+		Assert.assertEquals(0, fresh.modifications());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * The number of distinct values of each field is estimated from the
+	 * scan, and grows with inserted values.
+	 */
+	@Test public void numDistinctTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		for (int col = 0; col < 10; col++) {
+			// values are drawn from [0, 32]
+			Assert.assertEquals(33, s.numDistinct(col), 1);
+			Assert.assertEquals(1.0 / 33, s.avgSelectivity(col, Predicate.Op.EQUALS), 0.002);
+		}
+
+		Tuple t = new Tuple(f.getTupleDesc());
+		for (int v = 0; v < 1000; v++) {
+			for (int col = 0; col < 10; col++)
+				t.setField(col, new IntField(1000 + v));
+			s.addTuple(t);
+		}
+		Assert.assertEquals(1033, s.numDistinct(0), 1033 * 0.05);
+	}
+
+	/**
+	 * Observed selectivities are kept for the most recently used filters
+	 * only, however many filter constants are run.
+	 */
+	@Test public void feedbackEvictionTest() {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		s.recordSelectivity("c0<0", 0.5);
+		for (int i = 1; i <= TableStats.MAX_FEEDBACK; i++) {
+			s.recordSelectivity("c1<" + i, 0.1);
+			// keep the first filter in use
+			Assert.assertEquals(0.5, s.observedSelectivity("c0<0"), 0);
+		}
+		Assert.assertNotNull(s.observedSelectivity("c0<0"));
+		Assert.assertNull(s.observedSelectivity("c1<1"));
+		Assert.assertEquals(0.1, s.observedSelectivity("c1<" + TableStats.MAX_FEEDBACK), 0);
+	}
 }
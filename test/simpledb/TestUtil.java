@@ -149,6 +149,22 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Opens the OpIterator, reads all of its tuples and closes it.
+     * @return the number of tuples it returned
+     */
+    public static int countTuples(OpIterator it)
+        throws TransactionAbortedException, DbException {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
     /**
      * Verifies that the OpIterator has been exhausted of all elements.
      */
@@ -236,6 +252,11 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public DbFileIterator iterator(TransactionId tid, int[] fields,
+                Predicate[] predicates) {
+            throw new RuntimeException("not implemented");
+        }
+
 		public TupleDesc getTupleDesc() {			
 			return td;
 		}
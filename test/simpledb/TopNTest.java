@@ -0,0 +1,171 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import Zql.ZDelete;
+import Zql.ZStatement;
+import Zql.ZqlParser;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  OpIterator scan1;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleList() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 5, 1,
+                    3, 2,
+                    9, 3,
+                    1, 4,
+                    7, 5,
+                    2, 6 });
+  }
+
+  /**
+   * Unit test for TopN.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    TopN op = new TopN(0, true, 3, scan1);
+    assertEquals(Utility.getTupleDesc(width1), op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for an ascending TopN
+   */
+  @Test public void topAscending() throws Exception {
+    TopN op = new TopN(0, true, 3, scan1);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width1,
+        new int[] { 1, 4, 2, 6, 3, 2 });
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for a descending TopN with an offset
+   */
+  @Test public void topDescendingWithOffset() throws Exception {
+    TopN op = new TopN(0, false, 2, 1, scan1);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width1,
+        new int[] { 7, 5, 5, 1 });
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for a TopN whose limit exceeds the input size
+   */
+  @Test public void limitLargerThanInput() throws Exception {
+    TopN op = new TopN(0, true, 100, scan1);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width1,
+        new int[] { 1, 4, 2, 6, 3, 2, 5, 1, 7, 5, 9, 3 });
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * A limit far larger than the input must not size the heap by the limit
+   */
+  @Test public void hugeLimit() throws Exception {
+    TopN op = new TopN(0, true, 1000000000, scan1);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width1,
+        new int[] { 1, 4, 2, 6, 3, 2, 5, 1, 7, 5, 9, 3 });
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * limit + offset overflows an int
+   */
+  @Test public void limitPlusOffsetOverflow() throws Exception {
+    TopN op = new TopN(0, true, Integer.MAX_VALUE, 1, scan1);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width1,
+        new int[] { 2, 6, 3, 2, 5, 1, 7, 5, 9, 3 });
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for TopN.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    TopN op = new TopN(0, true, 2, scan1);
+    op.open();
+    op.next();
+    op.next();
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+    OpIterator expected = TestUtil.createTupleList(width1,
+        new int[] { 1, 4, 2, 6 });
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for Limit, which must not read past offset + limit tuples
+   */
+  @Test public void limitStopsEarly() throws Exception {
+    TestUtil.MockScan scan = new TestUtil.MockScan(0, 1000, 1);
+    Limit op = new Limit(3, 2, scan);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(1, new int[] { 2, 3, 4 });
+    TestUtil.compareDbIterators(expected, op);
+    // the child has only been pulled up to (but not beyond) the last
+    // returned tuple
+    assertEquals(5, ((IntField) scan.next().getField(0)).getValue());
+
+    op.rewind();
+    expected = TestUtil.createTupleList(1, new int[] { 2, 3, 4 });
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for Parser.stripLimitClause()
+   */
+  @Test public void stripLimitClause() throws Exception {
+    Parser p = new Parser();
+    assertEquals("SELECT * FROM t ORDER BY t.a;",
+        p.stripLimitClause("SELECT * FROM t ORDER BY t.a LIMIT 10 OFFSET 5;"));
+    assertEquals("SELECT * FROM t",
+        p.stripLimitClause("SELECT * FROM t limit 7"));
+    assertEquals("SELECT * FROM t;", p.stripLimitClause("SELECT * FROM t;"));
+    // only the first statement of a script is affected
+    assertEquals("SELECT * FROM t;\nSELECT * FROM u LIMIT 2;",
+        p.stripLimitClause("SELECT * FROM t;\nSELECT * FROM u LIMIT 2;"));
+    assertEquals("SELECT * FROM t; SELECT * FROM u;",
+        p.stripLimitClause("SELECT * FROM t LIMIT 1; SELECT * FROM u;"));
+  }
+
+  /**
+   * A count that does not fit in an int is a parse error
+   */
+  @Test(expected = ParsingException.class) public void limitOverflow() throws Exception {
+    new Parser().stripLimitClause("SELECT * FROM t LIMIT 99999999999;");
+  }
+
+  /**
+   * A LIMIT on a DELETE would otherwise delete every matching row
+   */
+  @Test(expected = ParsingException.class) public void limitOnDelete() throws Exception {
+    Parser p = new Parser();
+    String stmt = p.stripLimitClause("DELETE FROM t WHERE t.a = 1 LIMIT 1;");
+    ZStatement s = new ZqlParser(new ByteArrayInputStream(stmt.getBytes())).readStatement();
+    p.handleDeleteStatement((ZDelete) s, new TransactionId());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
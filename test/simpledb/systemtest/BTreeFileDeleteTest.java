@@ -351,7 +351,41 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		assertTrue(root.getParentId().equals(rootPtrId));
 
 		it.close();
-	}    
+	}
+
+	@Test
+	public void testDeleteWhileScanning() throws Exception {
+		// For this test we will decrease the size of the Buffer Pool pages
+		BufferPool.setPageSize(1024);
+
+		// two tiers of about 40 leaf pages
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, 0);
+		Database.resetBufferPool(500);
+
+		// deleting every tuple the iterator returns merges the leaves behind it,
+		// so it has to find its place again from the root
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		Field prev = null;
+		int count = 0;
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(prev != null) {
+				assertTrue(t.getField(0).compare(Op.GREATER_THAN_OR_EQ, prev));
+			}
+			prev = t.getField(0);
+			Database.getBufferPool().deleteTuple(tid, t);
+			count++;
+		}
+		it.close();
+		assertEquals(tuples.size(), count);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+	}
 
 	/**
 	 * JUnit suite target